@@ -0,0 +1,98 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic corpora for the benchmarks.
+ * <p>
+ * A corpus is described by a spec {@code <files>x<size>}, e.g. {@code 1000x1KB}, {@code 100000x1KB}, {@code 1x100MB}.
+ * Files are spread over {@code dirN/subM} directories (100 files per directory) and contain Java-like lines;
+ * every 97th line contains the word {@code needle}. Generated trees are kept under {@code target/jmh-corpus}
+ * (or {@code -Djmh.corpus.dir}) and reused by later runs, since the content depends only on the spec.
+ */
+public final class Corpus {
+
+    private static final Path ROOT = Paths.get(System.getProperty("jmh.corpus.dir", "target/jmh-corpus"));
+    private static final String COMPLETE_MARKER = ".complete";
+
+    private Corpus() {
+    }
+
+    /**
+     * Returns the root of a generated tree for {@code spec}, generating it on first use.
+     */
+    public static synchronized Path tree(String spec) {
+        String[] parts = spec.toLowerCase(Locale.ROOT).split("x", 2);
+        int files = Integer.parseInt(parts[0]);
+        long size = parseSize(parts[1]);
+        Path dir = ROOT.resolve(spec);
+        if (Files.exists(dir.resolve(COMPLETE_MARKER))) {
+            return dir.resolve("tree");
+        }
+        try {
+            Path tree = dir.resolve("tree");
+            for (int i = 0; i < files; i++) {
+                Path file = tree.resolve(relativePath(i));
+                Files.createDirectories(file.getParent());
+                writeText(file, size, i);
+            }
+            Files.createFile(dir.resolve(COMPLETE_MARKER));
+            return tree;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Path of the {@code i}-th file inside a tree.
+     */
+    public static String relativePath(int i) {
+        return "dir%d/sub%d/File%d.%s".formatted(i / 1000, i / 100 % 10, i, i % 3 == 0 ? "txt" : "java");
+    }
+
+    /**
+     * Writes roughly {@code size} bytes of Java-like text with lines of 40-120 bytes.
+     */
+    public static void writeText(Path file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        long written = 0;
+        int lineNumber = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            while (written < size) {
+                String line = line(random, lineNumber++);
+                writer.write(line);
+                writer.newLine();
+                written += line.length() + 1;
+            }
+        }
+    }
+
+    public static String line(Random random, int lineNumber) {
+        if (lineNumber % 97 == 96) {
+            return "        log.warn(\"needle found at {}\", position" + random.nextInt(1000) + ");";
+        }
+        return switch (random.nextInt(4)) {
+            case 0 -> "    private final String field" + random.nextInt(100_000) + " = \"value " + random.nextLong() + "\";";
+            case 1 -> "        int result" + lineNumber + " = compute(" + random.nextInt(1000) + ", " + random.nextInt(1000) + ");";
+            case 2 -> "        // TODO: refactor block " + random.nextInt(100_000) + " of the processing pipeline";
+            default -> "        return repository.findById(" + random.nextInt(1_000_000) + ").orElseThrow();";
+        };
+    }
+
+    public static long parseSize(String size) {
+        String value = size.trim().toUpperCase(Locale.ROOT);
+        if (value.endsWith("GB")) return Long.parseLong(value.substring(0, value.length() - 2)) << 30;
+        if (value.endsWith("MB")) return Long.parseLong(value.substring(0, value.length() - 2)) << 20;
+        if (value.endsWith("KB")) return Long.parseLong(value.substring(0, value.length() - 2)) << 10;
+        if (value.endsWith("B")) return Long.parseLong(value.substring(0, value.length() - 1));
+        return Long.parseLong(value);
+    }
+}
@@ -0,0 +1,43 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.DirectoryLister;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flat and recursive listings of {@link DirectoryLister#apply} over generated trees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DirectoryListerBenchmark {
+
+    @Param({"1000x1KB", "100000x1KB"})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private DirectoryLister directoryLister;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String tree = Corpus.tree(corpus).toString();
+        directoryLister = new DirectoryLister(tree, 10, new FileTreeCache(tree, cache, 1_000_000, true));
+    }
+
+    @Benchmark
+    public DirectoryLister.DirectoryListing flat() {
+        return directoryLister.apply(new DirectoryLister.InputParams("dir0/sub0", false));
+    }
+
+    @Benchmark
+    public DirectoryLister.DirectoryListing recursive() {
+        return directoryLister.apply(new DirectoryLister.InputParams("", true));
+    }
+}
@@ -0,0 +1,61 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.fs.FileContentCache;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileReader#apply} on a generated file: a whole read (limited by the byte budget) and a page of lines from the
+ * middle, with the content cache and without it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileReaderBenchmark {
+
+    @Param({"64KB", "100MB"})
+    public String fileSize;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private Path baseDir;
+    private FileReader fileReader;
+    private int middleLine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("file-reader-bench");
+        Corpus.writeText(baseDir.resolve("target.java"), Corpus.parseSize(fileSize), 1);
+        try (var lines = Files.lines(baseDir.resolve("target.java"))) {
+            middleLine = (int) (lines.count() / 2);
+        }
+        FileContentCache cache = cached ? new FileContentCache(256L << 20, 1 << 20) : FileContentCache.uncached();
+        fileReader = new FileReader(baseDir.toString(), 262144, FileTreeCache.uncached(baseDir.toString()), cache);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(baseDir.resolve("target.java"));
+        Files.deleteIfExists(baseDir);
+    }
+
+    @Benchmark
+    public FileReader.Content readFile() {
+        return fileReader.apply(new FileReader.InputPath("target.java"));
+    }
+
+    @Benchmark
+    public FileReader.Content readLinesFromMiddle() {
+        return fileReader.apply(new FileReader.InputPath("target.java", null, null, middleLine, middleLine + 100, null));
+    }
+}
@@ -0,0 +1,41 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.FileSearcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Glob search of {@link FileSearcher#apply} over generated trees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileSearcherBenchmark {
+
+    @Param({"1000x1KB", "100000x1KB"})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    @Param({"**/*.java", "dir1/**/File1*.txt"})
+    public String pattern;
+
+    private FileSearcher fileSearcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String tree = Corpus.tree(corpus).toString();
+        fileSearcher = new FileSearcher(tree, new FileTreeCache(tree, cache, 1_000_000, true));
+    }
+
+    @Benchmark
+    public FileSearcher.SearchResult search() {
+        return fileSearcher.apply(new FileSearcher.SearchPattern(pattern));
+    }
+}
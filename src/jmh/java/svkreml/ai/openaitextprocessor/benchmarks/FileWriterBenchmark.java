@@ -0,0 +1,92 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.functions.FileWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line operations of {@link FileWriter#apply} on a generated file that is re-created before every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FileWriterBenchmark {
+
+    @Param({"1KB", "100MB"})
+    public String fileSize;
+
+    @Param({"10"})
+    public int line;
+
+    private static final int HUNKS = 5;
+
+    private Path baseDir;
+    private FileWriter fileWriter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("file-writer-bench");
+        fileWriter = new FileWriter(baseDir.toString());
+    }
+
+    @Setup(Level.Iteration)
+    public void resetFile() throws IOException {
+        Corpus.writeText(baseDir.resolve("target.java"), Corpus.parseSize(fileSize), 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(baseDir.resolve("target.java"));
+        Files.deleteIfExists(baseDir);
+    }
+
+    @Benchmark
+    public FileWriter.WriteResult insertAtLine() {
+        return fileWriter.apply(new FileWriter.FileWriteRequest(
+                "target.java", "        // inserted", FileWriter.WriteOperation.INSERT_AT_LINE, line));
+    }
+
+    @Benchmark
+    public FileWriter.WriteResult replaceAtLine() {
+        return fileWriter.apply(new FileWriter.FileWriteRequest(
+                "target.java", "        // replaced", FileWriter.WriteOperation.REPLACE_AT_LINE, line));
+    }
+
+    /**
+     * Five edits as the model used to send them: one call, one full rewrite each.
+     */
+    @Benchmark
+    public FileWriter.WriteResult replaceFiveTimes() {
+        FileWriter.WriteResult result = null;
+        for (int i = 0; i < HUNKS; i++) {
+            result = fileWriter.apply(new FileWriter.FileWriteRequest(
+                    "target.java", "        // replaced " + i, FileWriter.WriteOperation.REPLACE_AT_LINE, line + i * 100));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public FileWriter.WriteResult patchFiveHunks() {
+        List<FileWriter.Hunk> hunks = new ArrayList<>();
+        for (int i = 0; i < HUNKS; i++) {
+            hunks.add(new FileWriter.Hunk(line + i * 100, FileWriter.HunkOperation.REPLACE, "        // replaced " + i));
+        }
+        return fileWriter.apply(new FileWriter.FileWriteRequest(
+                "target.java", null, FileWriter.WriteOperation.PATCH, null, hunks, null));
+    }
+
+    @Benchmark
+    public FileWriter.WriteResult appendToEnd() {
+        return fileWriter.apply(new FileWriter.FileWriteRequest(
+                "target.java", "        // appended\n", FileWriter.WriteOperation.APPEND_TO_THE_END, null));
+    }
+}
@@ -0,0 +1,82 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import svkreml.ai.openaitextprocessor.search.LineScanner;
+import svkreml.ai.openaitextprocessor.search.LiteralMatcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Literal/prefix fast path of {@link LineScanner} against running {@link Pattern} on every line.
+ * {@code readAllLinesRegex} is the pre-streaming TextSearch implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LiteralSearchBenchmark {
+
+    @Param({"processFile", "log\\.info", "get[A-Z]\\w+Id"})
+    public String regex;
+
+    @Param({"200000"})
+    public int lines;
+
+    private Path file;
+    private Pattern pattern;
+    private LiteralMatcher literal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("literal-bench", ".java");
+        Random random = new Random(42);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write(switch (random.nextInt(50)) {
+                    case 0 -> "        processFile(path, pattern, limit, contextBefore, contextAfter, results);";
+                    case 1 -> "        log.info(\"Found {} matches in file: {}\", matches.size(), file);";
+                    case 2 -> "        return repository.getUserById(id);";
+                    default -> "        int value" + i + " = compute(" + random.nextInt(1000) + ", \"строка " + i + "\");";
+                });
+                writer.newLine();
+            }
+        }
+        pattern = Pattern.compile(regex);
+        literal = LiteralMatcher.forPattern(pattern);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<LineScanner.Match> literalFastPath() throws IOException {
+        return new LineScanner().scan(file, pattern, literal, Integer.MAX_VALUE, 0, 0);
+    }
+
+    @Benchmark
+    public List<LineScanner.Match> regexPerLine() throws IOException {
+        return new LineScanner().scan(file, pattern, LiteralMatcher.NONE, Integer.MAX_VALUE, 0, 0);
+    }
+
+    @Benchmark
+    public void readAllLinesRegex(Blackhole blackhole) throws IOException {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (pattern.matcher(line).find()) {
+                blackhole.consume(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.properties.BundleMerge;
+import svkreml.ai.openaitextprocessor.properties.PropertiesBundle;
+import svkreml.ai.openaitextprocessor.utils.OrderedProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OrderedProperties} load/store of generated message bundles, and the same work with {@link PropertiesBundle}
+ * plus a {@link BundleMerge} of a source, an existing translation with every tenth key and a half-done result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderedPropertiesBenchmark {
+
+    @Param({"1000", "100000"})
+    public int keys;
+
+    private byte[] bundle;
+    private OrderedProperties loaded;
+    private PropertiesBundle source;
+    private PropertiesBundle existing;
+    private PropertiesBundle result;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < keys; i++) {
+            content.append("# section ").append(i / 100).append('\n');
+            content.append("key.").append(i).append(".label=Value number ").append(i)
+                    .append(" with ${placeholder").append(i % 7).append("} inside\n");
+        }
+        bundle = content.toString().getBytes(StandardCharsets.UTF_8);
+        loaded = load();
+        source = loadBundle();
+        existing = new PropertiesBundle();
+        result = new PropertiesBundle();
+        for (int i = 0; i < keys; i++) {
+            if (i % 10 == 0) existing.put(source.key(i), "Значение " + i);
+            if (i < keys / 2) result.put(source.key(i), "Перевод " + i);
+        }
+    }
+
+    @Benchmark
+    public OrderedProperties load() throws IOException {
+        OrderedProperties properties = new OrderedProperties();
+        try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(bundle), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    @Benchmark
+    public byte[] store() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bundle.length);
+        loaded.store(out, "");
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public PropertiesBundle loadBundle() throws IOException {
+        try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(bundle), StandardCharsets.UTF_8)) {
+            return PropertiesBundle.read(reader);
+        }
+    }
+
+    @Benchmark
+    public int storeBundle() throws IOException {
+        StringWriter out = new StringWriter(bundle.length);
+        source.write(out);
+        return out.getBuffer().length();
+    }
+
+    @Benchmark
+    public PropertiesBundle merge() {
+        return BundleMerge.of(source, existing, result).merged(key -> null);
+    }
+}
@@ -0,0 +1,58 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.functions.TextSearch;
+import svkreml.ai.openaitextprocessor.search.TrigramIndex;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TextSearch#apply} over generated corpora, sequential and parallel, with and without the trigram index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TextSearchBenchmark {
+
+    @Param({"1000x1KB", "100000x1KB", "1x100MB"})
+    public String corpus;
+
+    @Param({"needle found", "result\\d+ = compute\\(7"})
+    public String regex;
+
+    @Param({"1", "0"})
+    public int parallelism;
+
+    @Param({"false", "true"})
+    public boolean index;
+
+    @Param({"100"})
+    public int maxResults;
+
+    private TextSearch textSearch;
+    private TextSearch.SearchRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Path tree = Corpus.tree(corpus);
+        TrigramIndex trigramIndex = index
+                ? new TrigramIndex(tree.toString(), true, ".textsearch-index", 1024 * 1024)
+                : null;
+        textSearch = new TextSearch(trigramIndex, null, parallelism, 0);
+        request = new TextSearch.SearchRequest(tree.toString(), regex, maxResults, 1, 1, "*");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        textSearch.shutdown();
+    }
+
+    @Benchmark
+    public TextSearch.SearchResponse search() {
+        return textSearch.apply(request);
+    }
+}
@@ -0,0 +1,99 @@
+package svkreml.ai.openaitextprocessor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import svkreml.ai.openaitextprocessor.translate.TranslationValidator;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link TranslationValidator#validateAll} over a generated bundle, against the per-call regex checks it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslationValidatorBenchmark {
+
+    @Param({"1000", "100000"})
+    public int keys;
+
+    private final Map<String, String> sources = new HashMap<>();
+    private final Map<String, String> translations = new LinkedHashMap<>();
+    private final TranslationValidator validator = TranslationValidator.standard();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < keys; i++) {
+            String key = "key." + i + ".label";
+            sources.put(key, "Value number " + i + " with ${placeholder" + i % 7 + "} inside the message");
+            // Каждая десятая запись с ошибкой, как бывает в ответах модели
+            String placeholder = i % 10 == 3 ? "${заполнитель}" : "${placeholder" + i % 7 + "}";
+            translations.put(key, "Значение номер " + i + " с " + placeholder + " внутри сообщения");
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> validator() {
+        return validator.validateAll(sources, translations);
+    }
+
+    @Benchmark
+    public Map<String, String> regex() {
+        Map<String, String> rejected = new LinkedHashMap<>();
+        translations.forEach((key, translation) -> {
+            if (!Legacy.isValidTranslation(sources.get(key), translation)) {
+                rejected.put(key, "invalid");
+            }
+        });
+        return rejected;
+    }
+
+    /**
+     * The checks {@code KeycloakPropertiesTranslator} used before {@link TranslationValidator}.
+     */
+    private static final class Legacy {
+
+        static boolean isValidTranslation(String source, String translatedValue) {
+            return !(translatedValue.isBlank()
+                    || haveWrongBlocks(translatedValue, source)
+                    || containsChinese(translatedValue)
+                    || containsKorean(translatedValue)
+                    || containsJapanese(translatedValue)
+                    || containsNewLines(translatedValue)
+                    || "null".equals(translatedValue));
+        }
+
+        static boolean haveWrongBlocks(String s1, String s2) {
+            Pattern pattern = Pattern.compile("\\$\\{([^}]*)\\}");
+            return !getBlockValues(s1, pattern).equals(getBlockValues(s2, pattern));
+        }
+
+        static Set<String> getBlockValues(String s, Pattern pattern) {
+            Set<String> blocks = new HashSet<>();
+            Matcher matcher = pattern.matcher(s);
+            while (matcher.find()) blocks.add(matcher.group(1));
+            return blocks;
+        }
+
+        static boolean containsChinese(String s) {
+            return s != null && s.chars().anyMatch(c -> c >= 0x4E00 && c <= 0x9FFF);
+        }
+
+        static boolean containsKorean(String input) {
+            return input.matches(".*[\\uAC00-\\uD7AF\\u1100-\\u11FF\\u3130-\\u318F\\uA960-\\uA97F\\uD7B0-\\uD7FF\\u4E00-\\u9FFF].*");
+        }
+
+        static boolean containsJapanese(String input) {
+            return input.matches(".*[\\u3040-\\u309F\\u30A0-\\u30FF\\u4E00-\\u9FFF\\u3400-\\u4DBF\\uD840-\\uD87F\\uDC00-\\uDFFF].*");
+        }
+
+        static boolean containsNewLines(String s) {
+            return s.chars().anyMatch(c -> c == '\n' || c == '\r');
+        }
+    }
+}
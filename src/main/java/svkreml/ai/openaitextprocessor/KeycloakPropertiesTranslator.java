@@ -1,38 +1,40 @@
-/*
 package svkreml.ai.openaitextprocessor;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import svkreml.ai.openaitextprocessor.utils.BatchSplitter;
-import svkreml.ai.openaitextprocessor.utils.OrderedProperties;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.properties.BundleMerge;
+import svkreml.ai.openaitextprocessor.properties.PropertiesBundle;
+import svkreml.ai.openaitextprocessor.properties.PropertiesJournal;
+import svkreml.ai.openaitextprocessor.translate.KeyedTranslationConverter;
+import svkreml.ai.openaitextprocessor.translate.TranslationMemory;
+import svkreml.ai.openaitextprocessor.translate.TranslationPipeline;
+import svkreml.ai.openaitextprocessor.translate.TranslationValidator;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-
 
+/**
+ * Translates a Keycloak messages bundle to Russian. Runs only with the {@code translate} profile,
+ * see {@link #main(String[])}.
+ */
 @Slf4j
-@SpringBootApplication
+@Component
+@Profile("translate")
 public class KeycloakPropertiesTranslator implements ApplicationRunner {
 
 
-
-
-
 //        public static final String enPropsPath = "/home/svkreml/IdeaProjects/dit/dit-id/keycloak/js/apps/account-ui/maven-resources/theme/keycloak.v3/account/messages/messages_en.properties";
 //        public static final String ruPropsPath = "/home/svkreml/IdeaProjects/dit/dit-id/keycloak/js/apps/account-ui/maven-resources-community/theme/keycloak.v3/account/messages/messages_ru.properties";
 //
@@ -43,179 +45,161 @@ public class KeycloakPropertiesTranslator implements ApplicationRunner {
 
     public static final String ruResultPropsPath = "messages_ru_new.properties";
     public static final String dictPropsPath = "messages_ru_dict.properties";
-    private final ChatClient translateChatClient;
 
-    public KeycloakPropertiesTranslator(@Qualifier("translate") ChatClient translateChatClient) {
+    private static final KeyedTranslationConverter CONVERTER = new KeyedTranslationConverter();
+    private static final TranslationValidator VALIDATOR = TranslationValidator.standard();
+
+    private final ChatClient translateChatClient;
+    private final MeterRegistry meterRegistry;
+    private final String model;
+    private final String locale;
+    private final String memoryPath;
+    private final String sourcePath;
+    private final String existingPath;
+    private final String resultPath;
+    private final int concurrency;
+    private final int maxBatchTokens;
+    private final int maxBatchEntries;
+    private final int maxAttempts;
+    private final int compactEvery;
+
+    public KeycloakPropertiesTranslator(
+            @Qualifier("translate") ChatClient translateChatClient,
+            MeterRegistry meterRegistry,
+            @Value("${spring.ai.openai.model:qwen3-8b}") String model,
+            @Value("${translate.locale:ru}") String locale,
+            @Value("${translate.memory:translation-memory.properties}") String memoryPath,
+            @Value("${translate.source:" + enPropsPath + "}") String sourcePath,
+            @Value("${translate.existing:" + ruPropsPath + "}") String existingPath,
+            @Value("${translate.result:" + ruResultPropsPath + "}") String resultPath,
+            @Value("${translate.concurrency:4}") int concurrency,
+            @Value("${translate.batch.max-tokens:1500}") int maxBatchTokens,
+            @Value("${translate.batch.max-entries:50}") int maxBatchEntries,
+            @Value("${translate.max-attempts:10}") int maxAttempts,
+            @Value("${translate.compact-every:1000}") int compactEvery
+    ) {
         this.translateChatClient = translateChatClient;
+        this.meterRegistry = meterRegistry;
+        this.model = model;
+        this.locale = locale;
+        this.memoryPath = memoryPath;
+        this.sourcePath = sourcePath;
+        this.existingPath = existingPath;
+        this.resultPath = resultPath;
+        this.concurrency = concurrency;
+        this.maxBatchTokens = maxBatchTokens;
+        this.maxBatchEntries = maxBatchEntries;
+        this.maxAttempts = maxAttempts;
+        this.compactEvery = compactEvery;
     }
 
     @Override
     public void run(ApplicationArguments args) throws Exception {
 
-        OrderedProperties enProperties = getProperties(enPropsPath);
-        OrderedProperties ruProperties = getProperties(ruPropsPath);
+        PropertiesBundle enProperties = PropertiesBundle.load(Path.of(sourcePath));
+        PropertiesBundle ruProperties = loadIfExists(existingPath);
         //  Properties dictProperties = getProperties(dictPropsPath);
-        OrderedProperties resultProperties = getProperties(ruResultPropsPath);
 
-
-
-        //resultProperties.putAll(enProperties);
-        //resultProperties.store(Files.newOutputStream(Path.of(ruResultPropsPath)), "");
-
-        doTranslate(enProperties, ruProperties, resultProperties);
+        doTranslate(enProperties, ruProperties);
         System.exit(0);
     }
 
 
     public static void main(String[] args) {
-        SpringApplication.run(KeycloakPropertiesTranslator.class, args);
-    }
-
-    private static Map<String, String> toMap(Properties enProperties) {
-        return enProperties.entrySet().stream().collect(Collectors.toMap(
-                e -> e.getKey().toString(),
-                e -> e.getValue().toString(),
-                (existing, replacement) -> existing
-        ));
-    }
-
-    private static Map<String, String> getNotExistMap(Map<String, String> bigMap, Map<String, String> smallMap) {
-        Map<String, String> hashMap = new HashMap<>();
-        for (Map.Entry<String, String> entry : bigMap.entrySet()) {
-            if (!smallMap.containsKey(entry.getKey())) {
-                hashMap.put(entry.getKey(), entry.getValue());
-            }
-        }
-        return hashMap;
-    }
-
-    private static OrderedProperties getProperties(String path) throws IOException {
-
-        Path filePath = Paths.get(path);
-        if (!Files.exists(filePath)) {
-            Files.createFile(filePath);
-        }
-
-        OrderedProperties properties = new OrderedProperties();
-        try (InputStreamReader reader = new InputStreamReader(
-                new FileInputStream(path), StandardCharsets.UTF_8)) {
-            properties.load(reader);
-        }
-        return properties;
-    }
-
-    public static boolean haveWrongBlocks(String s1, String s2) {
-        Pattern pattern = Pattern.compile("\\$\\{([^}]*)\\}");
-        return !getBlockValues(s1, pattern).equals(getBlockValues(s2, pattern));
-    }
-
-    private static Set<String> getBlockValues(String s, Pattern pattern) {
-        Set<String> blocks = new HashSet<>();
-        Matcher matcher = pattern.matcher(s);
-        while (matcher.find()) blocks.add(matcher.group(1));
-        return blocks;
-    }
-
-    public static boolean containsChinese(String s) {
-        return s != null && s.chars().anyMatch(c -> c >= 0x4E00 && c <= 0x9FFF);
-    }
-
-    public static boolean containsKorean(String input) {
-        return input.matches(".*[\\uAC00-\\uD7AF\\u1100-\\u11FF\\u3130-\\u318F\\uA960-\\uA97F\\uD7B0-\\uD7FF\\u4E00-\\u9FFF].*");
-    }
-    public static boolean containsJapanese(String input) {
-        return input.matches(".*[\\u3040-\\u309F\\u30A0-\\u30FF\\u4E00-\\u9FFF\\u3400-\\u4DBF\\uD840-\\uD87F\\uDC00-\\uDFFF].*");
-    }
-
-    public static boolean doNotContainsRussian(String s) {
-        s = removeBlocks(s).trim();
-        return s != null && s.contains(" ") && s.chars().noneMatch(c -> c >= 0x0400 && c <= 0x04FF);
-    }
-
-    public static String removeBlocks(String input) {
-        if (input == null) return null;
-        return input.replaceAll("\\{\\{.*?}}", "");
-    }
-
-    public static boolean containsNewLines(String s) {
-        if (s == null) return false;
-        return s.chars().anyMatch(c -> c == '\n' || c == '\r');
-    }
-
-
-    private void doTranslate(Properties enProperties, Properties ruProperties, Properties resultProperties) throws IOException {
-        for (List<Map.Entry<Object, Object>> splitIntoBatch : BatchSplitter.splitIntoBatches(enProperties.entrySet(), 20)) {
-            List<String> keys = splitIntoBatch.stream().map(Map.Entry::getKey).map(String::valueOf).toList();
-
-            Map<String, String> toTranslate = new HashMap<>();
-
-            for (String key : keys) {
-                if (!ruProperties.containsKey(key)) {
-                    toTranslate.put(key, enProperties.get(key).toString());
+        new SpringApplicationBuilder(OpenaiTextProcessorApplication.class)
+                .profiles("translate")
+                .web(WebApplicationType.NONE)
+                .run(args);
+    }
+
+    private static PropertiesBundle loadIfExists(String path) throws IOException {
+        Path filePath = Path.of(path);
+        return Files.exists(filePath) ? PropertiesBundle.load(filePath) : new PropertiesBundle();
+    }
+
+    /**
+     * Keys already in {@code ruProperties} are copied, keys already in the result (an earlier, interrupted run) are
+     * kept, see {@link BundleMerge}. The rest are looked up in {@link TranslationMemory}, which also learns the
+     * {@code ruProperties} translations; only misses go through {@link TranslationPipeline}, one request per distinct
+     * source text. Results go to the {@link PropertiesJournal} of the result file as they complete, the file itself is
+     * rewritten in source order, with the comments of the source, every {@code translate.compact-every} entries
+     * (or more, as the bundle grows) and at the end.
+     */
+    private void doTranslate(PropertiesBundle enProperties, PropertiesBundle ruProperties) throws IOException, InterruptedException {
+        try (TranslationMemory memory = new TranslationMemory(Path.of(memoryPath), locale, model, meterRegistry);
+             PropertiesJournal journal = new PropertiesJournal(Path.of(resultPath))) {
+            PropertiesBundle resultProperties = journal.bundle();
+            BundleMerge merge = BundleMerge.of(enProperties, ruProperties, resultProperties);
+            log.info("{} entries to translate, {} taken from {}, {} from the previous run, {} obsolete",
+                    merge.count(BundleMerge.State.PENDING), merge.count(BundleMerge.State.EXISTING), existingPath,
+                    merge.count(BundleMerge.State.KEPT), merge.obsolete().size());
+
+            for (int i = 0; i < ruProperties.size(); i++) {
+                String source = enProperties.get(ruProperties.key(i));
+                if (source != null) {
+                    memory.put(source, ruProperties.value(i));
                 }
             }
-            Map<String, String> translated = new HashMap<>();
-
 
-            for (int i = 0; i < 10; i++) {
-                try {
-                    translated.putAll(translate(toTranslate));
-                } catch (Exception e) {
-                    continue;
+            // Ключи с одинаковым текстом переводим одним запросом, от имени первого из них
+            Map<String, List<String>> keysBySource = new LinkedHashMap<>();
+            Map<String, String> misses = new LinkedHashMap<>();
+            merge.forEachPending((key, source) -> {
+                Optional<String> remembered = memory.lookup(source)
+                        .filter(translation -> VALIDATOR.isValid(source, translation));
+                if (remembered.isPresent()) {
+                    log.info("FROM MEMORY \t\t{}={}", key, remembered.get());
+                    accept(journal, merge, key, remembered.get());
+                    return;
                 }
-                boolean repeat = false;
-                for (Map.Entry<String, String> entry : translated.entrySet()) {
-                    String key = entry.getKey();
-                    String translatedValue = entry.getValue();
-                    if (
-                            StringUtils.isAllBlank(translatedValue)
-                            || haveWrongBlocks(translatedValue, enProperties.get(key).toString())
-                            || containsChinese(translatedValue)
-                            || containsKorean(translatedValue)
-                            || containsJapanese(translatedValue)
-                            || containsNewLines(translatedValue)
-                                    //   || doNotContainsRussian(translatedValue)
-                            || "null".equals(translatedValue)
-                    ) {
-                        log.warn("ERROR \t\t\t{}={}", key, translatedValue);
-                        repeat = true;
-                    }
+                List<String> keys = keysBySource.computeIfAbsent(source, text -> new ArrayList<>());
+                if (keys.isEmpty()) {
+                    misses.put(key, source);
                 }
-                if(!repeat) {
-                    break;
+                keys.add(key);
+            });
+            log.info("{} entries found in translation memory, {} distinct texts left for the model",
+                    merge.count(BundleMerge.State.PENDING) - keysBySource.values().stream().mapToInt(List::size).sum(),
+                    misses.size());
+
+            TranslationPipeline pipeline = new TranslationPipeline(this::translate, VALIDATOR,
+                    concurrency, maxBatchTokens, maxBatchEntries, maxAttempts);
+            pipeline.run(misses, (key, value) -> {
+                String source = misses.get(key);
+                try {
+                    memory.put(source, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
-
-            for (String key : keys) {
-                if (ruProperties.containsKey(key)) {
-                    log.info("FROM PROPS \t\t{}={}",key,  ruProperties.get(key));
-                    resultProperties.put(key, ruProperties.get(key));
-                } else {
-                    log.info("TRANSLATE \t\t{}={}",key, translated.get(key));
-                    resultProperties.put(key, translated.get(key));
+                for (String sameSourceKey : keysBySource.get(source)) {
+                    log.info("TRANSLATE \t\t{}={}", sameSourceKey, value);
+                    accept(journal, merge, sameSourceKey, value);
                 }
-            }
+            });
 
+            journal.compact(merge.merged(resultProperties::get));
+        }
+    }
 
-            resultProperties.store(Files.newOutputStream(Path.of(ruResultPropsPath)), "");
+    private void accept(PropertiesJournal journal, BundleMerge merge, String key, String value) {
+        try {
+            journal.append(key, value);
+            // Порог растёт вместе с файлом, так что суммарная запись остаётся линейной
+            if (journal.pending() >= Math.max(compactEvery, journal.bundle().size() / 2)) {
+                journal.compact(merge.merged(journal.bundle()::get));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     private Map<String, String> translate(Map<String, String> toTranslate) {
-        String[] split = Objects.requireNonNull(this.translateChatClient.prompt()
-                .user(u -> u.text(String.join("%%%", toTranslate.values())))
+        List<String> keys = new ArrayList<>(toTranslate.keySet());
+        Map<String, String> reply = this.translateChatClient.prompt()
+                .user(u -> u.text(CONVERTER.toRequest(toTranslate.values())))
                 .call()
-                .content(), "translateChatClient вернул null").split("%%%");
-
-        if (split.length != toTranslate.size()) {
-            throw new RuntimeException("Переводчик вернул неверное количество переводов");
-        }
-        Map<String, String> translated = new HashMap<>();
-        int i = 0;
-        for (String key : toTranslate.keySet()) {
-            translated.put(key, split[i++].trim());
-        }
-        return translated;
+                .entity(CONVERTER);
+        return reply == null ? Map.of() : CONVERTER.toKeys(reply, keys);
     }
 
-}*/
+}
@@ -0,0 +1,119 @@
+package svkreml.ai.openaitextprocessor.config;
+
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.client.ReactorClientHttpRequestFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * HTTP transport of the model clients: one Reactor Netty {@link HttpClient} with one connection pool behind both
+ * the blocking {@link RestClient} ({@code /file/chatSync}, translation) and the streaming {@link WebClient}
+ * ({@code /file/chat}), so a connection opened by either path is reused by the other.
+ * <p>
+ * The pool keeps up to {@code spring.ai.openai.http.max-connections} connections per backend (host and port);
+ * requests beyond that wait up to {@code pending-acquire-timeout}. Connections idle for {@code max-idle-time} or
+ * older than {@code max-life-time} are closed by a background sweep, so a backend restart or a proxy dropping idle
+ * connections does not fail the next request. With HTTP/2 ({@code h2} over TLS, {@code h2c} in clear text) requests
+ * to one backend are multiplexed as streams instead of each taking a connection.
+ * <p>
+ * Pool gauges ({@code reactor.netty.connection.provider.active.connections}, {@code .idle.connections},
+ * {@code .pending.connections}, {@code .max.connections}), the wait for a connection
+ * ({@code reactor.netty.connection.provider.pending.connections.time}) and per-request client timings
+ * ({@code reactor.netty.http.client.*}) are published through the global Micrometer registry, tagged
+ * {@code name=model}.
+ */
+@Slf4j
+@Component
+public class ModelTransport {
+
+    private final ConnectionProvider connectionProvider;
+    private final HttpClient httpClient;
+
+    /**
+     * @param protocols {@code http11} and/or {@code h2}, or {@code h2c} alone (HTTP/2 without TLS, the backend must
+     *                  support it); empty means HTTP/2 negotiated by ALPN for {@code https} backends and HTTP/1.1
+     *                  for {@code http} ones
+     */
+    @Autowired
+    public ModelTransport(
+            @Value("${spring.ai.openai.http.max-connections:64}") int maxConnections,
+            @Value("${spring.ai.openai.http.pending-acquire-timeout:600s}") String pendingAcquireTimeout,
+            @Value("${spring.ai.openai.http.max-idle-time:60s}") String maxIdleTime,
+            @Value("${spring.ai.openai.http.max-life-time:10m}") String maxLifeTime,
+            @Value("${spring.ai.openai.http.connect-timeout:600s}") String connectTimeout,
+            @Value("${spring.ai.openai.http.read-timeout:600s}") String readTimeout,
+            @Value("${spring.ai.openai.http.protocols:}") List<String> protocols
+    ) {
+        Duration idle = DurationStyle.detectAndParse(maxIdleTime);
+        this.connectionProvider = ConnectionProvider.builder("model")
+                .maxConnections(maxConnections)
+                .pendingAcquireTimeout(DurationStyle.detectAndParse(pendingAcquireTimeout))
+                .maxIdleTime(idle)
+                .maxLifeTime(DurationStyle.detectAndParse(maxLifeTime))
+                .evictInBackground(idle.dividedBy(2))
+                // Последним освобождённое соединение берём первым: остальные успевают простоять и закрыться
+                .lifo()
+                .metrics(true)
+                .build();
+        HttpProtocol[] httpProtocols = protocols.stream()
+                .filter(protocol -> !protocol.isBlank())
+                .map(protocol -> protocol.trim().toLowerCase(Locale.ROOT))
+                .map(protocol -> switch (protocol) {
+                    case "http11", "http/1.1" -> HttpProtocol.HTTP11;
+                    case "h2" -> HttpProtocol.H2;
+                    case "h2c" -> HttpProtocol.H2C;
+                    default -> throw new IllegalArgumentException("Unknown HTTP protocol: " + protocol);
+                })
+                .toArray(HttpProtocol[]::new);
+        if (httpProtocols.length == 0) {
+            httpProtocols = new HttpProtocol[]{HttpProtocol.HTTP11, HttpProtocol.H2};
+        }
+        if (List.of(httpProtocols).containsAll(List.of(HttpProtocol.HTTP11, HttpProtocol.H2C))) {
+            // Upgrade с HTTP/1.1 на h2c не проходит для POST с телом, а других запросов к модели нет
+            throw new IllegalArgumentException("h2c works only with prior knowledge, use spring.ai.openai.http.protocols=h2c");
+        }
+        this.httpClient = HttpClient.create(connectionProvider)
+                .protocol(httpProtocols)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) DurationStyle.detectAndParse(connectTimeout).toMillis())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .responseTimeout(DurationStyle.detectAndParse(readTimeout))
+                // Путь без параметров: у модели их нет, лишних тегов не появится
+                .metrics(true, Function.identity());
+        log.info("Model transport: maxConnections={}, maxIdleTime={}, maxLifeTime={}, protocols={}",
+                maxConnections, idle, maxLifeTime, List.of(httpProtocols));
+    }
+
+    /**
+     * Builder of a blocking client on the shared pool; each call returns a new builder.
+     */
+    public RestClient.Builder restClientBuilder() {
+        return RestClient.builder().requestFactory(new ReactorClientHttpRequestFactory(httpClient));
+    }
+
+    /**
+     * Builder of a streaming client on the shared pool; each call returns a new builder.
+     */
+    public WebClient.Builder webClientBuilder() {
+        return WebClient.builder().clientConnector(new ReactorClientHttpConnector(httpClient));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        connectionProvider.dispose();
+    }
+}
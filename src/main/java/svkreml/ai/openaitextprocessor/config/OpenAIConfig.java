@@ -1,24 +1,42 @@
 package svkreml.ai.openaitextprocessor.config;
 
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
 import org.springframework.ai.chat.client.advisor.SimpleLoggerAdvisor;
-import org.springframework.ai.chat.memory.InMemoryChatMemoryRepository;
+import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.observation.ChatModelMeterObservationHandler;
 import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
 import org.springframework.ai.openai.OpenAiChatModel;
+import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.ai.openai.api.OpenAiApi;
+import org.springframework.ai.tool.ToolCallback;
 import org.springframework.ai.tool.function.FunctionToolCallback;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.web.client.RestClientCustomizer;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Description;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.RestClient;
 import svkreml.ai.openaitextprocessor.functions.*;
+import svkreml.ai.openaitextprocessor.memory.ConversationMemoryRepository;
+import svkreml.ai.openaitextprocessor.model.ChatScheduler;
+import svkreml.ai.openaitextprocessor.model.RoutingChatModel;
+import svkreml.ai.openaitextprocessor.tools.ParallelToolCallingManager;
+import svkreml.ai.openaitextprocessor.tools.ToolResultCache;
 
-import java.time.temporal.ChronoUnit;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 
 @Configuration
@@ -45,21 +63,46 @@ public class OpenAIConfig {
     @Value("${spring.ai.openai.model:qwen3-8b}")
     private String model;
     @Value("${spring.ai.openai.base-url:http://localhost:1234}")
-    private String baseUrl;
+    private List<String> baseUrls;
     @Value("${spring.ai.openai.api-key:apikey}")
     private String apikey;
-
+    @Value("${spring.ai.openai.stream-usage:true}")
+    private boolean streamUsage;
+    @Value("${spring.ai.openai.routing.policy:least-outstanding}")
+    private String routingPolicy;
+    @Value("${spring.ai.openai.routing.sticky-max-imbalance:2}")
+    private int stickyMaxImbalance;
+    @Value("${spring.ai.openai.routing.health-path:/v1/models}")
+    private String healthPath;
+    @Value("${spring.ai.openai.routing.health-interval:10s}")
+    private String healthInterval;
+    @Value("${spring.ai.openai.routing.backoff:1s}")
+    private String backoff;
+    @Value("${spring.ai.openai.routing.max-backoff:60s}")
+    private String maxBackoff;
+
+
+    /**
+     * Records {@code gen_ai.client.token.usage} (prompt and completion tokens) from the model observations.
+     */
     @Bean
-    public RestClientCustomizer restClientCustomizer() {
-        return builder -> {
-            HttpComponentsClientHttpRequestFactory clientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory();
-            clientHttpRequestFactory.setConnectTimeout(java.time.Duration.of(600, ChronoUnit.SECONDS));
-            clientHttpRequestFactory.setConnectionRequestTimeout(java.time.Duration.of(600, ChronoUnit.SECONDS));
-            clientHttpRequestFactory.setReadTimeout(java.time.Duration.of(600, ChronoUnit.SECONDS));
-            builder.requestFactory(clientHttpRequestFactory);
-        };
+    public ChatModelMeterObservationHandler chatModelMeterObservationHandler(MeterRegistry meterRegistry) {
+        return new ChatModelMeterObservationHandler(meterRegistry);
     }
 
+    /**
+     * History of the chat conversations: the last {@code chat.memory.max-messages} messages of each, within the
+     * budgets of {@link ConversationMemoryRepository}.
+     */
+    @Bean
+    public ChatMemory chatMemory(
+            ConversationMemoryRepository conversationMemoryRepository,
+            @Value("${chat.memory.max-messages:20}") int maxMessages) {
+        return MessageWindowChatMemory.builder()
+                .maxMessages(maxMessages)
+                .chatMemoryRepository(conversationMemoryRepository)
+                .build();
+    }
 
     @Bean("fileClient")
     public ChatClient fileClient(
@@ -67,24 +110,22 @@ public class OpenAIConfig {
             FileReader fileReader,
             TextSearch textSearch,
             FileSearcher fileSearcher,
-            DirectoryLister directoryLister) {
-        MessageWindowChatMemory chatMemory = MessageWindowChatMemory.builder().maxMessages(20).chatMemoryRepository(new InMemoryChatMemoryRepository()).build();
-
-        ToolCallingChatOptions chatOptions = ToolCallingChatOptions.builder()
+            DirectoryLister directoryLister,
+            ToolResultCache toolResultCache,
+            ObservationRegistry observationRegistry,
+            ChatModel chatModel,
+            ChatScheduler chatScheduler,
+            ChatMemory chatMemory) {
+
+        // streamUsage: без него потоковые ответы приходят без usage и токены /file/chat не считаются
+        OpenAiChatOptions chatOptions = OpenAiChatOptions.builder()
                 .model(model)
                 .temperature(0.6)
                 .maxTokens(32000)
+                .streamUsage(streamUsage)
                 .build();
 
-
-        return ChatClient.builder(OpenAiChatModel.builder()
-                        .openAiApi(
-                                OpenAiApi.builder()
-                                        .baseUrl(baseUrl)
-                                        .apiKey(apikey)
-                                        .build()
-                        )
-                        .build())
+        return ChatClient.builder(chatScheduler.schedule(chatModel, ChatScheduler.Priority.INTERACTIVE), observationRegistry, null)
                 .defaultSystem("""
                         **Role**: You are an AI assistant with direct access to a folder in file system.
                          To understand and fulfill user requests accurately, you MUST use the provided file system tools to scan and analyze relevant files/directories before performing operations.
@@ -105,14 +146,103 @@ public class OpenAIConfig {
                         new SimpleLoggerAdvisor()
                 )
                 .defaultToolCallbacks(
-                        FunctionToolCallback.builder("fileWriter", fileWriter).description(fileWriter.getClass().getAnnotation(Description.class).value()).inputType(FileWriter.FileWriteRequest.class).build(),
-                        FunctionToolCallback.builder("fileReader", fileReader).description(fileReader.getClass().getAnnotation(Description.class).value()).inputType(FileReader.InputPath.class).build(),
-                        FunctionToolCallback.builder("textSearch", textSearch).description(textSearch.getClass().getAnnotation(Description.class).value()).inputType(TextSearch.SearchRequest.class).build(),
-                        FunctionToolCallback.builder("fileSearcher", fileSearcher).description(fileSearcher.getClass().getAnnotation(Description.class).value()).inputType(FileSearcher.SearchPattern.class).build(),
-                        FunctionToolCallback.builder("directoryLister", directoryLister).description(directoryLister.getClass().getAnnotation(Description.class).value()).inputType(DirectoryLister.InputParams.class).build()
+                        tool(toolResultCache, "fileWriter", fileWriter, FileWriter.FileWriteRequest.class),
+                        tool(toolResultCache, "fileReader", fileReader, FileReader.InputPath.class),
+                        tool(toolResultCache, "textSearch", textSearch, TextSearch.SearchRequest.class),
+                        tool(toolResultCache, "fileSearcher", fileSearcher, FileSearcher.SearchPattern.class),
+                        tool(toolResultCache, "directoryLister", directoryLister, DirectoryLister.InputParams.class)
                 )
                 .build();
     }
 
+    /**
+     * Model on {@code spring.ai.openai.base-url}; with several URLs, a {@link RoutingChatModel} over all of them.
+     * All clients share it, so the router sees their whole load, and Spring closes it with the context.
+     */
+    @Bean
+    public ChatModel chatModel(ModelTransport modelTransport, ObservationRegistry observationRegistry,
+                               MeterRegistry meterRegistry, ChatScheduler chatScheduler,
+                               ParallelToolCallingManager toolCallingManager) {
+        if (baseUrls.size() == 1) {
+            return openAiChatModel(baseUrls.get(0), modelTransport, observationRegistry, toolCallingManager, null);
+        }
+        // Повторы на том же сервере только задержали бы его исключение из балансировки
+        RetryTemplate noRetry = RetryTemplate.builder().maxAttempts(1).build();
+        List<RoutingChatModel.Backend> backends = baseUrls.stream()
+                .map(url -> new RoutingChatModel.Backend(url,
+                        openAiChatModel(url, modelTransport, observationRegistry, toolCallingManager, noRetry),
+                        healthCheck(url, modelTransport)))
+                .toList();
+        RoutingChatModel routingChatModel = new RoutingChatModel(backends,
+                RoutingChatModel.Policy.valueOf(routingPolicy.trim().toUpperCase(Locale.ROOT).replace('-', '_')),
+                stickyMaxImbalance,
+                chatScheduler.maxConcurrentPerBackend(),
+                healthPath.isBlank() ? Duration.ZERO : DurationStyle.detectAndParse(healthInterval),
+                DurationStyle.detectAndParse(backoff),
+                DurationStyle.detectAndParse(maxBackoff),
+                meterRegistry);
+        chatScheduler.followAvailableBackends(routingChatModel::availableBackends);
+        return routingChatModel;
+    }
+
+    private OpenAiChatModel openAiChatModel(String baseUrl, ModelTransport modelTransport, ObservationRegistry observationRegistry,
+                                            ToolCallingManager toolCallingManager, RetryTemplate retryTemplate) {
+        OpenAiChatModel.Builder builder = OpenAiChatModel.builder()
+                .openAiApi(OpenAiApi.builder()
+                        .baseUrl(baseUrl)
+                        .apiKey(apikey)
+                        .restClientBuilder(modelTransport.restClientBuilder())
+                        .webClientBuilder(modelTransport.webClientBuilder())
+                        .build())
+                .observationRegistry(observationRegistry)
+                .toolCallingManager(toolCallingManager);
+        if (retryTemplate != null) {
+            builder.retryTemplate(retryTemplate);
+        }
+        return builder.build();
+    }
+
+    private BooleanSupplier healthCheck(String baseUrl, ModelTransport modelTransport) {
+        RestClient client = modelTransport.restClientBuilder()
+                .baseUrl(baseUrl)
+                .defaultHeaders(headers -> headers.setBearerAuth(apikey))
+                .build();
+        return () -> client.get().uri(healthPath).retrieve().toBodilessEntity().getStatusCode().is2xxSuccessful();
+    }
+
+    /**
+     * Callback for a tool bean described by its {@link Description}; read-only tools are memoized by {@link ToolResultCache}.
+     */
+    private static <I, O> ToolCallback tool(ToolResultCache toolResultCache, String name, Function<I, O> function, Class<I> inputType) {
+        return toolResultCache.memoize(FunctionToolCallback.builder(name, function)
+                .description(function.getClass().getAnnotation(Description.class).value())
+                .inputType(inputType)
+                .build(), inputType);
+    }
+
+    /**
+     * Client for {@code KeycloakPropertiesTranslator}, exists only with the {@code translate} profile.
+     */
+    @Bean("translate")
+    @Profile("translate")
+    public ChatClient translateClient(ObservationRegistry observationRegistry, ChatModel chatModel,
+                                      ChatScheduler chatScheduler) {
+        ToolCallingChatOptions chatOptions = ToolCallingChatOptions.builder()
+                .model(model)
+                .temperature(0.2)
+                .build();
+
+        // Инструментов у этого клиента нет, общий менеджер вызовов инструментов ему не мешает
+        return ChatClient.builder(chatScheduler.schedule(chatModel, ChatScheduler.Priority.BATCH), observationRegistry, null)
+                .defaultSystem((noThink ? NO_THINK : "") + """
+                        You translate user interface messages of Keycloak from English to Russian.
+                        The input is a JSON object that maps message ids to English messages.
+                        Answer with a JSON object that maps the same ids to the Russian translations.
+                        Keep ${...} placeholders and {{...}} blocks exactly as they are, do not add line breaks.
+                        """)
+                .defaultOptions(chatOptions)
+                .build();
+    }
+
 
 }
\ No newline at end of file
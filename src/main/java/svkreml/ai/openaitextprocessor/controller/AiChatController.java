@@ -1,65 +1,148 @@
 package svkreml.ai.openaitextprocessor.controller;
 
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.ServerSentEvent;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 
+/**
+ * Chat with the file system assistant. A conversation is identified by the {@value #CONVERSATION_ID} header: the
+ * model sees only the history of that conversation. Without the header a new conversation is started; its id comes
+ * back in the same response header and is passed with the following messages.
+ */
 @Slf4j
 @RestController
 @RequestMapping("/file")
 public class AiChatController {
 
+    public static final String CONVERSATION_ID = "X-Conversation-Id";
+
+    private static final Pattern CONVERSATION_ID_PATTERN = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+
     private final ChatClient fileClient;
+    private final ChatMemory chatMemory;
+    private final Timer chatFirstToken;
+    private final Timer chatSseFirstToken;
 
-    public AiChatController(@Qualifier("fileClient") ChatClient fileClient) {
+    public AiChatController(@Qualifier("fileClient") ChatClient fileClient, ChatMemory chatMemory,
+                            MeterRegistry meterRegistry) {
         this.fileClient = fileClient;
+        this.chatMemory = chatMemory;
+        this.chatFirstToken = firstTokenTimer(meterRegistry, "/file/chat");
+        this.chatSseFirstToken = firstTokenTimer(meterRegistry, "/file/chatSSE");
+    }
+
+    /**
+     * Time to first token: from the request to the first chunk of content, tool calls included.
+     */
+    private static Timer firstTokenTimer(MeterRegistry meterRegistry, String endpoint) {
+        return Timer.builder("chat.stream.first.token")
+                .description("Time from a streaming chat request to its first content chunk")
+                .tag("endpoint", endpoint)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
     }
 
 
 
     @PostMapping(value = "/chatSSE", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<ServerSentEvent<String>> chatSSE(@RequestBody String query) {
-        log.info("Received query: {}", query);
-        return getEventFlux(query, this::getSentEvent);
+    public Flux<ServerSentEvent<String>> chatSSE(
+            @RequestBody String query,
+            @RequestHeader(value = CONVERSATION_ID, required = false) String conversationId,
+            HttpServletResponse response) {
+        String id = conversationId(conversationId, response);
+        log.info("Received query in conversation {}: {}", id, query);
+        return getEventFlux(query, id, this::getSentEvent, chatSseFirstToken);
     }
 
     @PostMapping(
             value = "/chat",
             produces = MediaType.TEXT_EVENT_STREAM_VALUE // Чистый текст вместо SSE
     )
-    public Flux<String> chat(@RequestBody String query) {
-        log.info("Received query: {}", query);
-        return getEventFlux(query, c -> c);
+    public Flux<String> chat(@RequestBody String query,
+                             @RequestHeader(value = CONVERSATION_ID, required = false) String conversationId,
+                             HttpServletResponse response) {
+        String id = conversationId(conversationId, response);
+        log.info("Received query in conversation {}: {}", id, query);
+        return getEventFlux(query, id, c -> c, chatFirstToken);
     }
 
     @PostMapping(
             value = "/chatSync",
             produces = MediaType.APPLICATION_JSON_VALUE
     )
-    public String chatSync(@RequestBody String query) {
-        log.info("Received query: {}", query);
-        return fileClient.prompt().user(u -> u.text(query)).call().content();
-    }
-
-    private <T> Flux<T> getEventFlux(String query, Function<String, T> mapper) {
+    public String chatSync(@RequestBody String query,
+                           @RequestHeader(value = CONVERSATION_ID, required = false) String conversationId,
+                           HttpServletResponse response) {
+        String id = conversationId(conversationId, response);
+        log.info("Received query in conversation {}: {}", id, query);
         return fileClient.prompt()
                 .user(u -> u.text(query))
-                .stream()        // Получаем StreamResponseSpec
-                .content()       // Берем Flux<String> с готовым контентом
-                .map(mapper)
-                .doOnError(e -> log.error("Stream error: {}", e.getMessage()))
-                .doOnCancel(() -> log.warn("Stream cancelled by client"))
-                .doOnComplete(() -> log.info("Stream completed successfully"));
+                .advisors(a -> a.param(ChatMemory.CONVERSATION_ID, id))
+                .call()
+                .content();
+    }
+
+    /**
+     * Forgets the history of a conversation.
+     */
+    @DeleteMapping("/chat")
+    public void deleteConversation(@RequestHeader(CONVERSATION_ID) String conversationId) {
+        chatMemory.clear(conversationId(conversationId, null));
+    }
+
+    /**
+     * Id of the requested conversation, or of a new one; echoed in the response header.
+     */
+    private static String conversationId(String requested, HttpServletResponse response) {
+        if (requested != null && !CONVERSATION_ID_PATTERN.matcher(requested).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    CONVERSATION_ID + " must match " + CONVERSATION_ID_PATTERN.pattern());
+        }
+        String id = requested != null ? requested : UUID.randomUUID().toString();
+        if (response != null) {
+            response.setHeader(CONVERSATION_ID, id);
+        }
+        return id;
+    }
+
+    private <T> Flux<T> getEventFlux(String query, String conversationId, Function<String, T> mapper,
+                                     Timer firstToken) {
+        return Flux.defer(() -> {
+            // Отсчёт с подписки, а не со сборки Flux: запрос к модели уходит именно тогда
+            long start = System.nanoTime();
+            AtomicBoolean first = new AtomicBoolean(true);
+            return fileClient.prompt()
+                    .user(u -> u.text(query))
+                    .advisors(a -> a.param(ChatMemory.CONVERSATION_ID, conversationId))
+                    .stream()        // Получаем StreamResponseSpec
+                    .content()       // Берем Flux<String> с готовым контентом
+                    .doOnNext(c -> {
+                        if (first.compareAndSet(true, false)) {
+                            firstToken.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    })
+                    .map(mapper)
+                    .doOnError(e -> log.error("Stream error: {}", e.getMessage()))
+                    .doOnCancel(() -> log.warn("Stream cancelled by client"))
+                    .doOnComplete(() -> log.info("Stream completed successfully"));
+        });
     }
 
     private ServerSentEvent<String> getSentEvent(String content) {
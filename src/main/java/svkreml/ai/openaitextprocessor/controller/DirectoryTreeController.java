@@ -0,0 +1,59 @@
+package svkreml.ai.openaitextprocessor.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import svkreml.ai.openaitextprocessor.functions.DirectoryLister;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+
+/**
+ * Streams the tree below {@code file.base.dir} breadth-first as NDJSON, one entry per line as soon as it is found.
+ * At most {@code file.tree.max-nodes} entries are sent per request; the {@code cursor} of the last entry continues
+ * the listing in the next request.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/file")
+public class DirectoryTreeController {
+
+    private final DirectoryLister directoryLister;
+
+    public DirectoryTreeController(DirectoryLister directoryLister) {
+        this.directoryLister = directoryLister;
+    }
+
+    @GetMapping(value = "/tree", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DirectoryLister.FileSystemEntry> tree(
+            @RequestParam(defaultValue = "") String path,
+            @RequestParam(defaultValue = "true") boolean recursive,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer maxNodes
+    ) {
+        int budget = maxNodes != null && maxNodes > 0 ? Math.min(maxNodes, directoryLister.maxNodes()) : directoryLister.maxNodes();
+        log.info("Streaming tree of '{}' (recursive: {}, cursor: {}, maxNodes: {})", path, recursive, cursor, budget);
+        return Flux.defer(() -> {
+                    try {
+                        return Flux.fromStream(directoryLister.stream(path, recursive, cursor).limit(budget));
+                    } catch (NoSuchFileException | NotDirectoryException e) {
+                        return Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage()));
+                    } catch (IOException e) {
+                        return Flux.error(e);
+                    } catch (IllegalArgumentException | SecurityException e) {
+                        return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
+                    }
+                })
+                // Обход файловой системы блокирующий
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnError(e -> log.error("Tree stream error: {}", e.getMessage()));
+    }
+}
@@ -0,0 +1,216 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Lazy breadth-first walk over the entries below {@code root} down to {@code maxDepth}, resumable from a cursor.
+ * <p>
+ * Level {@code d} holds the entries {@code d + 1} names below the root; within a level entries are ordered by
+ * their path components. A cursor is the relative path (with {@code /}) of the last entry already returned,
+ * so the walk can continue after it without any server-side state, even if the tree changed meanwhile.
+ * The walk keeps the directories of the current level (the frontier) and collects those of the next one as it goes,
+ * so every directory is listed once. Only a resumed walk rebuilds the frontier of the cursor's level, with one
+ * depth-first pass over the directories above it.
+ */
+@Slf4j
+public final class BreadthFirstWalk implements Iterator<BreadthFirstWalk.Entry> {
+
+    private final FileTreeCache fileTreeCache;
+    private final Path root;
+    private final int maxDepth;
+
+    private int level;
+    private List<Path> frontier;  // каталоги, чьи дети составляют текущий уровень
+    private List<Path> nextFrontier = new ArrayList<>();
+    private int frontierIndex;
+    private int resumeDir;  // каталоги фронта до этого индекса уже отданы целиком
+    private String resumeAfter;  // в каталоге resumeDir отдано всё до этого имени включительно
+    private List<FileNode> children = List.of();
+    private int childIndex;
+    private int emitFrom;
+    private boolean done;
+    private Entry next;
+
+    /**
+     * @throws IllegalArgumentException if the cursor is not a relative path inside {@code root}
+     */
+    public BreadthFirstWalk(FileTreeCache fileTreeCache, Path root, int maxDepth, String cursor) throws IOException {
+        this.fileTreeCache = fileTreeCache;
+        this.root = root;
+        this.maxDepth = maxDepth;
+        List<String> after = parseCursor(cursor);
+        this.level = after != null ? after.size() - 1 : 0;
+        this.done = level > maxDepth;
+        if (done) {
+            return;
+        }
+        if (level == 0) {
+            frontier = List.of(root);
+        } else {
+            frontier = new ArrayList<>();
+            collectDirectories(root, 0, frontier);
+        }
+        if (after != null) {
+            List<String> parent = after.subList(0, level);
+            while (resumeDir < frontier.size() && compare(frontier.get(resumeDir), parent) < 0) {
+                resumeDir++;
+            }
+            if (resumeDir < frontier.size() && compare(frontier.get(resumeDir), parent) == 0) {
+                resumeAfter = after.get(level);
+            }
+        }
+        if (level == 0) {
+            // Корень читается сразу, чтобы недоступный каталог был ошибкой, а не пустым обходом
+            open(fileTreeCache.list(root));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !done) {
+            if (childIndex < children.size()) {
+                int index = childIndex++;
+                FileNode node = children.get(index);
+                if (node.isDirectory() && level < maxDepth) {
+                    nextFrontier.add(node.path());
+                }
+                if (index >= emitFrom) {
+                    next = new Entry(node, level, root.relativize(node.path()));
+                }
+            } else if (frontierIndex < frontier.size()) {
+                Path dir = frontier.get(frontierIndex);
+                try {
+                    open(fileTreeCache.list(dir));
+                } catch (IOException e) {
+                    log.warn("Access denied to: {}", dir, e);
+                    open(List.of());
+                }
+            } else {
+                nextLevel();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Entry result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Starts on the children of {@code frontier[frontierIndex]}, skipping those already returned before the cursor.
+     */
+    private void open(List<FileNode> listed) {
+        children = listed;
+        childIndex = 0;
+        if (frontierIndex < resumeDir) {
+            emitFrom = listed.size();
+        } else if (frontierIndex == resumeDir && resumeAfter != null) {
+            emitFrom = upperBound(listed, resumeAfter);
+        } else {
+            emitFrom = 0;
+        }
+        frontierIndex++;
+    }
+
+    private void nextLevel() {
+        // Пустой фронт означает, что глубже ничего нет
+        if (nextFrontier.isEmpty()) {
+            done = true;
+            return;
+        }
+        level++;
+        frontier = nextFrontier;
+        nextFrontier = new ArrayList<>();
+        frontierIndex = 0;
+        resumeDir = 0;
+        resumeAfter = null;
+    }
+
+    /**
+     * Directories {@code level} names below the root, in walk order.
+     */
+    private void collectDirectories(Path dir, int depth, List<Path> out) throws IOException {
+        for (FileNode node : fileTreeCache.list(dir)) {
+            if (!node.isDirectory()) continue;
+            if (depth + 1 == level) {
+                out.add(node.path());
+                continue;
+            }
+            try {
+                collectDirectories(node.path(), depth + 1, out);
+            } catch (IOException e) {
+                log.warn("Access denied to: {}", node.path(), e);
+            }
+        }
+    }
+
+    /**
+     * Orders {@code dir} against the path {@code names} by components, as the walk orders a level.
+     */
+    private int compare(Path dir, List<String> names) {
+        Path relative = root.relativize(dir);
+        for (int i = 0; i < names.size(); i++) {
+            int result = relative.getName(i).toString().compareTo(names.get(i));
+            if (result != 0) return result;
+        }
+        return 0;
+    }
+
+    private static List<String> parseCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : cursor.split("[/\\\\]")) {
+            if (name.isEmpty()) continue;
+            if (name.equals(".") || name.equals("..")) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            names.add(name);
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return names;
+    }
+
+    private static int lowerBound(List<FileNode> sorted, String name) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted.get(mid).name().compareTo(name) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int upperBound(List<FileNode> sorted, String name) {
+        int index = lowerBound(sorted, name);
+        return index < sorted.size() && sorted.get(index).name().equals(name) ? index + 1 : index;
+    }
+
+    /**
+     * @param depth    0 for the children of the root
+     * @param relative path relative to the root
+     */
+    public record Entry(FileNode node, int depth, Path relative) {
+
+        /**
+         * Cursor that continues the walk right after this entry.
+         */
+        public String cursor() {
+            StringJoiner joiner = new StringJoiner("/");
+            relative.forEach(name -> joiner.add(name.toString()));
+            return joiner.toString();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Sequence-numbered journal of the changes reported by {@link FileTreeCache}: {@link java.nio.file.WatchService}
+ * events for every listed directory and the writes done through {@code FileWriter}.
+ * <p>
+ * Tools hand out a token with each full result and later answer "what changed since this token" from the journal
+ * instead of walking the tree again. A token is bound to the query that produced it (its scope), because only the
+ * directories that query listed are guaranteed to be watched. It becomes invalid when the journal drops entries
+ * newer than it ({@code file.journal.capacity}), when a watch is lost or after a restart; callers then fall back
+ * to a full result.
+ * <p>
+ * A write through the application is journaled at once and its {@link java.nio.file.WatchService} events arrive
+ * later. An event is dropped when the path still has the size, mtime and type the write left, so the write is not
+ * reported again to a token taken in between.
+ */
+@Slf4j
+@Component
+public class ChangeJournal implements FileTreeCache.ChangeListener {
+
+    private final FileTreeCache fileTreeCache;
+    private final int capacity;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<Path, Entry> lastWrites = new HashMap<>();
+    private long sequence;
+    private long floor;  // токены с меньшим номером просрочены
+
+    @Autowired
+    public ChangeJournal(FileTreeCache fileTreeCache, @Value("${file.journal.capacity:100000}") int capacity) {
+        this.fileTreeCache = fileTreeCache;
+        this.capacity = capacity;
+        fileTreeCache.addListener(this);
+    }
+
+    /**
+     * Token for the current position of the journal. Must be taken before the result it is returned with
+     * is computed, so that changes made meanwhile are reported again rather than lost.
+     */
+    public synchronized String token(String scope) {
+        return epoch + "." + Long.toString(sequence, 36) + "." + Integer.toHexString(scope.hashCode());
+    }
+
+    /**
+     * Changes below {@code root} since {@code token}, one per path sorted by path, or empty if the token
+     * is unknown, expired or was issued for another scope.
+     * A path that was added and removed again is omitted, a removed and re-created path is reported as modified.
+     */
+    public Optional<List<FileChange>> changesSince(String token, String scope, Path root) {
+        if (token == null || token.isBlank() || !fileTreeCache.isWatching()) {
+            return Optional.empty();
+        }
+        String[] parts = token.trim().split("\\.");
+        if (parts.length != 3 || !parts[0].equals(epoch) || !parts[2].equals(Integer.toHexString(scope.hashCode()))) {
+            return Optional.empty();
+        }
+        long since;
+        try {
+            since = Long.parseLong(parts[1], 36);
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        Map<Path, FileChange[]> byPath = new HashMap<>();
+        synchronized (this) {
+            if (since < floor || since > sequence) {
+                return Optional.empty();
+            }
+            Iterator<Entry> newestFirst = entries.descendingIterator();
+            while (newestFirst.hasNext()) {
+                Entry entry = newestFirst.next();
+                if (entry.sequence <= since) break;
+                if (!entry.change.path().startsWith(normalizedRoot) || entry.change.path().equals(normalizedRoot)) continue;
+                // [0] - первое изменение в окне, [1] - последнее
+                byPath.computeIfAbsent(entry.change.path(), path -> new FileChange[]{null, entry.change})[0] = entry.change;
+            }
+        }
+
+        List<FileChange> changes = new ArrayList<>();
+        for (FileChange[] window : byPath.values()) {
+            FileChange first = window[0];
+            FileChange last = window[1];
+            boolean added = first.kind() == FileChange.Kind.ADDED;
+            if (last.kind() == FileChange.Kind.REMOVED) {
+                if (!added) {
+                    changes.add(last.type() != null || first.type() == null ? last
+                            : new FileChange(last.path(), last.kind(), first.type()));
+                }
+            } else {
+                changes.add(new FileChange(last.path(), added ? FileChange.Kind.ADDED : FileChange.Kind.MODIFIED, last.type()));
+            }
+        }
+        changes.sort(Comparator.comparing(FileChange::path));
+        return Optional.of(changes);
+    }
+
+    @Override
+    public synchronized void changed(FileChange change) {
+        if (change.written() == null && isEchoOfWrite(change)) {
+            log.trace("Change journal skipped the watch event of its own write: {}", change);
+            return;
+        }
+        Entry entry = new Entry(++sequence, change);
+        entries.addLast(entry);
+        if (change.written() != null) {
+            lastWrites.put(change.path(), entry);
+        } else {
+            lastWrites.remove(change.path());
+        }
+        if (entries.size() > capacity) {
+            Entry dropped = entries.removeFirst();
+            floor = dropped.sequence;
+            lastWrites.remove(dropped.change.path(), dropped);
+        }
+    }
+
+    /**
+     * Whether {@code change} only reports a write already journaled: the path still has what that write left.
+     */
+    private boolean isEchoOfWrite(FileChange change) {
+        Entry write = lastWrites.get(change.path());
+        if (write == null || change.kind() == FileChange.Kind.REMOVED) {
+            return false;
+        }
+        FileNode written = write.change.written();
+        try {
+            FileNode current = FileNode.of(change.path(),
+                    Files.readAttributes(change.path(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+            return current.equals(written);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void watchLost(Path dir) {
+        // Неизвестно, что изменилось под dir, поэтому все выданные токены становятся недействительными
+        floor = ++sequence;
+        entries.clear();
+        lastWrites.clear();
+        log.debug("Change journal reset, watch lost for {}", dir);
+    }
+
+    private record Entry(long sequence, FileChange change) {
+    }
+}
@@ -0,0 +1,24 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import java.nio.file.Path;
+
+/**
+ * One change of the tree under {@code file.base.dir}, reported by the {@link java.nio.file.WatchService}
+ * or by the application's own writes.
+ */
+public record FileChange(
+        Path path,
+        Kind kind,
+        String type,  // DIR, FILE, SYMLINK or null if not known when the change was seen
+        FileNode written  // what a write by the application left at path, null for WatchService events
+) {
+    public FileChange(Path path, Kind kind, String type) {
+        this(path, kind, type, null);
+    }
+
+    public enum Kind {
+        ADDED,
+        REMOVED,
+        MODIFIED
+    }
+}
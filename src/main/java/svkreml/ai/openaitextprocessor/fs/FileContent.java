@@ -0,0 +1,166 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * One version of a file as cached by {@link FileContentCache}: either the whole content, held as bytes and decoded
+ * text, or, for a large file, only a {@link LineIndex} with ranges read from disk on demand.
+ * <p>
+ * Offsets are in bytes, lines are 1-based and end with {@code '\n'} as in {@link LineIndex}.
+ */
+public final class FileContent {
+
+    private final Path path;
+    private final long size;
+    private final FileTime modified;
+    private final byte[] bytes;
+    private final String text;
+    private final LineIndex index;
+    private final int[] lineStarts;
+    private String sha256;
+
+    private FileContent(Path path, long size, FileTime modified, byte[] bytes, String text, LineIndex index) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.bytes = bytes;
+        this.text = text;
+        this.index = index;
+        this.lineStarts = bytes != null ? lineStarts(bytes) : null;
+    }
+
+    /**
+     * @throws CharacterCodingException if the content is not valid UTF-8
+     */
+    static FileContent inMemory(Path path, FileTime modified, byte[] bytes) throws CharacterCodingException {
+        return new FileContent(path, bytes.length, modified, bytes, decode(bytes, 0, bytes.length), null);
+    }
+
+    static FileContent onDisk(Path path, long size, FileTime modified) {
+        return new FileContent(path, size, modified, null, null, new LineIndex(size, modified));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean inMemory() {
+        return bytes != null;
+    }
+
+    boolean matches(long size, FileTime modified) {
+        return this.size == size && this.modified.equals(modified);
+    }
+
+    /**
+     * Approximate heap taken by this entry, for the cache budget.
+     */
+    long weight() {
+        if (bytes == null) {
+            return 1024;
+        }
+        return bytes.length + 2L * text.length() + 4L * lineStarts.length;
+    }
+
+    /**
+     * The whole content; read from disk each time unless {@link #inMemory()}.
+     */
+    public String text() throws IOException {
+        return text != null ? text : decode(read(0, (int) Math.min(size, Integer.MAX_VALUE - 8)));
+    }
+
+    /**
+     * {@link ContentHash} of the content; a large file is hashed once per version.
+     */
+    public synchronized String sha256() throws IOException {
+        if (sha256 == null) {
+            if (bytes != null) {
+                sha256 = ContentHash.of(bytes);
+            } else {
+                MessageDigest digest = ContentHash.newDigest();
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < size) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                        int read = channel.read(buffer, position);
+                        if (read <= 0) {
+                            break;
+                        }
+                        digest.update(buffer.flip());
+                        position += read;
+                    }
+                }
+                sha256 = ContentHash.hex(digest.digest());
+            }
+        }
+        return sha256;
+    }
+
+    /**
+     * Up to {@code length} bytes from {@code offset}; fewer at the end of the file.
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        int count = (int) Math.max(0, Math.min(length, size - offset));
+        if (bytes != null) {
+            return Arrays.copyOfRange(bytes, (int) offset, (int) offset + count);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // читаем, пока файл не кончится
+            }
+        }
+        return buffer.position() == count ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @return offset where line {@code line} starts, the size if it would start at the end of the file, or {@code -1}
+     * if the file has fewer than {@code line - 1} newlines
+     */
+    public long lineStart(int line) throws IOException {
+        if (line < 1) {
+            throw new IllegalArgumentException("Invalid line number: " + line);
+        }
+        if (bytes == null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return index.start(channel, line);
+            }
+        }
+        return line - 1 < lineStarts.length ? lineStarts[line - 1] : -1;
+    }
+
+    private static int[] lineStarts(byte[] bytes) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * Strict UTF-8 like {@link java.nio.file.Files#readString}: malformed input is an error, not replacement characters.
+     */
+    public static String decode(byte[] bytes) throws CharacterCodingException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+    }
+}
@@ -0,0 +1,95 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used {@link FileContent}s of files read by {@code fileReader}, keyed by path and validated by size
+ * and modification time on every access, so a changed file is simply read again.
+ * <p>
+ * Files up to {@code file.reader.cache.max-file-size} are held whole, as bytes and decoded text; larger ones only
+ * with a sparse line index, so a page of a large file costs one positioned read. Entries are evicted when their total
+ * {@link FileContent#weight()} exceeds {@code file.reader.cache.max-bytes}.
+ */
+@Slf4j
+@Component
+public class FileContentCache {
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final LinkedHashMap<Path, FileContent> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+
+    @Autowired
+    public FileContentCache(
+            @Value("${file.reader.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${file.reader.cache.max-file-size:1048576}") long maxFileSize
+    ) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Instance that keeps nothing, for tools created outside the Spring context.
+     */
+    public static FileContentCache uncached() {
+        return new FileContentCache(0, 0);
+    }
+
+    /**
+     * The current version of a regular file.
+     *
+     * @throws java.nio.charset.CharacterCodingException if a file held in memory is not valid UTF-8
+     */
+    public FileContent get(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (this) {
+            FileContent cached = entries.get(path);
+            if (cached != null && cached.matches(attributes.size(), attributes.lastModifiedTime())) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        FileContent content = attributes.size() <= maxFileSize
+                ? FileContent.inMemory(path, attributes.lastModifiedTime(), Files.readAllBytes(path))
+                : FileContent.onDisk(path, attributes.size(), attributes.lastModifiedTime());
+        if (content.inMemory() && content.size() != attributes.size()) {
+            // Файл менялся во время чтения: отдаём прочитанное, но не кэшируем
+            return content;
+        }
+        put(path, content);
+        return content;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private synchronized void put(Path path, FileContent content) {
+        FileContent previous = entries.put(path, content);
+        weight += content.weight() - (previous != null ? previous.weight() : 0);
+        Iterator<Map.Entry<Path, FileContent>> eldest = entries.entrySet().iterator();
+        while (weight > maxBytes && eldest.hasNext()) {
+            weight -= eldest.next().getValue().weight();
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Cached attributes of one file system entry (read with {@code NOFOLLOW_LINKS}).
+ */
+public record FileNode(
+        Path path,
+        String type,  // DIR, FILE, SYMLINK
+        long size,
+        FileTime modified
+) {
+    public static final String DIR = "DIR";
+    public static final String FILE = "FILE";
+    public static final String SYMLINK = "SYMLINK";
+
+    public static FileNode of(Path path, BasicFileAttributes attrs) {
+        String type = FILE;
+        if (attrs.isDirectory()) type = DIR;
+        else if (attrs.isSymbolicLink()) type = SYMLINK;
+        return new FileNode(path, type, attrs.size(), attrs.lastModifiedTime());
+    }
+
+    public String name() {
+        return path.getFileName().toString();
+    }
+
+    public boolean isDirectory() {
+        return DIR.equals(type);
+    }
+
+    public boolean isFile() {
+        return FILE.equals(type);
+    }
+}
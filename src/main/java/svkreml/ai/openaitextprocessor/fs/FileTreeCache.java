@@ -0,0 +1,526 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Predicate;
+
+/**
+ * In-memory model of the directory tree under {@code file.base.dir} shared by all file tools.
+ * <p>
+ * Directory listings (child names, types, sizes, mtimes) are loaded lazily and kept until a {@link WatchService}
+ * event for the directory invalidates them; writes done through {@code FileWriter} are applied directly via
+ * {@link #written(Path)}. The total number of cached nodes is bounded by {@code file.tree-cache.max-nodes},
+ * least recently used listings are evicted first. Directories that cannot be watched are never cached.
+ * With {@code file.tree-cache.enabled=false} every call goes to the file system.
+ * <p>
+ * A directory stays watched after its listing has been invalidated, so every change below a listed directory
+ * is reported to the registered {@link ChangeListener}s until the listing is evicted.
+ * <p>
+ * Directories passed to {@link #hide(Path)} (the {@code chat.memory.dir} and the trigram index directory) do not
+ * exist for the tools: they are left out of listings and walks, {@link #stat(Path)} does not find them and changes
+ * inside them neither invalidate listings nor reach the listeners.
+ */
+@Slf4j
+@Component
+public class FileTreeCache {
+
+    private final Path basePath;
+    private final boolean enabled;
+    private final int maxNodes;
+    private final boolean watch;
+
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<Path> hidden = new CopyOnWriteArraySet<>();
+    private int cachedNodes;
+    private long invalidations;
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile boolean closed;
+
+    @Autowired
+    public FileTreeCache(
+            @Value("${file.base.dir:./}") String baseDir,
+            @Value("${file.tree-cache.enabled:true}") boolean enabled,
+            @Value("${file.tree-cache.max-nodes:500000}") int maxNodes,
+            @Value("${file.tree-cache.watch:true}") boolean watch,
+            @Value("${chat.memory.dir:chat-memory}") String chatMemoryDir
+    ) {
+        this(baseDir, enabled, maxNodes, watch);
+        if (!chatMemoryDir.isBlank()) {
+            hide(Paths.get(chatMemoryDir));
+        }
+    }
+
+    public FileTreeCache(String baseDir, boolean enabled, int maxNodes, boolean watch) {
+        this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.enabled = enabled;
+        this.maxNodes = maxNodes;
+        this.watch = watch;
+        log.info("File tree cache: base={}, enabled={}, maxNodes={}", basePath, enabled, maxNodes);
+    }
+
+    /**
+     * Pass-through instance without caching, for tools created outside the Spring context.
+     */
+    public static FileTreeCache uncached(String baseDir) {
+        return new FileTreeCache(baseDir, false, 0, false);
+    }
+
+    public Path basePath() {
+        return basePath;
+    }
+
+    public boolean covers(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(basePath);
+    }
+
+    /**
+     * Hides {@code dir} and everything below it from the tools, wherever it is.
+     */
+    public void hide(Path dir) {
+        Path normalized = dir.toAbsolutePath().normalize();
+        hidden.add(normalized);
+        if (normalized.getParent() != null) {
+            invalidate(normalized.getParent());
+        }
+        log.info("Hidden from file tools: {}", normalized);
+    }
+
+    public boolean isHidden(Path path) {
+        if (hidden.isEmpty()) {
+            return false;
+        }
+        Path normalized = path.toAbsolutePath().normalize();
+        for (Path dir : hidden) {
+            if (normalized.startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether listed directories are watched, i.e. whether {@link ChangeListener}s get any events.
+     */
+    public boolean isWatching() {
+        return enabled && watch;
+    }
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Children of {@code dir} sorted by name.
+     *
+     * @throws NoSuchFileException   if the directory does not exist
+     * @throws NotDirectoryException if the path is not a directory
+     */
+    public List<FileNode> list(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        if (isHidden(dir)) {
+            throw new NoSuchFileException(dir.toString());
+        }
+        if (!enabled || !covers(dir)) {
+            return readListing(dir);
+        }
+        long generation;
+        synchronized (this) {
+            Listing cached = listings.get(dir);
+            if (cached != null) {
+                return cached.children;
+            }
+            // Подписываемся до чтения, чтобы не потерять изменения между чтением и регистрацией
+            if (!watchKeys.containsKey(dir)) {
+                register(dir);
+            }
+            generation = invalidations;
+        }
+        List<FileNode> children = readListing(dir);
+        synchronized (this) {
+            if (watchKeys.containsKey(dir) && generation == invalidations) {
+                Listing previous = listings.put(dir, new Listing(children));
+                cachedNodes += children.size() - (previous != null ? previous.children.size() : 0);
+                evictOverBudget(dir);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Attributes of {@code path} taken from the parent's listing, or empty if it does not exist.
+     */
+    public Optional<FileNode> stat(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        if (isHidden(path)) {
+            return Optional.empty();
+        }
+        Path parent = path.getParent();
+        if (!enabled || parent == null || !covers(parent)) {
+            return readNode(path);
+        }
+        try {
+            List<FileNode> siblings = list(parent);
+            int index = indexOf(siblings, path.getFileName().toString());
+            return index >= 0 ? Optional.of(siblings.get(index)) : Optional.empty();
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Lazy depth-first walk over the non-directory entries under {@code root}, entries sorted by name;
+     * directories rejected by {@code skipDirectory} are not entered.
+     */
+    public Iterator<FileNode> walkFiles(Path root, Predicate<Path> skipDirectory) {
+        Path start = root.toAbsolutePath().normalize();
+        return new Iterator<>() {
+            private final Deque<Object> stack = new ArrayDeque<>(List.of(start));
+            private FileNode next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !stack.isEmpty()) {
+                    Object item = stack.pop();
+                    if (item instanceof FileNode node && !node.isDirectory()) {
+                        next = node;
+                        continue;
+                    }
+                    Path dir = item instanceof FileNode node ? node.path() : (Path) item;
+                    if (!dir.equals(start) && skipDirectory.test(dir)) {
+                        continue;
+                    }
+                    List<FileNode> children;
+                    try {
+                        children = list(dir);
+                    } catch (IOException e) {
+                        log.warn("Access denied to: {}", dir, e);
+                        continue;
+                    }
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(children.get(i));
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public FileNode next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                FileNode result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Write-through for changes made by the application itself: refreshes the entry of {@code path}
+     * and of every ancestor whose listing is cached (parent directories may have just been created).
+     * Listeners get {@code path} as added or modified and every ancestor that did not exist before as added.
+     */
+    public void written(Path path) {
+        Path written = path.toAbsolutePath().normalize();
+        if (!enabled || isHidden(written)) {
+            return;
+        }
+        Path child = written;
+        synchronized (this) {
+            while (child.getParent() != null && covers(child.getParent())) {
+                Path dir = child.getParent();
+                Listing listing = listings.get(dir);
+                FileNode previous = listing != null ? listing.find(child) : null;
+                FileNode current = null;
+                try {
+                    current = readNode(child).orElse(null);
+                    if (listing != null) {
+                        listing.replace(child, current);
+                    }
+                } catch (IOException e) {
+                    invalidate(dir);
+                }
+                if (child.equals(written) || (listing != null && previous == null && current != null)) {
+                    FileChange.Kind kind = listing != null && previous == null ? FileChange.Kind.ADDED : FileChange.Kind.MODIFIED;
+                    fireChanged(new FileChange(child, kind, current != null ? current.type() : null, current));
+                }
+                child = dir;
+            }
+        }
+    }
+
+    /**
+     * Drops the cached listing of {@code dir} and of all directories below it; they stay watched.
+     */
+    public synchronized void invalidate(Path dir) {
+        Path normalized = dir.toAbsolutePath().normalize();
+        invalidations++;
+        Iterator<Map.Entry<Path, Listing>> iterator = listings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Listing> entry = iterator.next();
+            if (entry.getKey().startsWith(normalized)) {
+                drop(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Applies the watch events the file system has already queued on the calling thread instead of waiting for the
+     * watcher, so listings read right after this call reflect changes reported so far.
+     */
+    public void drainEvents() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        if (service == null || closed) {
+            return;
+        }
+        try {
+            WatchKey key;
+            while ((key = service.poll()) != null) {
+                process(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Кэш закрыт, событий больше не будет
+        }
+    }
+
+    public synchronized int cachedNodes() {
+        return cachedNodes;
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            listings.clear();
+            watchKeys.values().forEach(WatchKey::cancel);
+            watchKeys.clear();
+            cachedNodes = 0;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    log.warn("Cannot close watch service: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private List<FileNode> readListing(Path dir) throws IOException {
+        BasicFileAttributes dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+        if (!dirAttrs.isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        List<FileNode> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (isHidden(path)) {
+                    continue;
+                }
+                try {
+                    children.add(FileNode.of(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+                } catch (IOException e) {
+                    log.warn("Skipping inaccessible path: {}", path, e);
+                }
+            }
+        }
+        children.sort(Comparator.comparing(FileNode::name));
+        return Collections.unmodifiableList(children);
+    }
+
+    private static Optional<FileNode> readNode(Path path) throws IOException {
+        try {
+            return Optional.of(FileNode.of(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    private void register(Path dir) {
+        if (!watch || closed) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                watchService = dir.getFileSystem().newWatchService();
+                watcher = Thread.ofPlatform().daemon().name("file-tree-watcher").start(this::watchLoop);
+            }
+            watchKeys.put(dir, dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            // readListing сообщит об ошибке вызывающему
+        } catch (IOException | ClosedWatchServiceException e) {
+            log.warn("Cannot watch {}, it will not be cached: {}", dir, e.getMessage());
+            fireWatchLost(dir);
+        }
+    }
+
+    private void watchLoop() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            process(key);
+        }
+    }
+
+    private void process(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        List<WatchEvent<?>> events = key.pollEvents();
+        onEvents(dir, events);
+        if (!key.reset()) {
+            synchronized (this) {
+                watchKeys.remove(dir, key);
+                invalidate(dir);
+            }
+        }
+    }
+
+    /**
+     * Drops the listing of {@code dir}; created or deleted children lose their subtree as well,
+     * a modified child directory keeps it (its own watch key reports its content changes).
+     */
+    private synchronized void onEvents(Path dir, List<WatchEvent<?>> events) {
+        // Скрытых каталогов нет в листингах, поэтому их изменения листинги не сбрасывают
+        events = events.stream()
+                .filter(event -> event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || !isHidden(dir.resolve((Path) event.context())))
+                .toList();
+        if (events.isEmpty()) {
+            return;
+        }
+        invalidations++;
+        Listing listing = listings.remove(dir);
+        if (listing != null) {
+            drop(listing);
+        }
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                invalidate(dir);
+                fireWatchLost(dir);
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                fireChanged(new FileChange(child, FileChange.Kind.MODIFIED, null));
+                continue;
+            }
+            invalidate(child);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                fireChanged(new FileChange(child, FileChange.Kind.ADDED, null));
+            } else {
+                FileNode previous = listing != null ? listing.find(child) : null;
+                fireChanged(new FileChange(child, FileChange.Kind.REMOVED, previous != null ? previous.type() : null));
+            }
+        }
+        log.debug("File tree cache invalidated {} after {} events", dir, events.size());
+    }
+
+    private static int indexOf(List<FileNode> sorted, String name) {
+        int low = 0;
+        int high = sorted.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = sorted.get(mid).name().compareTo(name);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private void evictOverBudget(Path keep) {
+        Iterator<Map.Entry<Path, Listing>> iterator = listings.entrySet().iterator();
+        while (cachedNodes > maxNodes && iterator.hasNext()) {
+            Map.Entry<Path, Listing> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            drop(eldest.getValue());
+            iterator.remove();
+            // Вытесненный каталог больше не отслеживается, иначе число подписок росло бы без ограничений
+            WatchKey key = watchKeys.remove(eldest.getKey());
+            if (key != null) {
+                key.cancel();
+                fireWatchLost(eldest.getKey());
+            }
+        }
+    }
+
+    private void drop(Listing listing) {
+        cachedNodes -= listing.children.size();
+    }
+
+    private void fireChanged(FileChange change) {
+        for (ChangeListener listener : listeners) {
+            listener.changed(change);
+        }
+    }
+
+    private void fireWatchLost(Path dir) {
+        for (ChangeListener listener : listeners) {
+            listener.watchLost(dir);
+        }
+    }
+
+    /**
+     * Receives changes under watched directories. Called synchronously on the watcher or writer thread
+     * while the cache is locked, so implementations must be quick and must not call back into the cache.
+     */
+    public interface ChangeListener {
+
+        void changed(FileChange change);
+
+        /**
+         * Changes below {@code dir} may have been missed (watch cancelled, not possible or events overflowed).
+         */
+        void watchLost(Path dir);
+    }
+
+    private final class Listing {
+        private List<FileNode> children;
+
+        private Listing(List<FileNode> children) {
+            this.children = children;
+        }
+
+        FileNode find(Path child) {
+            int index = indexOf(children, child.getFileName().toString());
+            return index >= 0 ? children.get(index) : null;
+        }
+
+        /**
+         * Copy-on-write update so lists already handed out stay unchanged.
+         */
+        void replace(Path child, FileNode node) {
+            List<FileNode> updated = new ArrayList<>(children);
+            String name = child.getFileName().toString();
+            updated.removeIf(existing -> existing.name().equals(name));
+            if (node != null) {
+                updated.add(node);
+                updated.sort(Comparator.comparing(FileNode::name));
+            }
+            cachedNodes += updated.size() - children.size();
+            children = Collections.unmodifiableList(updated);
+        }
+    }
+}
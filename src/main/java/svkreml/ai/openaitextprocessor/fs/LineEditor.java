@@ -0,0 +1,423 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Applies line edits to a file in one streaming pass.
+ * <p>
+ * Line numbers of all edits in a batch refer to the file as it was before the batch, so they do not drift. Unchanged
+ * byte ranges between edits are copied with {@link FileChannel#transferTo} into a temporary file next to the target,
+ * which then replaces the target with an atomic move; a failed edit leaves the file untouched. Line offsets come from a
+ * {@link LineIndex} cached per file and validated by size and modification time; after an edit the index keeps the
+ * offsets before the first changed byte. New lines are written with the separator of the file.
+ * <p>
+ * {@link #patch} also checks the {@link ContentHash} of the original in the same pass; the unchanged ranges then go
+ * through a buffer and both digests instead of {@code transferTo}. A batch of {@link Kind#MATCH} checks only reads.
+ * <p>
+ * Batches on the same file are applied one at a time, so concurrent edits each see the result of the previous one
+ * instead of one of them being lost.
+ */
+@Slf4j
+@Component
+public class LineEditor {
+
+    private final Map<Path, LineIndex> indexes;
+    private final Map<Path, PathLock> locks = new HashMap<>();
+
+    public LineEditor() {
+        this(32);
+    }
+
+    public LineEditor(@Value("${file.line-index.cache-size:32}") int cacheSize) {
+        this.indexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public enum Kind {
+        /**
+         * Inserts lines before the line; past the end of the file they are appended.
+         */
+        INSERT,
+        /**
+         * Changes nothing; the batch fails unless the line, without its terminator, equals the only element of
+         * {@code lines}.
+         */
+        MATCH,
+        /**
+         * Replaces the line, keeping its terminator.
+         */
+        REPLACE,
+        /**
+         * Removes the line with its terminator.
+         */
+        DELETE
+    }
+
+    public record Edit(int line, Kind kind, List<String> lines) {
+
+        public static Edit insert(int line, List<String> lines) {
+            return new Edit(line, Kind.INSERT, lines);
+        }
+
+        public static Edit match(int line, String content) {
+            return new Edit(line, Kind.MATCH, List.of(content));
+        }
+
+        public static Edit replace(int line, List<String> lines) {
+            return new Edit(line, Kind.REPLACE, lines);
+        }
+
+        public static Edit delete(int line) {
+            return new Edit(line, Kind.DELETE, List.of());
+        }
+    }
+
+    /**
+     * @param lines  the line where each edit took effect, as returned by {@link #apply}
+     * @param sha256 {@link ContentHash} of the new content, or {@code null} if no hash was expected
+     */
+    public record Patched(List<Integer> lines, String sha256) {
+    }
+
+    /**
+     * Applies {@code edits} to {@code path}. A missing file is created if all edits are inserts.
+     *
+     * @return the line where each edit took effect, in the order of {@code edits}; an insert past the end reports the
+     * line it was appended at
+     * @throws IndexOutOfBoundsException if a matched, replaced or deleted line does not exist
+     * @throws IllegalArgumentException  if a line number is below 1 or a line is replaced or deleted twice
+     * @throws IllegalStateException     if a {@link Kind#MATCH} fails
+     */
+    public List<Integer> apply(Path path, List<Edit> edits) throws IOException {
+        return patch(path, edits, null).lines();
+    }
+
+    /**
+     * Like {@link #apply}, but if {@code expectedSha256} is not {@code null} the batch fails with
+     * {@link IllegalStateException} unless it is the {@link ContentHash} of the file (of empty content for a missing
+     * file), and the hash of the new content is returned.
+     */
+    public Patched patch(Path path, List<Edit> edits, String expectedSha256) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        PathLock lock = lock(key);
+        try {
+            return patchLocked(path, edits, expectedSha256);
+        } finally {
+            unlock(key, lock);
+        }
+    }
+
+    private Patched patchLocked(Path path, List<Edit> edits, String expectedSha256) throws IOException {
+        Integer[] order = new Integer[edits.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            if (edits.get(i).line() < 1) {
+                throw new IllegalArgumentException("Invalid line number: " + edits.get(i).line());
+            }
+        }
+        // Вставки, затем проверки, затем замена или удаление той же строки; иначе порядок запроса
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> edits.get(i).line())
+                .thenComparingInt(i -> Math.min(edits.get(i).kind().ordinal(), Kind.REPLACE.ordinal())));
+        for (int i = 1; i < order.length; i++) {
+            Edit previous = edits.get(order[i - 1]);
+            Edit current = edits.get(order[i]);
+            if (changesLine(current) && changesLine(previous) && previous.line() == current.line()) {
+                throw new IllegalArgumentException("Line " + current.line() + " is changed more than once");
+            }
+        }
+
+        boolean exists = Files.exists(path);
+        if (!exists && edits.stream().anyMatch(edit -> edit.kind() != Kind.INSERT)) {
+            throw new NoSuchFileException("File not found: " + path);
+        }
+        Integer[] applied = new Integer[edits.size()];
+        if (!edits.isEmpty() && edits.stream().allMatch(edit -> edit.kind() == Kind.MATCH)) {
+            return check(path, edits, order, applied, expectedSha256);
+        }
+        String sha256;
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName(), ".tmp");
+        try {
+            long firstChange;
+            try (FileChannel source = exists ? FileChannel.open(path, StandardOpenOption.READ) : null;
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                LineIndex index = exists ? index(path) : new LineIndex(0, FileTime.fromMillis(0));
+                Pass pass = new Pass(source, index, target, expectedSha256 != null);
+                firstChange = pass.run(edits, order, applied);
+                if (expectedSha256 != null) {
+                    String actual = ContentHash.hex(pass.sourceDigest.digest());
+                    if (!actual.equalsIgnoreCase(expectedSha256)) {
+                        throw new IllegalStateException("Content hash mismatch: file has changed, its sha256 is " + actual);
+                    }
+                }
+                sha256 = expectedSha256 != null ? ContentHash.hex(pass.targetDigest.digest()) : null;
+                target.force(false);
+            }
+            if (exists) {
+                copyPermissions(path, temp);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            updateIndex(path, firstChange);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return new Patched(Arrays.asList(applied), sha256);
+    }
+
+    /**
+     * Runs a batch of {@link Kind#MATCH} checks without a target: the file stays as it is.
+     */
+    private Patched check(Path path, List<Edit> edits, Integer[] order, Integer[] applied, String expectedSha256)
+            throws IOException {
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+            Pass pass = new Pass(source, index(path), null, expectedSha256 != null);
+            pass.run(edits, order, applied);
+            String sha256 = null;
+            if (expectedSha256 != null) {
+                sha256 = ContentHash.hex(pass.sourceDigest.digest());
+                if (!sha256.equalsIgnoreCase(expectedSha256)) {
+                    throw new IllegalStateException("Content hash mismatch: file has changed, its sha256 is " + sha256);
+                }
+            }
+            return new Patched(Arrays.asList(applied), sha256);
+        }
+    }
+
+    private PathLock lock(Path path) {
+        PathLock lock;
+        synchronized (locks) {
+            lock = locks.computeIfAbsent(path, key -> new PathLock());
+            lock.users++;
+        }
+        lock.lock();
+        return lock;
+    }
+
+    private void unlock(Path path, PathLock lock) {
+        lock.unlock();
+        synchronized (locks) {
+            if (--lock.users == 0) {
+                locks.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Lock of one file, dropped from {@link #locks} once no batch holds or waits for it. A {@link ReentrantLock}
+     * rather than a monitor, because tools run on virtual threads and wait here for file I/O.
+     */
+    private static final class PathLock extends ReentrantLock {
+        private int users;
+    }
+
+    private static boolean changesLine(Edit edit) {
+        return edit.kind() == Kind.REPLACE || edit.kind() == Kind.DELETE;
+    }
+
+    /**
+     * One pass from the source to the target, or over the source only if there is no target; the first
+     * {@code copied} bytes of the source are already handled.
+     */
+    private static final class Pass {
+
+        private final FileChannel source;
+        private final LineIndex index;
+        private final FileChannel target;
+        private final MessageDigest sourceDigest;
+        private final MessageDigest targetDigest;
+        private final String separator;
+        private long copied;
+
+        Pass(FileChannel source, LineIndex index, FileChannel target, boolean hash) throws IOException {
+            this.source = source;
+            this.index = index;
+            this.target = target;
+            this.sourceDigest = hash ? ContentHash.newDigest() : null;
+            this.targetDigest = hash ? ContentHash.newDigest() : null;
+            String fileSeparator = source != null ? index.separator(source) : null;
+            this.separator = fileSeparator != null ? fileSeparator : System.lineSeparator();
+        }
+
+        long run(List<Edit> edits, Integer[] order, Integer[] applied) throws IOException {
+            long size = index.size();
+            long firstChange = -1;
+            boolean lastLineOpen = size > 0 && !index.endsWithNewline(source);
+            for (Integer i : order) {
+                Edit edit = edits.get(i);
+                long start = source != null ? index.start(source, edit.line()) : (edit.line() == 1 ? 0 : -1);
+                if (edit.kind() == Kind.INSERT) {
+                    StringBuilder text = new StringBuilder();
+                    int line = edit.line();
+                    if (start < 0) {
+                        // За концом файла: дописываем, при необходимости закрыв последнюю строку
+                        start = size;
+                        line = (int) (source != null ? index.lineCount(source) : 0) + 1;
+                        if (lastLineOpen) {
+                            text.append(separator);
+                            lastLineOpen = false;
+                        }
+                    }
+                    copyTo(start);
+                    for (String newLine : edit.lines()) {
+                        text.append(newLine).append(separator);
+                    }
+                    write(text);
+                    applied[i] = line;
+                } else {
+                    if (start < 0 || start >= size) {
+                        throw new IndexOutOfBoundsException("Line number " + edit.line() + " exceeds file length ("
+                                + index.lineCount(source) + " lines)");
+                    }
+                    long end = index.start(source, edit.line() + 1);
+                    if (end < 0) {
+                        end = size;
+                    }
+                    String terminator = terminator(start, end);
+                    applied[i] = edit.line();
+                    if (edit.kind() == Kind.MATCH) {
+                        // Проверка ничего не меняет и не двигает копирование
+                        match(edit, start, end - terminator.length());
+                        continue;
+                    }
+                    copyTo(start);
+                    if (edit.kind() == Kind.REPLACE) {
+                        write(String.join(separator, edit.lines()) + terminator);
+                    }
+                    skipTo(end);
+                }
+                if (firstChange < 0) {
+                    firstChange = start;
+                }
+            }
+            copyTo(size);
+            return firstChange;
+        }
+
+        private void copyTo(long to) throws IOException {
+            if (sourceDigest != null) {
+                digestTo(to, target != null);
+            }
+            if (target == null) {
+                copied = Math.max(copied, to);
+                return;
+            }
+            while (copied < to) {
+                long transferred = source.transferTo(copied, to - copied, target);
+                if (transferred <= 0) {
+                    // Файл укоротили снаружи во время правки
+                    throw new IOException("Unexpected end of file at " + copied);
+                }
+                copied += transferred;
+            }
+        }
+
+        private void skipTo(long to) throws IOException {
+            if (sourceDigest != null) {
+                digestTo(to, false);
+            }
+            copied = Math.max(copied, to);
+        }
+
+        /**
+         * Reads the source up to {@code to} into the digest and, if {@code write}, into the target as well.
+         */
+        private void digestTo(long to, boolean write) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(1, to - copied)));
+            while (copied < to) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - copied));
+                int read = source.read(buffer, copied);
+                if (read <= 0) {
+                    throw new IOException("Unexpected end of file at " + copied);
+                }
+                buffer.flip();
+                sourceDigest.update(buffer.duplicate());
+                if (write) {
+                    targetDigest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+                copied += read;
+            }
+        }
+
+        private void write(CharSequence text) throws IOException {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+            if (targetDigest != null) {
+                targetDigest.update(bytes.duplicate());
+            }
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+        }
+
+        private void match(Edit edit, long start, long end) throws IOException {
+            String expected = edit.lines().get(0);
+            // Длина строки в байтах не меньше числа символов, длинную строку заведомо не читаем целиком
+            ByteBuffer line = ByteBuffer.allocate((int) Math.min(end - start, expected.length() * 4L + 4));
+            while (line.hasRemaining() && source.read(line, start + line.position()) > 0) {
+                // читаем до конца буфера
+            }
+            String actual = new String(line.array(), 0, line.position(), StandardCharsets.UTF_8);
+            if (line.position() != end - start || !actual.equals(expected)) {
+                throw new IllegalStateException("Line " + edit.line() + " does not match: expected '" + expected
+                        + "', found '" + actual + (line.position() < end - start ? "...'" : "'"));
+            }
+        }
+
+        private String terminator(long start, long end) throws IOException {
+            if (end <= start || LineIndex.byteAt(source, end - 1) != '\n') {
+                return "";
+            }
+            return end - 2 >= start && LineIndex.byteAt(source, end - 2) == '\r' ? "\r\n" : "\n";
+        }
+    }
+
+    private LineIndex index(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (indexes) {
+            LineIndex index = indexes.get(path);
+            if (index == null || !index.matches(attributes.size(), attributes.lastModifiedTime())) {
+                index = new LineIndex(attributes.size(), attributes.lastModifiedTime());
+                indexes.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    private void updateIndex(Path path, long firstChange) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (indexes) {
+            LineIndex previous = indexes.get(path);
+            if (previous == null) {
+                return;
+            }
+            indexes.put(path, previous.keepPrefix(Math.max(0, firstChange), attributes.size(), attributes.lastModifiedTime()));
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        if (view != null) {
+            // Временный файл создаётся с правами 600, возвращаем права исходного
+            Files.setPosixFilePermissions(to, view.readAttributes().permissions());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+/**
+ * Sparse, lazily extended index of line start offsets of one version of a file.
+ * <p>
+ * Every {@link #STEP}-th line start is remembered, and the file is scanned only as far as the furthest line asked for,
+ * so finding line 10 of a 2GB file reads a few kilobytes. Lines end with {@code '\n'} (a preceding {@code '\r'} belongs
+ * to the terminator); the content is treated as bytes, which is exact for UTF-8 and other ASCII-compatible encodings.
+ */
+final class LineIndex {
+
+    static final int STEP = 1024;
+
+    private final long size;
+    private final FileTime modified;
+    /**
+     * {@code checkpoints[i]} is the offset of line {@code i * STEP + 1}.
+     */
+    private long[] checkpoints;
+    private int checkpointCount;
+    /**
+     * Newlines before {@link #scanned} have been counted.
+     */
+    private long scanned;
+    private long newlines;
+    private boolean crlf;
+    private boolean crlfKnown;
+
+    LineIndex(long size, FileTime modified) {
+        this.size = size;
+        this.modified = modified;
+        this.checkpoints = new long[16];
+        this.checkpoints[0] = 0;
+        this.checkpointCount = 1;
+    }
+
+    /**
+     * A copy for a new version of the file that differs from this one only at or after {@code changedFrom}.
+     */
+    synchronized LineIndex keepPrefix(long changedFrom, long newSize, FileTime newModified) {
+        LineIndex index = new LineIndex(newSize, newModified);
+        int keep = 1;
+        while (keep < checkpointCount && checkpoints[keep] <= changedFrom) {
+            keep++;
+        }
+        index.checkpoints = Arrays.copyOf(checkpoints, Math.max(16, keep));
+        index.checkpointCount = keep;
+        index.scanned = checkpoints[keep - 1];
+        index.newlines = (long) (keep - 1) * STEP;
+        return index;
+    }
+
+    boolean matches(long size, FileTime modified) {
+        return this.size == size && this.modified.equals(modified);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return offset where line {@code line} (1-based) starts, equal to the size if it would start at the end of the
+     * file, or {@code -1} if the file has fewer than {@code line - 1} newlines
+     */
+    synchronized long start(FileChannel channel, int line) throws IOException {
+        if (line < 1) {
+            throw new IllegalArgumentException("Invalid line number: " + line);
+        }
+        long wanted = line - 1L;
+        int checkpoint = (int) Math.min(wanted / STEP, checkpointCount - 1);
+        if ((long) checkpoint * STEP == wanted) {
+            return checkpoints[checkpoint];
+        }
+        if (newlines >= wanted) {
+            // Уже просканировано: не больше STEP строк от ближайшей контрольной точки
+            return scan(channel, checkpoints[checkpoint], (long) checkpoint * STEP, wanted);
+        }
+        return scan(channel, scanned, newlines, wanted);
+    }
+
+    /**
+     * Number of lines, counted like {@link java.nio.file.Files#readAllLines}; scans to the end of the file.
+     */
+    synchronized long lineCount(FileChannel channel) throws IOException {
+        scan(channel, scanned, newlines, Long.MAX_VALUE);
+        if (size == 0) {
+            return 0;
+        }
+        return newlines + (endsWithNewline(channel) ? 0 : 1);
+    }
+
+    /**
+     * Line separator used by the file: {@code "\r\n"} if its first line ends so, {@code "\n"} if it ends otherwise,
+     * {@code null} if the file has no newline.
+     */
+    synchronized String separator(FileChannel channel) throws IOException {
+        if (!crlfKnown) {
+            long second = start(channel, 2);
+            if (second < 0) {
+                return null;
+            }
+            crlf = second >= 2 && byteAt(channel, second - 2) == '\r';
+            crlfKnown = true;
+        }
+        return crlf ? "\r\n" : "\n";
+    }
+
+    boolean endsWithNewline(FileChannel channel) throws IOException {
+        return size > 0 && byteAt(channel, size - 1) == '\n';
+    }
+
+    static int byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        return channel.read(one, position) == 1 ? one.get(0) : -1;
+    }
+
+    private long scan(FileChannel channel, long from, long counted, long wanted) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                counted++;
+                long lineStart = position + i + 1;
+                remember(counted, lineStart);
+                if (counted == wanted) {
+                    return lineStart;
+                }
+            }
+            position += read;
+        }
+        remember(counted, size);
+        return -1;
+    }
+
+    private void remember(long counted, long offset) {
+        if (offset > scanned || counted > newlines) {
+            scanned = offset;
+            newlines = counted;
+        }
+        if (counted % STEP == 0 && counted / STEP == checkpointCount) {
+            if (checkpointCount == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+            }
+            checkpoints[checkpointCount++] = offset;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the hunks of a unified diff into {@link LineEditor.Edit}s against the original file.
+ * <p>
+ * Context and removed lines become {@link LineEditor.Kind#MATCH} checks, so a diff made for another version of the file
+ * fails instead of being applied to the wrong lines. File headers ({@code diff}, {@code index}, {@code ---},
+ * {@code +++}) and {@code \ No newline at end of file} markers are skipped.
+ */
+public final class UnifiedDiff {
+
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+\\d+(?:,(\\d+))? @@.*");
+
+    private UnifiedDiff() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the diff has no hunks or a hunk line is malformed
+     */
+    public static List<LineEditor.Edit> parse(String diff) {
+        List<LineEditor.Edit> edits = new ArrayList<>();
+        String[] lines = diff.split("\\R", -1);
+        int line = 0;
+        // Строки хунка, ещё не прочитанные, по счётчикам заголовка; вне хунка обе равны нулю
+        int oldRemaining = 0;
+        int newRemaining = 0;
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            String text = lines[i];
+            if (oldRemaining == 0 && newRemaining == 0) {
+                flush(edits, line, added);
+                Matcher header = HUNK_HEADER.matcher(text);
+                if (header.matches()) {
+                    int start = Integer.parseInt(header.group(1));
+                    oldRemaining = count(header.group(2));
+                    newRemaining = count(header.group(3));
+                    // Пустой исходный диапазон "-5,0" означает вставку после строки 5
+                    line = oldRemaining == 0 ? start + 1 : start;
+                }
+                continue;
+            }
+            if (text.startsWith("\\")) {
+                continue;
+            }
+            if (text.startsWith("+") && newRemaining > 0) {
+                added.add(text.substring(1));
+                newRemaining--;
+                continue;
+            }
+            flush(edits, line, added);
+            if (text.startsWith("-") && oldRemaining > 0) {
+                edits.add(LineEditor.Edit.match(line, text.substring(1)));
+                edits.add(LineEditor.Edit.delete(line));
+            } else if ((text.isEmpty() || text.startsWith(" ")) && oldRemaining > 0 && newRemaining > 0) {
+                // Пустая строка контекста: редакторы и модели часто теряют ведущий пробел
+                edits.add(LineEditor.Edit.match(line, text.isEmpty() ? "" : text.substring(1)));
+                newRemaining--;
+            } else {
+                throw new IllegalArgumentException("Malformed diff line " + (i + 1) + ": " + text);
+            }
+            line++;
+            oldRemaining--;
+        }
+        flush(edits, line, added);
+        if (oldRemaining > 0 || newRemaining > 0) {
+            throw new IllegalArgumentException("Diff ends inside a hunk");
+        }
+        if (edits.isEmpty()) {
+            throw new IllegalArgumentException("Diff contains no hunks");
+        }
+        return edits;
+    }
+
+    private static int count(String group) {
+        return group != null ? Integer.parseInt(group) : 1;
+    }
+
+    private static void flush(List<LineEditor.Edit> edits, int line, List<String> added) {
+        if (!added.isEmpty()) {
+            edits.add(LineEditor.Edit.insert(line, List.copyOf(added)));
+            added.clear();
+        }
+    }
+}
@@ -7,81 +7,120 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Description;
 import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.BreadthFirstWalk;
+import svkreml.ai.openaitextprocessor.fs.ChangeJournal;
+import svkreml.ai.openaitextprocessor.fs.FileChange;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Description("""
         Lists directory contents or full file tree within secured base path.
-        Input: 
+        Input:
           path: Relative directory path (empty for root)
           recursive: true for full tree, false for flat listing (default)
-        Output: 
-          DirectoryListing(path, contents[FileInfo(name, type, size, modified, children[])])
+          since: token from a previous call with the same path and recursive flag (optional)
+          cursor: nextCursor from the previous page to continue a truncated listing (optional)
+          maxNodes: maximum number of entries to return, capped by the server limit (optional)
+        Output:
+          DirectoryListing(path, contents[FileInfo(name, type, size, modified, children[])], token, changes, nextCursor)
           Children present only in recursive mode
+          The tree is filled breadth-first: all entries of a level come before the entries below it.
+          If the node limit is reached nextCursor is set; call again with the same path, recursive flag and this cursor
+            for the next page. In later pages an entry whose parent was returned on an earlier page is placed at the
+            top level and its name is its path relative to 'path'. Only the first page returns a token.
+          With a valid 'since' token contents is null and changes lists only entries changed after that call:
+            changes[FileChange(path, change, node)], change is ADDED, REMOVED or MODIFIED, node is null for REMOVED.
+          If the token is expired the full listing is returned. Pass the returned token to the next call.
         Security: Blocks path traversal.
         Types: 'DIR' for directories, 'FILE' for files, 'SYMLINK' for symbolic links.
         Throws: SecurityException for invalid paths, NotDirectoryException if path not a folder.
-        Examples: 
+        Examples:
           Flat: ('docs', false) → immediate children of docs/
           Tree: ('src', true) → full recursive tree of src/
+          Next page: ('src', true, null, 'main/java/App.java') → entries after main/java/App.java
+          Delta: ('src', true, 'lk3x.1f.5e1a') → only what changed in src/ since that call
         """)
 @Component("directoryLister")
 public class DirectoryLister implements Function<DirectoryLister.InputParams, DirectoryLister.DirectoryListing>, AiTool {
     private static final Logger log = LoggerFactory.getLogger(DirectoryLister.class);
+    private static final int DEFAULT_MAX_NODES = 5000;
+
     private final Path basePath;
     private final int maxDepth;
+    private final int maxNodes;
+    private final FileTreeCache fileTreeCache;
+    private final ChangeJournal changeJournal;
+
+    public DirectoryLister(String baseDir, int maxDepth) {
+        this(baseDir, maxDepth, FileTreeCache.uncached(baseDir));
+    }
+
+    public DirectoryLister(String baseDir, int maxDepth, FileTreeCache fileTreeCache) {
+        this(baseDir, maxDepth, fileTreeCache, new ChangeJournal(fileTreeCache, 100_000));
+    }
+
+    public DirectoryLister(String baseDir, int maxDepth, FileTreeCache fileTreeCache, ChangeJournal changeJournal) {
+        this(baseDir, maxDepth, DEFAULT_MAX_NODES, fileTreeCache, changeJournal);
+    }
 
     @Autowired
     public DirectoryLister(
             @Value("${file.base.dir:./}") String baseDir,
-            @Value("${file.tree.max-depth:10}") int maxDepth
+            @Value("${file.tree.max-depth:10}") int maxDepth,
+            @Value("${file.tree.max-nodes:" + DEFAULT_MAX_NODES + "}") int maxNodes,
+            FileTreeCache fileTreeCache,
+            ChangeJournal changeJournal
     ) {
         this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
         this.maxDepth = maxDepth;
-        log.info("Secure directory listing base path: {}", this.basePath);
+        this.maxNodes = maxNodes;
+        this.fileTreeCache = fileTreeCache;
+        this.changeJournal = changeJournal;
+        log.info("Secure directory listing base path: {}, max nodes per call: {}", this.basePath, maxNodes);
     }
 
     @Tool
     @Override
     public DirectoryListing apply(InputParams input) {
         try {
-            Path resolvedPath = resolveSecurePath(input.path());
-            BasicFileAttributes attrs = Files.readAttributes(
-                    resolvedPath,
-                    BasicFileAttributes.class,
-                    LinkOption.NOFOLLOW_LINKS
-            );
-
-            if (!attrs.isDirectory()) {
-                throw new NotDirectoryException("Path is not a directory: " + input.path());
-            }
+            Path resolvedPath = resolveDirectory(input.path());
+            int budget = input.maxNodes() != null && input.maxNodes() > 0 ? Math.min(input.maxNodes(), maxNodes) : maxNodes;
 
-            List<FileSystemNode> contents = new ArrayList<>();
-            if (input.recursive()) {
-                // Recursive tree traversal
-                contents = buildTree(resolvedPath, 0);
-            } else {
-                // Flat directory listing
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(resolvedPath)) {
-                    for (Path path : stream) {
-                        contents.add(createNode(path));
-                    }
+            // Токен берём до чтения, чтобы изменения во время обхода попали в следующую дельту
+            String scope = "directoryLister:" + resolvedPath + ":" + input.recursive();
+            String token = input.cursor() == null ? changeJournal.token(scope) : null;
+            Optional<List<FileChange>> changes = input.cursor() == null
+                    ? changeJournal.changesSince(input.since(), scope, resolvedPath)
+                    : Optional.empty();
+            if (changes.isPresent()) {
+                List<FileSystemChange> delta = buildDelta(resolvedPath, changes.get(), input.recursive(), budget);
+                if (delta != null) {
+                    log.info("Listed {} changes in {} since {} (recursive: {})",
+                            delta.size(), input.path(), input.since(), input.recursive());
+                    return new DirectoryListing(resolvedPath.toString(), null, null, token, delta, null);
                 }
+                // Изменений больше, чем помещается в ответ, проще отдать листинг заново
             }
 
-            log.info("Listed {} items in {} (recursive: {})",
-                    contents.size(), input.path(), input.recursive());
+            Page page = buildPage(resolvedPath, input.recursive() ? maxDepth : 0, input.cursor(), budget);
+
+            log.info("Listed {} items in {} (recursive: {}, cursor: {}, truncated: {})",
+                    page.count(), input.path(), input.recursive(), input.cursor(), page.nextCursor() != null);
 
             return new DirectoryListing(
                     resolvedPath.toString(),
-                    contents,
-                    null
+                    page.contents(),
+                    null,
+                    token,
+                    null,
+                    page.nextCursor()
             );
         } catch (NoSuchFileException e) {
             log.error("Directory listing failed: {}", input.path(), e);
@@ -92,57 +131,119 @@ public class DirectoryLister implements Function<DirectoryLister.InputParams, Di
         }
     }
 
-    private List<FileSystemNode> buildTree(Path dir, int currentDepth) throws IOException {
-        if (currentDepth > maxDepth) {
-            log.warn("Max depth reached at {}", dir);
-            return Collections.emptyList();
+    /**
+     * Lazy breadth-first stream of the entries below {@code path}, for callers that forward entries as they are
+     * discovered instead of building one response. Each entry carries the cursor that continues after it;
+     * the caller bounds the stream, e.g. with {@link Stream#limit}.
+     */
+    public Stream<FileSystemEntry> stream(String path, boolean recursive, String cursor) throws IOException {
+        Path resolvedPath = resolveDirectory(path);
+        BreadthFirstWalk walk = new BreadthFirstWalk(fileTreeCache, resolvedPath, recursive ? maxDepth : 0, cursor);
+        Spliterator<BreadthFirstWalk.Entry> entries = Spliterators.spliteratorUnknownSize(walk, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(entries, false)
+                .map(entry -> new FileSystemEntry(
+                        entry.cursor(),
+                        entry.node().type(),
+                        entry.node().size(),
+                        entry.node().modified().toString(),
+                        entry.cursor()
+                ));
+    }
+
+    public int maxNodes() {
+        return maxNodes;
+    }
+
+    private Path resolveDirectory(String path) throws IOException {
+        Path resolvedPath = resolveSecurePath(path);
+        FileNode dirNode = fileTreeCache.stat(resolvedPath)
+                .orElseThrow(() -> new NoSuchFileException(path));
+
+        if (!dirNode.isDirectory()) {
+            throw new NotDirectoryException("Path is not a directory: " + path);
         }
+        return resolvedPath;
+    }
 
-        List<FileSystemNode> nodes = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
-            for (Path path : stream) {
-                FileSystemNode node = createNode(path);
-                if (node != null) {
-                    if ("DIR".equals(node.type()) && currentDepth < maxDepth) {
-                        List<FileSystemNode> children = buildTree(path, currentDepth + 1);
-                        node = new FileSystemNode(
-                                node.name(),
-                                node.type(),
-                                node.size(),
-                                node.modified(),
-                                children
-                        );
-                    }
-                    nodes.add(node);
-                }
+    /**
+     * Up to {@code budget} entries in breadth-first order, nested under their parents where the parent is
+     * in the same page.
+     */
+    private Page buildPage(Path dir, int depthLimit, String cursor, int budget) throws IOException {
+        BreadthFirstWalk walk = new BreadthFirstWalk(fileTreeCache, dir, depthLimit, cursor);
+        Map<Path, List<FileSystemNode>> childLists = new HashMap<>();
+        List<FileSystemNode> contents = new ArrayList<>();
+        String last = null;
+        int count = 0;
+        while (walk.hasNext()) {
+            if (count == budget) {
+                log.warn("Node limit {} reached at {}", budget, last);
+                return new Page(contents, count, last);
             }
+            BreadthFirstWalk.Entry entry = walk.next();
+            FileNode fileNode = entry.node();
+            List<FileSystemNode> siblings = childLists.get(fileNode.path().getParent());
+            List<FileSystemNode> children = fileNode.isDirectory() && entry.depth() < depthLimit
+                    ? new ArrayList<>()
+                    : Collections.emptyList();
+            String name = siblings != null || entry.depth() == 0 ? fileNode.name() : entry.cursor();
+            FileSystemNode node = new FileSystemNode(name, fileNode.type(), fileNode.size(), fileNode.modified().toString(), children);
+            (siblings != null ? siblings : contents).add(node);
+            if (fileNode.isDirectory()) {
+                childLists.put(fileNode.path(), children);
+            }
+            last = entry.cursor();
+            count++;
         }
-        return nodes;
+        return new Page(contents, count, null);
     }
 
-    private FileSystemNode createNode(Path path) {
-        try {
-            BasicFileAttributes attrs = Files.readAttributes(
-                    path,
-                    BasicFileAttributes.class,
-                    LinkOption.NOFOLLOW_LINKS
-            );
-
-            String type = "FILE";
-            if (attrs.isDirectory()) type = "DIR";
-            else if (attrs.isSymbolicLink()) type = "SYMLINK";
-
-            return new FileSystemNode(
-                    path.getFileName().toString(),
-                    type,
-                    attrs.size(),
-                    attrs.lastModifiedTime().toString(),
-                    Collections.emptyList()  // Children populated later in recursion
-            );
-        } catch (IOException e) {
-            log.warn("Skipping inaccessible path: {}", path, e);
-            return null;
+    /**
+     * Changes as returned to the model, or null if they do not fit into {@code budget} entries.
+     */
+    private List<FileSystemChange> buildDelta(Path dir, List<FileChange> changes, boolean recursive, int budget) throws IOException {
+        List<FileSystemChange> delta = new ArrayList<>();
+        int count = 0;
+        for (FileChange change : changes) {
+            Path relative = dir.relativize(change.path());
+            int depth = relative.getNameCount() - 1;
+            if (recursive ? depth > maxDepth : depth > 0) {
+                continue;
+            }
+            if (++count > budget) {
+                return null;
+            }
+            Optional<FileNode> current = change.kind() == FileChange.Kind.REMOVED
+                    ? Optional.empty()
+                    : fileTreeCache.stat(change.path());
+            if (current.isEmpty()) {
+                delta.add(new FileSystemChange(relative.toString(), FileChange.Kind.REMOVED.name(), null));
+                continue;
+            }
+            FileNode fileNode = current.get();
+            FileSystemNode node = createNode(fileNode);
+            // Содержимое нового каталога в журнал не попадало, отдаём его целиком
+            if (change.kind() == FileChange.Kind.ADDED && fileNode.isDirectory() && recursive && depth < maxDepth) {
+                Page subtree = buildPage(fileNode.path(), maxDepth - depth - 1, null, budget - count);
+                if (subtree.nextCursor() != null) {
+                    return null;
+                }
+                count += subtree.count();
+                node = new FileSystemNode(node.name(), node.type(), node.size(), node.modified(), subtree.contents());
+            }
+            delta.add(new FileSystemChange(relative.toString(), change.kind().name(), node));
         }
+        return delta;
+    }
+
+    private FileSystemNode createNode(FileNode node) {
+        return new FileSystemNode(
+                node.name(),
+                node.type(),
+                node.size(),
+                node.modified().toString(),
+                Collections.emptyList()  // Children populated later in recursion
+        );
     }
 
     private Path resolveSecurePath(String relativePath) {
@@ -151,14 +252,28 @@ public class DirectoryLister implements Function<DirectoryLister.InputParams, Di
         if (!normalized.startsWith(basePath)) {
             throw new SecurityException("Path traversal attempt blocked: " + relativePath);
         }
+        if (fileTreeCache.isHidden(normalized)) {
+            throw new SecurityException("Access to a private directory blocked: " + relativePath);
+        }
         return normalized;
     }
 
+    private record Page(List<FileSystemNode> contents, int count, String nextCursor) {
+    }
+
     // Record definitions
-    public record InputParams(String path, boolean recursive) {
+    public record InputParams(String path, boolean recursive, String since, String cursor, Integer maxNodes) {
         public InputParams(String path) {
             this(path, false);
         }
+
+        public InputParams(String path, boolean recursive) {
+            this(path, recursive, null);
+        }
+
+        public InputParams(String path, boolean recursive, String since) {
+            this(path, recursive, since, null, null);
+        }
     }
 
     public record FileSystemNode(
@@ -170,10 +285,35 @@ public class DirectoryLister implements Function<DirectoryLister.InputParams, Di
     ) {
     }
 
+    /**
+     * One entry of {@link #stream}.
+     */
+    public record FileSystemEntry(
+            String path,    // Relative to the listed directory
+            String type,    // DIR, FILE, SYMLINK
+            long size,
+            String modified,
+            String cursor   // Continues the listing after this entry
+    ) {
+    }
+
+    public record FileSystemChange(
+            String path,    // Relative to the listed directory
+            String change,  // ADDED, REMOVED, MODIFIED
+            FileSystemNode node  // Null for REMOVED
+    ) {
+    }
+
     public record DirectoryListing(
             String path,
-            List<FileSystemNode> contents,
-            String error
+            List<FileSystemNode> contents,  // Null in delta mode
+            String error,
+            String token,   // Pass as 'since' to get only later changes
+            List<FileSystemChange> changes,  // Present only in delta mode
+            String nextCursor  // Set if the listing was truncated by the node limit
     ) {
+        public DirectoryListing(String path, List<FileSystemNode> contents, String error) {
+            this(path, contents, error, null, null, null);
+        }
     }
-}
\ No newline at end of file
+}
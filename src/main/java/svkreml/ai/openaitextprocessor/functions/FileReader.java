@@ -1,34 +1,80 @@
 package svkreml.ai.openaitextprocessor.functions;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Description;
 import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.FileContent;
+import svkreml.ai.openaitextprocessor.fs.FileContentCache;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
 
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.function.Function;
 
 
 @Slf4j
 @Description("""
-        Reads text file content within secured base directory. 
-        Input: Relative path (baseDir: ${file.base.dir:-./}). 
-        Output: File content as String. 
-        Security: Blocks path traversal attempts. 
+        Reads text file content within secured base directory.
+        Input: InputPath(path, [offset], [length], [startLine], [endLine], [maxBytes]). Path is relative (baseDir: ${file.base.dir:-./}).
+          Without a range the file is read from the start. offset/length select bytes, startLine/endLine (1-indexed,
+          inclusive) select lines. At most maxBytes are returned, capped by the server limit.
+        Output: Content(text, error, sha256, size, nextOffset, nextLine).
+          If the text was cut by the range or the byte limit, nextOffset (and nextLine for line reads) continues it.
+          sha256 is set when the whole file was read; pass it as expectedHash of a fileWriter PATCH.
+        Security: Blocks path traversal attempts.
         Throws: SecurityException for invalid paths, RuntimeException for I/O errors.
-        Example: 'docs/notes.txt' → file content
+        Examples:
+          Whole file: ('docs/notes.txt') → file content
+          Next page: ('logs/big.log', 262144) → content from byte 262144
+          Lines: ('src/App.java', null, null, 100, 150) → lines 100 to 150
         """)
 @Component("fileReader")
 public class FileReader implements Function<FileReader.InputPath, FileReader.Content>, AiTool {
+    private static final int DEFAULT_MAX_BYTES = 262144;
+
     private final Path basePath;
+    private final int maxBytes;
+    private final FileTreeCache fileTreeCache;
+    private final FileContentCache contentCache;
+    private final Counter bytesRead;
+
+    public FileReader(String baseDir) {
+        this(baseDir, FileTreeCache.uncached(baseDir));
+    }
+
+    public FileReader(String baseDir, FileTreeCache fileTreeCache) {
+        this(baseDir, DEFAULT_MAX_BYTES, fileTreeCache, FileContentCache.uncached());
+    }
+
+    public FileReader(String baseDir, int maxBytes, FileTreeCache fileTreeCache, FileContentCache contentCache) {
+        this(baseDir, maxBytes, fileTreeCache, contentCache, new SimpleMeterRegistry());
+    }
 
     @Autowired
-    public FileReader(@Value("${file.base.dir:./}") String baseDir) {
+    public FileReader(
+            @Value("${file.base.dir:./}") String baseDir,
+            @Value("${file.reader.max-bytes:" + DEFAULT_MAX_BYTES + "}") int maxBytes,
+            FileTreeCache fileTreeCache,
+            FileContentCache contentCache,
+            MeterRegistry registry
+    ) {
         this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.fileTreeCache = fileTreeCache;
+        this.contentCache = contentCache;
+        this.bytesRead = Counter.builder("tool.bytes.read")
+                .description("Bytes of file content returned to the model")
+                .baseUnit("bytes")
+                .tag("tool", "fileReader")
+                .register(registry);
     }
 
     @Override
@@ -37,7 +83,18 @@ public class FileReader implements Function<FileReader.InputPath, FileReader.Con
         try {
             Path resolvedPath = resolveSecurePath(relativePath);
             log.info("Resolved path: {}", resolvedPath);
-            return new Content(Files.readString(resolvedPath), null);
+            FileNode node = fileTreeCache.stat(resolvedPath)
+                    .orElseThrow(() -> new NoSuchFileException(relativePath));
+            if (node.isDirectory()) {
+                return new Content(null, "Is a directory: " + relativePath);
+            }
+            FileContent content = contentCache.get(resolvedPath);
+            int budget = inputPath.maxBytes() != null && inputPath.maxBytes() > 0
+                    ? Math.min(inputPath.maxBytes(), maxBytes) : maxBytes;
+            if (inputPath.startLine() != null || inputPath.endLine() != null) {
+                return readLines(content, inputPath, budget);
+            }
+            return readBytes(content, inputPath, budget);
         } catch (NoSuchFileException e) {
             log.error(e.getMessage(), e);
             return new Content(null, "No such file");
@@ -47,18 +104,147 @@ public class FileReader implements Function<FileReader.InputPath, FileReader.Con
         }
     }
 
+    private Content readBytes(FileContent content, InputPath input, int budget) throws Exception {
+        long offset = input.offset() != null ? input.offset() : 0;
+        if (offset < 0 || offset > content.size()) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside the file (" + content.size() + " bytes)");
+        }
+        long end = input.length() != null && input.length() >= 0
+                ? Math.min(content.size(), offset + input.length()) : content.size();
+        if (offset == 0 && end == content.size() && end <= budget) {
+            // Файл целиком: для закэшированного файла без копирования и декодирования
+            bytesRead.increment(content.size());
+            return new Content(content.text(), null, content.sha256(), content.size(), null, null);
+        }
+        Page page = page(content, offset, end, budget);
+        bytesRead.increment(page.bytes().length);
+        long next = page.end();
+        return new Content(FileContent.decode(page.bytes()), null, null, content.size(),
+                next < content.size() ? next : null, null);
+    }
+
+    private Content readLines(FileContent content, InputPath input, int budget) throws Exception {
+        int startLine = input.startLine() != null ? input.startLine() : 1;
+        long offset = content.lineStart(startLine);
+        if (offset < 0) {
+            throw new IndexOutOfBoundsException("Line number " + startLine + " exceeds file length");
+        }
+        long end = input.endLine() != null && input.endLine() >= startLine ? content.lineStart(input.endLine() + 1) : -1;
+        if (end < 0) {
+            end = content.size();
+        }
+        Page page = page(content, offset, end, budget);
+        bytesRead.increment(page.bytes().length);
+        long next = page.end();
+        Integer nextLine = null;
+        if (next < content.size() && page.lineBoundary()) {
+            nextLine = startLine + page.newlines();
+        }
+        String sha256 = offset == 0 && next == content.size() ? content.sha256() : null;
+        return new Content(FileContent.decode(page.bytes()), null, sha256, content.size(),
+                next < content.size() ? next : null, nextLine);
+    }
+
+    /**
+     * Bytes from {@code offset} to {@code end}, at most {@code budget} of them. A range cut by the budget ends after
+     * the last complete line if there is one, otherwise after the last complete character; the start is moved past a
+     * partial character.
+     */
+    private static Page page(FileContent content, long offset, long end, int budget) throws Exception {
+        boolean cut = end - offset > budget;
+        byte[] bytes = content.read(offset, (int) Math.min(end - offset, budget));
+        int from = 0;
+        while (from < bytes.length && isContinuation(bytes[from])) {
+            from++;
+        }
+        int to = bytes.length;
+        if (cut) {
+            int lastNewline = lastIndexOf(bytes, from, to, (byte) '\n');
+            to = lastNewline >= 0 ? lastNewline + 1 : characterEnd(bytes, from, to);
+        } else if (end < content.size()) {
+            to = characterEnd(bytes, from, to);
+        }
+        int newlines = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') {
+                newlines++;
+            }
+        }
+        boolean lineBoundary = to > from && bytes[to - 1] == '\n';
+        byte[] result = from == 0 && to == bytes.length ? bytes : Arrays.copyOfRange(bytes, from, to);
+        return new Page(result, offset + to, newlines, lineBoundary);
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * End of the last complete UTF-8 character in {@code bytes[from, to)}.
+     */
+    private static int characterEnd(byte[] bytes, int from, int to) {
+        int lead = to - 1;
+        while (lead > from && isContinuation(bytes[lead])) {
+            lead--;
+        }
+        if (lead < from) {
+            return to;
+        }
+        int b = bytes[lead] & 0xFF;
+        int length = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+        return lead + length <= to ? to : lead;
+    }
+
+    private static int lastIndexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = to - 1; i >= from; i--) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private Path resolveSecurePath(String relativePath) {
         Path normalized = basePath.resolve(relativePath).normalize();
 
         if (!normalized.startsWith(basePath)) {
             throw new SecurityException("Attempted directory traversal: " + relativePath);
         }
+        if (fileTreeCache.isHidden(normalized)) {
+            throw new SecurityException("Access to a private directory blocked: " + relativePath);
+        }
         return normalized;
     }
 
-    public record InputPath(String path) {
+    /**
+     * @param end offset in the file right after {@code bytes}
+     */
+    private record Page(byte[] bytes, long end, int newlines, boolean lineBoundary) {
     }
 
-    public record Content(String text, String error) {
+    public record InputPath(
+            String path,
+            Long offset,        // Byte offset to start from, e.g. nextOffset of the previous call
+            Integer length,     // Number of bytes to read from offset
+            Integer startLine,  // 1-indexed, inclusive
+            Integer endLine,    // 1-indexed, inclusive; to the end of the file if absent
+            Integer maxBytes    // Byte budget of this call, capped by the server limit
+    ) {
+        public InputPath(String path) {
+            this(path, null, null, null, null, null);
+        }
+    }
+
+    public record Content(
+            String text,
+            String error,
+            String sha256,      // Set if the whole file was read
+            Long size,          // File size in bytes
+            Long nextOffset,    // Set if the text was cut before the end of the file
+            Integer nextLine    // Line where the next page starts, line reads only
+    ) {
+        public Content(String text, String error) {
+            this(text, error, null, null, null, null);
+        }
     }
-}
\ No newline at end of file
+}
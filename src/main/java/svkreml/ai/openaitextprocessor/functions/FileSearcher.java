@@ -1,37 +1,75 @@
 package svkreml.ai.openaitextprocessor.functions;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Description;
 import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.ChangeJournal;
+import svkreml.ai.openaitextprocessor.fs.FileChange;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.Function;
-import java.util.regex.PatternSyntaxException;
 
 @Slf4j
 @Description("""
         Searches for files in the base directory (and subdirectories) matching a glob pattern.
-        Input: Glob pattern (relative to baseDir: ${file.base.dir:-./}).
-        Output: List of relative file paths.
+        Input: Glob pattern (relative to baseDir: ${file.base.dir:-./}),
+          since: token from a previous call with the same pattern (optional).
+        Output: List of relative file paths and a token for the next call.
+          With a valid 'since' token paths is null and changes lists only the matching files
+          ADDED, REMOVED or MODIFIED after that call (a REMOVED path ending with '/' is a directory with
+          everything below it). If the token is expired the full list is returned.
         Security: Blocks directory traversal and restricts to base directory.
         Example: '*.txt' → ['file1.txt', 'docs/notes.txt']
+        Delta: ('*.txt', 'lk3x.1f.5e1a') → [PathChange('docs/new.txt', ADDED)]
         """)
 @Component("fileSearcher")
 public class FileSearcher implements Function<FileSearcher.SearchPattern, FileSearcher.SearchResult>, AiTool {
 
     private final Path basePath;
+    private final FileTreeCache fileTreeCache;
+    private final ChangeJournal changeJournal;
+    private final Counter filesScanned;
+    private final Counter matches;
+
+    public FileSearcher(String baseDir) {
+        this(baseDir, FileTreeCache.uncached(baseDir));
+    }
+
+    public FileSearcher(String baseDir, FileTreeCache fileTreeCache) {
+        this(baseDir, fileTreeCache, new ChangeJournal(fileTreeCache, 100_000));
+    }
+
+    public FileSearcher(String baseDir, FileTreeCache fileTreeCache, ChangeJournal changeJournal) {
+        this(baseDir, fileTreeCache, changeJournal, new SimpleMeterRegistry());
+    }
 
     @Autowired
-    public FileSearcher(@Value("${file.base.dir:./}") String baseDir) {
+    public FileSearcher(@Value("${file.base.dir:./}") String baseDir, FileTreeCache fileTreeCache, ChangeJournal changeJournal,
+                        MeterRegistry registry) {
         this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.fileTreeCache = fileTreeCache;
+        this.changeJournal = changeJournal;
+        this.filesScanned = Counter.builder("tool.files.scanned")
+                .description("Files whose names were matched against the pattern")
+                .tag("tool", "fileSearcher")
+                .register(registry);
+        this.matches = Counter.builder("tool.matches")
+                .description("Matches returned to the model")
+                .tag("tool", "fileSearcher")
+                .register(registry);
         log.info("FileSearcher base directory: {}", basePath);
     }
 
@@ -48,28 +86,31 @@ public class FileSearcher implements Function<FileSearcher.SearchPattern, FileSe
             String normalizedPattern = globPattern.replace('/', File.separatorChar);
             PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalizedPattern);
             
-            List<String> matches = new ArrayList<>();
-            Files.walkFileTree(basePath, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
-                    
-                    Path relative = basePath.relativize(file);
-                    if (matcher.matches(relative)) {
-                        matches.add(relative.toString());
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
+            if (!Files.isDirectory(basePath)) {
+                throw new NoSuchFileException(basePath.toString());
+            }
 
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException e) {
-                    log.warn("Access denied to: {}", file, e);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
+            // Токен берём до обхода, чтобы изменения во время обхода попали в следующую дельту
+            String scope = "fileSearcher:" + globPattern;
+            String token = changeJournal.token(scope);
+            Optional<List<FileChange>> changes = changeJournal.changesSince(pattern.since(), scope, basePath);
+            if (changes.isPresent()) {
+                List<PathChange> delta = buildDelta(changes.get(), matcher);
+                filesScanned.increment(changes.get().size());
+                // Удалённые файлы совпадениями не считаются
+                matches.increment(delta.stream()
+                        .filter(change -> !change.change().equals(FileChange.Kind.REMOVED.name()))
+                        .count());
+                log.info("Found {} changed files matching '{}' since {}", delta.size(), globPattern, pattern.since());
+                return new SearchResult(null, null, token, delta);
+            }
+
+            List<String> found = new ArrayList<>();
+            collectMatches(basePath, matcher, found);
 
-            log.info("Found {} files matching '{}'", matches.size(), globPattern);
-            return new SearchResult(matches, null);
+            matches.increment(found.size());
+            log.info("Found {} files matching '{}'", found.size(), globPattern);
+            return new SearchResult(found, null, token, null);
         } catch (InvalidPathException e) {
             String error = "Invalid path in pattern: " + globPattern;
             log.error(error);
@@ -91,6 +132,47 @@ public class FileSearcher implements Function<FileSearcher.SearchPattern, FileSe
         }
     }
 
+    private void collectMatches(Path root, PathMatcher matcher, List<String> matches) {
+        Iterator<FileNode> files = fileTreeCache.walkFiles(root, dir -> false);
+        while (files.hasNext()) {
+            FileNode file = files.next();
+            if (!file.isFile()) continue;
+
+            filesScanned.increment();
+            Path relative = basePath.relativize(file.path());
+            if (matcher.matches(relative)) {
+                matches.add(relative.toString());
+            }
+        }
+    }
+
+    private List<PathChange> buildDelta(List<FileChange> changes, PathMatcher matcher) throws IOException {
+        List<PathChange> delta = new ArrayList<>();
+        for (FileChange change : changes) {
+            Path relative = basePath.relativize(change.path());
+            Optional<FileNode> current = change.kind() == FileChange.Kind.REMOVED
+                    ? Optional.empty()
+                    : fileTreeCache.stat(change.path());
+            if (current.isEmpty()) {
+                if (FileNode.DIR.equals(change.type())) {
+                    delta.add(new PathChange(relative + File.separator, FileChange.Kind.REMOVED.name()));
+                } else if (matcher.matches(relative)) {
+                    delta.add(new PathChange(relative.toString(), FileChange.Kind.REMOVED.name()));
+                }
+            } else if (current.get().isFile()) {
+                if (matcher.matches(relative)) {
+                    delta.add(new PathChange(relative.toString(), change.kind().name()));
+                }
+            } else if (current.get().isDirectory() && change.kind() == FileChange.Kind.ADDED) {
+                // Файлы нового каталога в журнал не попадали
+                List<String> added = new ArrayList<>();
+                collectMatches(change.path(), matcher, added);
+                added.forEach(path -> delta.add(new PathChange(path, FileChange.Kind.ADDED.name())));
+            }
+        }
+        return delta;
+    }
+
     private boolean isValidPattern(String pattern) {
         try {
             FileSystems.getDefault().getPathMatcher("glob:" + pattern);
@@ -100,6 +182,17 @@ public class FileSearcher implements Function<FileSearcher.SearchPattern, FileSe
         }
     }
 
-    public record SearchPattern(String pattern) {}
-    public record SearchResult(List<String> paths, String error) {}
+    public record SearchPattern(String pattern, String since) {
+        public SearchPattern(String pattern) {
+            this(pattern, null);
+        }
+    }
+
+    public record PathChange(String path, String change) {}
+
+    public record SearchResult(List<String> paths, String error, String token, List<PathChange> changes) {
+        public SearchResult(List<String> paths, String error) {
+            this(paths, error, null, null);
+        }
+    }
 }
\ No newline at end of file
@@ -1,13 +1,19 @@
 package svkreml.ai.openaitextprocessor.functions;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Description;
 import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.fs.LineEditor;
+import svkreml.ai.openaitextprocessor.fs.UnifiedDiff;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
@@ -15,13 +21,16 @@ import java.util.function.Function;
 @Slf4j
 @Description("""
         Handles file writing operations within secured base directory. 
-        Input: FileWriteRequest(path, content, [operation=OVERWRITE|INSERT_AT_LINE|REPLACE_AT_LINE|APPEND_TO_THE_END], [line]). 
+        Input: FileWriteRequest(path, content, [operation=OVERWRITE|INSERT_AT_LINE|REPLACE_AT_LINE|APPEND_TO_THE_END|PATCH], [line], [hunks], [expectedHash]). 
         Operations:
           - OVERWRITE: Replace entire file (default)
           - INSERT_AT_LINE: Insert content at specified line (1-indexed)
           - REPLACE_AT_LINE: Replace content at specified line (1-indexed)
           - APPEND_TO_THE_END: Append content to the end of the file
-        Output: WriteResult(success, message, [newPath]). 
+          - PATCH: Apply several edits at once, atomically. Either hunks as Hunk(line, op=INSERT|REPLACE|DELETE, content)
+            or a unified diff in content. All line numbers refer to the file before the patch, so they do not shift.
+            expectedHash (sha256 from fileReader or a previous write) makes the patch fail if the file has changed.
+        Output: WriteResult(success, message, [newPath], [sha256]). 
         Security: Blocks path traversal, creates parent directories. 
         Throws: SecurityException for invalid paths, RuntimeException for I/O errors.
         Examples: 
@@ -29,14 +38,39 @@ import java.util.function.Function;
           Insert at line: ('script.py', 'print("debug")', INSERT_AT_LINE, 5) → success
           Replace at line: ('index.html', '<div>New</div>', REPLACE_AT_LINE, 10) → replaces line 10
           Append to end: ('logs.txt', 'New log entry', APPEND_TO_THE_END) → appends content
+          Patch: ('app.py', null, PATCH, null, [(3, REPLACE, 'x = 2'), (10, DELETE, null), (12, INSERT, 'y = 1')], '9f86d0…') → new sha256
+          Patch with diff: ('app.py', '@@ -3,1 +3,1 @@\n-x = 1\n+x = 2', PATCH) → success
         """)
 @Component("fileWriter")
 public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWriter.WriteResult> {
     private final Path basePath;
+    private final FileTreeCache fileTreeCache;
+    private final LineEditor lineEditor;
+    private final Counter bytesWritten;
+
+    public FileWriter(String baseDir) {
+        this(baseDir, FileTreeCache.uncached(baseDir));
+    }
+
+    public FileWriter(String baseDir, FileTreeCache fileTreeCache) {
+        this(baseDir, fileTreeCache, new LineEditor());
+    }
+
+    public FileWriter(String baseDir, FileTreeCache fileTreeCache, LineEditor lineEditor) {
+        this(baseDir, fileTreeCache, lineEditor, new SimpleMeterRegistry());
+    }
 
     @Autowired
-    public FileWriter(@Value("${file.base.dir:./}") String baseDir) {
+    public FileWriter(@Value("${file.base.dir:./}") String baseDir, FileTreeCache fileTreeCache, LineEditor lineEditor,
+                      MeterRegistry registry) {
         this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.fileTreeCache = fileTreeCache;
+        this.lineEditor = lineEditor;
+        this.bytesWritten = Counter.builder("tool.bytes.written")
+                .description("Bytes of new content written by the model")
+                .baseUnit("bytes")
+                .tag("tool", "fileWriter")
+                .register(registry);
         log.info("FileWriter base path: {}", basePath);
     }
 
@@ -46,12 +80,18 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
             Path resolvedPath = resolveSecurePath(request.path());
             Files.createDirectories(resolvedPath.getParent());
 
-            return switch (request.operation()) {
-                case INSERT_AT_LINE -> insertAtLine(resolvedPath, request);
-                case REPLACE_AT_LINE -> replaceAtLine(resolvedPath, request);
-                case APPEND_TO_THE_END -> appendToEnd(resolvedPath, request);
-                default -> overwriteFile(resolvedPath, request);
-            };
+            try {
+                return switch (request.operation()) {
+                    case INSERT_AT_LINE -> insertAtLine(resolvedPath, request);
+                    case REPLACE_AT_LINE -> replaceAtLine(resolvedPath, request);
+                    case APPEND_TO_THE_END -> appendToEnd(resolvedPath, request);
+                    case PATCH -> patch(resolvedPath, request);
+                    default -> overwriteFile(resolvedPath, request);
+                };
+            } finally {
+                // Дерево файлов обновляем сразу, не дожидаясь события WatchService
+                fileTreeCache.written(resolvedPath);
+            }
         } catch (NoSuchFileException e) {
             log.error(e.getMessage(), e);
             return new WriteResult(false, "No such file", request.path());
@@ -66,6 +106,7 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
                 StandardOpenOption.CREATE,
                 StandardOpenOption.TRUNCATE_EXISTING
         );
+        countWritten(request.content());
         log.info("Overwritten file: {}", path);
         return new WriteResult(true, "File overwritten successfully", path.toString());
     }
@@ -76,6 +117,7 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
                 StandardOpenOption.CREATE,
                 StandardOpenOption.APPEND
         );
+        countWritten(request.content());
         log.info("Appended to file: {}", path);
         return new WriteResult(true, "Content appended successfully", path.toString());
     }
@@ -85,20 +127,13 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
             throw new IllegalArgumentException("Invalid line number: " + request.line());
         }
 
-        List<String> lines = new ArrayList<>();
-        if (Files.exists(path)) {
-            lines = Files.readAllLines(path);
-        }
-
-        int insertPosition = Math.min(request.line() - 1, lines.size());
         List<String> newContent = Arrays.asList(request.content().split("\\R"));
+        int insertPosition = lineEditor.apply(path, List.of(LineEditor.Edit.insert(request.line(), newContent))).get(0);
+        countWritten(newContent);
 
-        lines.addAll(insertPosition, newContent);
-        Files.write(path, lines, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-
-        log.info("Inserted {} lines at position {} in {}", newContent.size(), insertPosition + 1, path);
+        log.info("Inserted {} lines at position {} in {}", newContent.size(), insertPosition, path);
         return new WriteResult(true,
-                "Inserted " + newContent.size() + " lines at position " + (insertPosition + 1),
+                "Inserted " + newContent.size() + " lines at position " + insertPosition,
                 path.toString()
         );
     }
@@ -108,34 +143,61 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
             throw new IllegalArgumentException("Invalid line number: " + request.line());
         }
 
-        List<String> lines = new ArrayList<>();
-        if (Files.exists(path)) {
-            lines = Files.readAllLines(path);
+        List<String> newLines = Arrays.asList(request.content().split("\\R"));
+        lineEditor.apply(path, List.of(LineEditor.Edit.replace(request.line(), newLines)));
+        countWritten(newLines);
+
+        log.info("Replaced line {} with {} lines in {}", request.line(), newLines.size(), path);
+        return new WriteResult(true,
+                "Replaced line " + request.line() + " with " + newLines.size() + " lines",
+                path.toString()
+        );
+    }
+
+    private WriteResult patch(Path path, FileWriteRequest request) throws Exception {
+        List<LineEditor.Edit> edits;
+        if (request.hunks() != null && !request.hunks().isEmpty()) {
+            edits = request.hunks().stream().map(FileWriter::toEdit).toList();
+        } else if (request.content() != null && !request.content().isBlank()) {
+            edits = UnifiedDiff.parse(request.content());
         } else {
-            throw new NoSuchFileException("File not found: " + path);
+            throw new IllegalArgumentException("PATCH requires hunks or a unified diff in content");
         }
 
-        int lineIndex = request.line() - 1;
-        if (lineIndex >= lines.size()) {
-            throw new IndexOutOfBoundsException(
-                    "Line number " + request.line() + " exceeds file length (" + lines.size() + " lines)"
-            );
-        }
+        LineEditor.Patched patched = lineEditor.patch(path, edits, request.expectedHash());
+        edits.stream()
+                .filter(edit -> edit.kind() != LineEditor.Kind.MATCH)
+                .forEach(edit -> countWritten(edit.lines()));
 
-        List<String> newLines = Arrays.asList(request.content().split("\\R"));
-        lines.set(lineIndex, newLines.get(0));
+        log.info("Applied {} edits to {}", edits.size(), path);
+        return new WriteResult(true, "Applied " + edits.size() + " edits", path.toString(), patched.sha256());
+    }
 
-        if (newLines.size() > 1) {
-            lines.addAll(lineIndex + 1, newLines.subList(1, newLines.size()));
+    private void countWritten(String content) {
+        if (content != null) {
+            bytesWritten.increment(content.getBytes(StandardCharsets.UTF_8).length);
         }
+    }
 
-        Files.write(path, lines, StandardOpenOption.TRUNCATE_EXISTING);
+    /**
+     * Lines written by an edit, each with its line separator.
+     */
+    private void countWritten(List<String> lines) {
+        for (String line : lines) {
+            bytesWritten.increment(line.getBytes(StandardCharsets.UTF_8).length + 1);
+        }
+    }
 
-        log.info("Replaced line {} with {} lines in {}", request.line(), newLines.size(), path);
-        return new WriteResult(true,
-                "Replaced line " + request.line() + " with " + newLines.size() + " lines",
-                path.toString()
-        );
+    private static LineEditor.Edit toEdit(Hunk hunk) {
+        if (hunk.line() == null || hunk.line() < 1) {
+            throw new IllegalArgumentException("Invalid line number: " + hunk.line());
+        }
+        List<String> lines = hunk.content() != null ? Arrays.asList(hunk.content().split("\\R")) : List.of();
+        return switch (hunk.op() != null ? hunk.op() : HunkOperation.REPLACE) {
+            case INSERT -> LineEditor.Edit.insert(hunk.line(), lines);
+            case REPLACE -> LineEditor.Edit.replace(hunk.line(), lines);
+            case DELETE -> LineEditor.Edit.delete(hunk.line());
+        };
     }
 
     private Path resolveSecurePath(String relativePath) {
@@ -143,6 +205,9 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
         if (!normalized.startsWith(basePath)) {
             throw new SecurityException("Path traversal blocked: " + relativePath);
         }
+        if (fileTreeCache.isHidden(normalized)) {
+            throw new SecurityException("Access to a private directory blocked: " + relativePath);
+        }
         return normalized;
     }
 
@@ -150,21 +215,44 @@ public class FileWriter implements Function<FileWriter.FileWriteRequest, FileWri
         OVERWRITE,
         INSERT_AT_LINE,
         REPLACE_AT_LINE,
-        APPEND_TO_THE_END
+        APPEND_TO_THE_END,
+        PATCH
+    }
+
+    public enum HunkOperation {
+        INSERT,
+        REPLACE,
+        DELETE
+    }
+
+    public record Hunk(
+            Integer line,              // 1-indexed, in the file before the patch
+            HunkOperation op,          // Defaults to REPLACE
+            String content             // Not used for DELETE
+    ) {
     }
 
     public record FileWriteRequest(
             String path,
             String content,
             WriteOperation operation,  // Defaults to OVERWRITE in constructor
-            Integer line               // Required for INSERT_AT_LINE and REPLACE_AT_LINE
+            Integer line,              // Required for INSERT_AT_LINE and REPLACE_AT_LINE
+            List<Hunk> hunks,          // PATCH only; if empty, content is a unified diff
+            String expectedHash        // PATCH only, optional sha256 of the current content
     ) {
+        public FileWriteRequest(String path, String content, WriteOperation operation, Integer line) {
+            this(path, content, operation, line, null, null);
+        }
     }
 
     public record WriteResult(
             boolean success,
             String message,
-            String filePath  // Absolute path of modified file
+            String filePath, // Absolute path of modified file
+            String sha256    // Hash of the new content, PATCH with expectedHash only
     ) {
+        public WriteResult(boolean success, String message, String filePath) {
+            this(success, message, filePath, null);
+        }
     }
 }
\ No newline at end of file
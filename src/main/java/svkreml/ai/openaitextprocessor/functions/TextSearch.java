@@ -1,37 +1,92 @@
 package svkreml.ai.openaitextprocessor.functions;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Description;
 import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.search.LineScanner;
+import svkreml.ai.openaitextprocessor.search.OrderedFileWalker;
+import svkreml.ai.openaitextprocessor.search.TrigramIndex;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import java.util.stream.Stream;
 
 @Slf4j
 @Description("""
-        Performs full-text search in files within a directory using DFS. 
+        Performs full-text search in files within a directory using DFS (entries visited in name order). 
         Input: SearchRequest(directory, regex, maxResults=10, contextBefore=0, contextAfter=0, fileMask="*"). 
         Output: SearchResponse(success, results, error). 
-        Searches files <50KB matching file mask recursively. Returns partial results with errors logged.
+        Searches files of any size matching file mask recursively, line by line. Returns partial results with errors logged.
         Examples: 
           Search in '/docs' for 'error.*' with context → returns first 10 matches with surrounding lines
         """)
 @Component("textSearch")
 public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch.SearchResponse>, AiTool {
 
-    private static final long MAX_FILE_SIZE = 50 * 1024; // 50KB
+    private final TrigramIndex trigramIndex;
+    private final FileTreeCache fileTreeCache;
+    private final int parallelism;
+    private final long maxFileSize;
+    private final ForkJoinPool pool;
+    private final Counter filesScanned;
+    private final Counter filesSkipped;
+    private final Counter matches;
+
+    public TextSearch() {
+        this(null, null, 1, 0);
+    }
+
+    public TextSearch(TrigramIndex trigramIndex, FileTreeCache fileTreeCache, int parallelism, long maxFileSize) {
+        this(trigramIndex, fileTreeCache, parallelism, maxFileSize, new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param parallelism number of files scanned concurrently; 0 means one per available processor, 1 disables parallel mode
+     * @param maxFileSize files larger than this are skipped; 0 means no limit
+     */
+    @Autowired
+    public TextSearch(TrigramIndex trigramIndex,
+                      FileTreeCache fileTreeCache,
+                      @Value("${file.search.parallelism:0}") int parallelism,
+                      @Value("${file.search.max-file-size:0}") long maxFileSize,
+                      MeterRegistry registry) {
+        this.filesScanned = Counter.builder("tool.files.scanned")
+                .description("Files whose content was searched")
+                .tag("tool", "textSearch")
+                .register(registry);
+        this.filesSkipped = Counter.builder("tool.files.skipped")
+                .description("Files skipped by mask, size or read errors")
+                .tag("tool", "textSearch")
+                .register(registry);
+        this.matches = Counter.builder("tool.matches")
+                .description("Matches returned to the model")
+                .tag("tool", "textSearch")
+                .register(registry);
+        this.trigramIndex = trigramIndex;
+        this.fileTreeCache = fileTreeCache;
+        this.maxFileSize = maxFileSize;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(this.parallelism);
+    }
 
     @Override
     public SearchResponse apply(SearchRequest request) {
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
         log.info("Starting search: directory={}, regex={}, maxResults={}, contextBefore={}, contextAfter={}, fileMask={}",
                 request.directory(), request.regex(), request.maxResults(),
                 request.contextBefore(), request.contextAfter(), request.fileMask());
@@ -44,7 +99,7 @@ public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch
         Path baseDir;
         try {
             baseDir = Paths.get(request.directory()).toAbsolutePath().normalize();
-            if (!Files.isDirectory(baseDir)) {
+            if (!Files.isDirectory(baseDir) || isHidden(baseDir)) {
                 String error = "Not a directory: " + baseDir;
                 log.error(error);
                 return new SearchResponse(false, null, error);
@@ -66,41 +121,12 @@ public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch
             return new SearchResponse(false, null, error);
         }
 
-        List<SearchResult> results = new ArrayList<>();
-        int filesProcessed = 0;
-        int filesMatched = 0;
-        int filesSkipped = 0;
-
-        try (Stream<Path> paths = Files.walk(baseDir)) {
-            Iterator<Path> iterator = paths.iterator();
-            while (iterator.hasNext() && results.size() < maxResults) {
-                Path path = iterator.next();
-
-                if (Files.isDirectory(path)) {
-                    log.info("Processing directory: {}", path);
-                    continue;
-                }
-
-                filesProcessed++;
-                try {
-                    if (isFileEligible(path, fileMask)) {
-                        log.info("Processing file: {}", path.getFileName());
-                        int resultsBefore = results.size();
-                        processFile(path, pattern, maxResults, contextBefore, contextAfter, results);
-
-                        if (results.size() > resultsBefore) {
-                            filesMatched++;
-                            log.info("Found {} matches in file: {}", results.size() - resultsBefore, path);
-                        }
-                    } else {
-                        filesSkipped++;
-                        log.info("Skipped file: {}", path.getFileName());
-                    }
-                } catch (Exception e) {
-                    filesSkipped++;
-                    log.warn("Error processing file {}: {}", path, e.getMessage());
-                }
-            }
+        List<SearchResult> results;
+        ScanStats stats = new ScanStats();
+        try {
+            results = parallelism > 1
+                    ? scanParallel(baseDir, request.regex(), fileMask, pattern, maxResults, contextBefore, contextAfter, stats)
+                    : scanSequential(baseDir, request.regex(), fileMask, pattern, maxResults, contextBefore, contextAfter, stats);
         } catch (IOException | SecurityException e) {
             log.error("Directory traversal failed: {}", e.getMessage(), e);
             return new SearchResponse(false, null, "Directory traversal error: " + e.getMessage());
@@ -109,15 +135,134 @@ public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch
             return new SearchResponse(false, null, "Unexpected error: " + e.getMessage());
         }
 
-        long duration = System.currentTimeMillis() - startTime;
-        log.info("Search completed: files={} processed, {} matched, {} skipped, matches={}, duration={}ms",
-                filesProcessed, filesMatched, filesSkipped, results.size(), duration);
+        filesScanned.increment(stats.processed.get() - stats.skipped.get());
+        filesSkipped.increment(stats.skipped.get());
+        matches.increment(results.size());
+        long duration = (System.nanoTime() - startTime) / 1_000_000;
+        log.info("Search completed: files={} processed, {} matched, {} skipped, matches={}, parallelism={}, duration={}ms",
+                stats.processed, stats.matched, stats.skipped, results.size(), parallelism, duration);
 
         return new SearchResponse(true, results, null);
     }
 
+    private List<SearchResult> scanSequential(Path baseDir, String regex, String fileMask, Pattern pattern,
+                                              int maxResults, int contextBefore, int contextAfter,
+                                              ScanStats stats) throws IOException {
+        List<SearchResult> results = new ArrayList<>();
+        Iterator<Path> iterator;
+        if (trigramIndex != null && trigramIndex.covers(baseDir)) {
+            iterator = trigramIndex.candidates(baseDir, regex).iterator();
+        } else if (isCached(baseDir)) {
+            Iterator<FileNode> nodes = fileTreeCache.walkFiles(baseDir, this::isHidden);
+            iterator = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public Path next() {
+                    return nodes.next().path();
+                }
+            };
+        } else {
+            iterator = OrderedFileWalker.iterator(baseDir, this::isHidden);
+        }
+        while (iterator.hasNext() && results.size() < maxResults) {
+            results.addAll(scanFile(iterator.next(), fileMask, pattern, maxResults - results.size(),
+                    contextBefore, contextAfter, stats));
+        }
+        return results;
+    }
+
+    /**
+     * Scans candidate files on {@link #pool}. Workers take files in walk order; once the already completed
+     * prefix of the file list holds {@code maxResults} matches, files after it are no longer started.
+     * The response is the same as {@link #scanSequential} would return.
+     */
+    private List<SearchResult> scanParallel(Path baseDir, String regex, String fileMask, Pattern pattern,
+                                            int maxResults, int contextBefore, int contextAfter,
+                                            ScanStats stats) throws IOException {
+        List<Path> files;
+        if (trigramIndex != null && trigramIndex.covers(baseDir)) {
+            files = trigramIndex.candidates(baseDir, regex);
+        } else if (isCached(baseDir)) {
+            // Листинги уже в памяти, обход дешевле делать последовательно
+            files = new ArrayList<>();
+            fileTreeCache.walkFiles(baseDir, this::isHidden).forEachRemaining(node -> files.add(node.path()));
+        } else {
+            files = OrderedFileWalker.list(baseDir, this::isHidden, pool);
+        }
+        OrderedScan scan = new OrderedScan(files.size(), maxResults);
+
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int w = 0; w < Math.min(parallelism, files.size()); w++) {
+            workers.add(() -> {
+                int i;
+                while ((i = scan.nextFile()) >= 0) {
+                    scan.complete(i, scanFile(files.get(i), fileMask, pattern, maxResults,
+                            contextBefore, contextAfter, stats));
+                }
+                return null;
+            });
+        }
+        for (Future<Void> worker : pool.invokeAll(workers)) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Search interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return scan.results();
+    }
+
+    private List<SearchResult> scanFile(Path path, String fileMask, Pattern pattern, int limit,
+                                        int contextBefore, int contextAfter, ScanStats stats) {
+        List<SearchResult> fileResults = new ArrayList<>();
+        stats.processed.incrementAndGet();
+        try {
+            if (isFileEligible(path, fileMask)) {
+                log.info("Processing file: {}", path.getFileName());
+                processFile(path, pattern, limit, contextBefore, contextAfter, fileResults);
+
+                if (!fileResults.isEmpty()) {
+                    stats.matched.incrementAndGet();
+                }
+            } else {
+                stats.skipped.incrementAndGet();
+                log.info("Skipped file: {}", path.getFileName());
+            }
+        } catch (Exception e) {
+            stats.skipped.incrementAndGet();
+            log.warn("Error processing file {}: {}", path, e.getMessage());
+        }
+        return fileResults;
+    }
+
+    private boolean isCached(Path dir) {
+        return fileTreeCache != null && fileTreeCache.covers(dir);
+    }
+
+    private boolean isHidden(Path path) {
+        return fileTreeCache != null && fileTreeCache.isHidden(path);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
     private boolean isFileEligible(Path path, String fileMask) throws IOException {
-        if (!Files.isRegularFile(path)) {
+        FileNode node = isCached(path) ? fileTreeCache.stat(path).orElse(null) : null;
+        // Символические ссылки проверяем по цели, как и раньше
+        if (node == null || FileNode.SYMLINK.equals(node.type())) {
+            if (!Files.isRegularFile(path)) {
+                return false;
+            }
+        } else if (!node.isFile()) {
             return false;
         }
 
@@ -129,9 +274,9 @@ public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch
         }
 
         // Check file size
-        long size = Files.size(path);
-        if (size > MAX_FILE_SIZE) {
-            log.info("File skipped by size ({} > {} bytes): {}", size, MAX_FILE_SIZE, path);
+        long size = node != null && node.isFile() ? node.size() : Files.size(path);
+        if (maxFileSize > 0 && size > maxFileSize) {
+            log.info("File skipped by size ({} > {} bytes): {}", size, maxFileSize, path);
             return false;
         }
 
@@ -146,40 +291,85 @@ public class TextSearch implements Function<TextSearch.SearchRequest, TextSearch
         }
 
         try {
-            List<String> allLines = Files.readAllLines(file, StandardCharsets.UTF_8);
-            log.info("Reading file: {} ({} lines)", file.getFileName(), allLines.size());
-
-            int matchesInFile = 0;
-            for (int i = 0; i < allLines.size() && results.size() < maxResults; i++) {
-                String line = allLines.get(i);
-                if (pattern.matcher(line).find()) {
-                    int startLine = Math.max(0, i - contextBefore);
-                    int endLine = Math.min(allLines.size(), i + contextAfter + 1);
-
-                    List<String> context = allLines.subList(startLine, endLine);
-                    int matchIndex = i - startLine;
-
-                    results.add(new SearchResult(
-                            file.toString(),
-                            line,
-                            i + 1,
-                            new ArrayList<>(context),
-                            matchIndex
-                    ));
-                    matchesInFile++;
-
-                    log.trace("Match found: {}:{} - {}", file, i + 1, line);
-                }
+            List<LineScanner.Match> matches = new LineScanner()
+                    .scan(file, pattern, maxResults - results.size(), contextBefore, contextAfter);
+            for (LineScanner.Match match : matches) {
+                results.add(new SearchResult(
+                        file.toString(),
+                        match.line(),
+                        match.lineNumber(),
+                        match.context(),
+                        match.matchIndex()
+                ));
+                log.trace("Match found: {}:{} - {}", file, match.lineNumber(), match.line());
             }
 
-            if (matchesInFile > 0) {
-                log.info("Found {} matches in file: {}", matchesInFile, file);
+            if (!matches.isEmpty()) {
+                log.info("Found {} matches in file: {}", matches.size(), file);
             }
-        } catch (IOException | SecurityException | OutOfMemoryError e) {
+        } catch (IOException | SecurityException e) {
             log.warn("Error processing file {}: {}", file, e.getMessage());
         }
     }
 
+    private static final class ScanStats {
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger matched = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+    }
+
+    /**
+     * Per-file result slots of a parallel scan plus the completed prefix used for early cut-off.
+     */
+    private static final class OrderedScan {
+        private final List<SearchResult>[] perFile;
+        private final boolean[] done;
+        private final int maxResults;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile int cutoff = Integer.MAX_VALUE;
+        private int prefix;
+        private int prefixResults;
+
+        @SuppressWarnings("unchecked")
+        private OrderedScan(int files, int maxResults) {
+            this.perFile = new List[files];
+            this.done = new boolean[files];
+            this.maxResults = maxResults;
+        }
+
+        /**
+         * @return index of the next file to scan, or -1 when the list is exhausted or the result is already complete
+         */
+        int nextFile() {
+            int i = next.getAndIncrement();
+            return i < perFile.length && i <= cutoff ? i : -1;
+        }
+
+        synchronized void complete(int i, List<SearchResult> results) {
+            perFile[i] = results;
+            done[i] = true;
+            while (prefix < done.length && done[prefix] && cutoff == Integer.MAX_VALUE) {
+                prefixResults += perFile[prefix].size();
+                if (prefixResults >= maxResults) {
+                    cutoff = prefix;
+                }
+                prefix++;
+            }
+        }
+
+        synchronized List<SearchResult> results() {
+            List<SearchResult> results = new ArrayList<>();
+            for (int i = 0; i < perFile.length && results.size() < maxResults; i++) {
+                if (perFile[i] == null) break;
+                for (SearchResult result : perFile[i]) {
+                    if (results.size() == maxResults) break;
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+    }
+
     public record SearchRequest(
             String directory,
             String regex,
@@ -0,0 +1,415 @@
+package svkreml.ai.openaitextprocessor.memory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only on-disk store of chat conversations, the cold tier of {@link ConversationMemoryRepository}.
+ * <p>
+ * A save appends the whole, already bounded, history of a conversation to the active segment
+ * {@code segment-<n>.log}; a delete appends a tombstone. A record is the length of its body, a CRC32C of it, then the
+ * body: record type, conversation id and the messages as JSON. Only the position of the latest record of each
+ * conversation is kept in heap, the messages are read back when the conversation is resumed. The active segment is
+ * sealed once it would grow past {@code segmentSize}.
+ * <p>
+ * Every {@code compactInterval} sealed segments in which less than {@code compactThreshold} of the bytes are still
+ * current are compacted: their current records are appended to the active segment and the file is deleted. A tombstone
+ * is carried over while an older segment may still hold the conversation it deletes.
+ * <p>
+ * On open the segments are replayed in order; like {@link svkreml.ai.openaitextprocessor.properties.PropertiesJournal}
+ * replay of a segment stops at the first torn or corrupt record and cuts the segment there. Appends are not forced to
+ * disk: a crash of the process loses nothing, a crash of the machine what the OS had not written yet.
+ */
+@Slf4j
+public final class ConversationLog implements Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER = 8;
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d+)\\.log");
+    private static final TypeReference<List<StoredMessage>> MESSAGES = new TypeReference<>() {
+    };
+
+    private final Path dir;
+    private final long segmentSize;
+    private final double compactThreshold;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final HashMap<String, Location> index = new HashMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    /**
+     * @param compactInterval period of background compaction; zero disables it
+     */
+    public ConversationLog(Path dir, long segmentSize, double compactThreshold, Duration compactInterval)
+            throws IOException {
+        this.dir = dir.toAbsolutePath();
+        this.segmentSize = segmentSize;
+        this.compactThreshold = compactThreshold;
+        Files.createDirectories(this.dir);
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            closeSegments();
+            throw e;
+        }
+        if (compactInterval.isZero()) {
+            this.compactor = null;
+        } else {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("chat-memory-compaction").daemon().factory());
+            compactor.scheduleWithFixedDelay(this::compactQuietly, compactInterval.toMillis(),
+                    compactInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        log.info("Chat memory log {}: {} conversations in {} segments, {} bytes",
+                this.dir, index.size(), segments.size(), diskBytes());
+    }
+
+    public synchronized List<String> ids() {
+        return List.copyOf(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized long diskBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    public synchronized int segments() {
+        return segments.size();
+    }
+
+    /**
+     * The messages last saved for the conversation, or {@code null} if there are none.
+     */
+    public synchronized List<Message> get(String id) throws IOException {
+        Location location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = read(location);
+        Record parsed = parse(record.array(), 0, record.limit());
+        if (parsed == null) {
+            throw new IOException("Corrupt record of conversation " + id + " in " + location.segment.path);
+        }
+        return objectMapper.readValue(record.array(), parsed.payload, record.limit() - parsed.payload, MESSAGES)
+                .stream()
+                .map(StoredMessage::toMessage)
+                .toList();
+    }
+
+    public synchronized void put(String id, List<Message> messages) throws IOException {
+        byte[] payload = objectMapper.writeValueAsBytes(messages.stream().map(StoredMessage::of).toList());
+        replace(id, write(encode(PUT, id, payload)));
+    }
+
+    public synchronized void delete(String id) throws IOException {
+        if (index.containsKey(id)) {
+            write(encode(DELETE, id, new byte[0]));
+            replace(id, null);
+        }
+    }
+
+    /**
+     * Compacts the sealed segments that are mostly garbage.
+     */
+    public void compact() throws IOException {
+        List<Segment> candidates;
+        synchronized (this) {
+            candidates = segments.values().stream()
+                    .filter(segment -> segment != active && segment.live < segment.size * compactThreshold)
+                    .toList();
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Stops compaction, flushes the segments to disk and closes them.
+     */
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            // Без прерывания: прерванная запись в FileChannel закрывает канал
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+            }
+            closeSegments();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Chat memory compaction failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sealed segments do not change, so the segment is read without the lock; only moving a record takes it.
+     */
+    private void compact(Segment segment) throws IOException {
+        long before = segment.size;
+        int moved = 0;
+        DataInputStream in = records(segment);
+        for (long offset = 0; offset < segment.size; ) {
+            int length = in.readInt();
+            byte[] record = new byte[HEADER + length];
+            ByteBuffer.wrap(record).putInt(length);
+            in.readFully(record, 4, record.length - 4);
+            Record parsed = parse(record, 0, record.length);
+            if (parsed == null) {
+                throw new IOException("Corrupt record at " + offset + " in " + segment.path);
+            }
+            synchronized (this) {
+                if (parsed.type == PUT) {
+                    Location current = index.get(parsed.id);
+                    if (current != null && current.segment == segment && current.offset == offset) {
+                        replace(parsed.id, write(ByteBuffer.wrap(record)));
+                        moved++;
+                    }
+                } else if (!index.containsKey(parsed.id) && segments.firstKey() < segment.number) {
+                    // Более старый сегмент может ещё хранить удалённый разговор: без надгробия он воскреснет
+                    write(ByteBuffer.wrap(record));
+                }
+            }
+            offset += record.length;
+        }
+        synchronized (this) {
+            segments.remove(segment.number);
+            segment.channel.close();
+            Files.delete(segment.path);
+        }
+        log.info("Compacted chat memory segment {}: {} conversations moved, {} bytes freed",
+                segment.path.getFileName(), moved, before);
+    }
+
+    private void open() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(path -> SEGMENT.matcher(path.getFileName().toString()).matches()).toList();
+        }
+        for (Path path : files) {
+            Matcher matcher = SEGMENT.matcher(path.getFileName().toString());
+            matcher.matches();
+            long number = Long.parseLong(matcher.group(1));
+            segments.put(number, new Segment(number, path,
+                    FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+        active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        long valid = 0;
+        DataInputStream in = records(segment);
+        while (size - valid >= HEADER) {
+            int length = in.readInt();
+            if (length < 3 || length > size - valid - HEADER) {
+                break;
+            }
+            byte[] record = new byte[HEADER + length];
+            ByteBuffer.wrap(record).putInt(length);
+            in.readFully(record, 4, record.length - 4);
+            Record parsed = parse(record, 0, record.length);
+            if (parsed == null) {
+                break;
+            }
+            replace(parsed.id, parsed.type == PUT ? new Location(segment, valid, record.length) : null);
+            valid += record.length;
+        }
+        if (valid < size) {
+            log.warn("Dropping {} bytes of torn or corrupt records at the end of {}", size - valid, segment.path);
+            segment.channel.truncate(valid);
+        }
+        segment.size = valid;
+    }
+
+    /**
+     * Records of the segment from its start. Not to be closed: closing the stream would close the channel too.
+     */
+    private static DataInputStream records(Segment segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(segment.channel.position(0)), 64 * 1024));
+    }
+
+    private Segment newSegment(long number) throws IOException {
+        Path path = dir.resolve("segment-%06d.log".formatted(number));
+        Segment segment = new Segment(number, path, FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static ByteBuffer encode(byte type, String id, byte[] payload) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (key.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Conversation id is too long: " + key.length + " bytes");
+        }
+        int length = 3 + key.length + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.putInt(length).putInt(0).put(type).putShort((short) key.length).put(key).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER, length);
+        return record.putInt(4, (int) crc.getValue()).flip();
+    }
+
+    /**
+     * The type and id of a whole record, or {@code null} if its checksum does not match.
+     */
+    private static Record parse(byte[] bytes, int from, int to) {
+        ByteBuffer record = ByteBuffer.wrap(bytes, from, to - from);
+        int length = record.getInt();
+        int checksum = record.getInt();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, from + HEADER, length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        byte type = record.get();
+        int keyLength = record.getShort();
+        if (type != PUT && type != DELETE || keyLength < 0 || keyLength > record.remaining()) {
+            return null;
+        }
+        String id = new String(bytes, record.position(), keyLength, StandardCharsets.UTF_8);
+        return new Record(type, id, record.position() + keyLength);
+    }
+
+    private Location write(ByteBuffer record) throws IOException {
+        if (active.size > 0 && active.size + record.remaining() > segmentSize) {
+            active = newSegment(active.number + 1);
+        }
+        long offset = active.size;
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += length;
+        return new Location(active, offset, length);
+    }
+
+    private ByteBuffer read(Location location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        while (record.hasRemaining()) {
+            if (location.segment.channel.read(record, location.offset + record.position()) < 0) {
+                throw new EOFException("Record of " + location.length + " bytes is cut in " + location.segment.path);
+            }
+        }
+        return record.flip();
+    }
+
+    /**
+     * Points the conversation at its new record, or forgets it for {@code null}, and moves the live bytes.
+     */
+    private void replace(String id, Location location) {
+        Location previous = location != null ? index.put(id, location) : index.remove(id);
+        if (previous != null) {
+            previous.segment.live -= previous.length;
+        }
+        if (location != null) {
+            location.segment.live += location.length;
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class Segment {
+        private final long number;
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private long live;
+
+        private Segment(long number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private record Location(Segment segment, long offset, int length) {
+    }
+
+    /**
+     * @param payload offset of the messages in the record
+     */
+    private record Record(byte type, String id, int payload) {
+    }
+
+    /**
+     * A message as it is written to disk: the same fields {@link ConversationMemoryRepository} keeps in heap.
+     */
+    private record StoredMessage(MessageType type, String text, List<AssistantMessage.ToolCall> toolCalls,
+                                 List<ToolResponseMessage.ToolResponse> responses) {
+
+        static StoredMessage of(Message message) {
+            return switch (message) {
+                case AssistantMessage assistant ->
+                        new StoredMessage(MessageType.ASSISTANT, assistant.getText(), assistant.getToolCalls(), null);
+                case ToolResponseMessage tool -> new StoredMessage(MessageType.TOOL, null, null, tool.getResponses());
+                default -> new StoredMessage(message.getMessageType(), message.getText(), null, null);
+            };
+        }
+
+        Message toMessage() {
+            return switch (type) {
+                case USER -> new UserMessage(text);
+                case SYSTEM -> new SystemMessage(text);
+                case ASSISTANT -> new AssistantMessage(text, Map.of(), toolCalls != null ? toolCalls : List.of());
+                case TOOL -> new ToolResponseMessage(responses != null ? responses : List.of());
+            };
+        }
+    }
+}
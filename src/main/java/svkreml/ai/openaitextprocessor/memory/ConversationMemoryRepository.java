@@ -0,0 +1,335 @@
+package svkreml.ai.openaitextprocessor.memory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.memory.ChatMemoryRepository;
+import org.springframework.ai.chat.messages.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Chat history of every conversation, bounded in memory so that it stays flat however many users chat.
+ * <p>
+ * Messages are stored without their metadata. A tool result longer than {@code chat.memory.max-tool-result-chars} is
+ * cut to that length with a note that the rest was omitted (the model can call the tool again); with {@code 0} tool
+ * calls and results are not kept at all, only the answers built from them.
+ * <p>
+ * A conversation keeps at most {@code chat.memory.conversation.max-bytes}: older messages are dropped first, and the
+ * history always starts with a user message. Across conversations the least recently used ones are evicted once
+ * there are more than {@code chat.memory.max-conversations} or they take more than {@code chat.memory.max-bytes}.
+ * Sizes are estimated as two bytes per character plus a fixed overhead per message.
+ * <p>
+ * With {@code chat.memory.dir} set (the default), every save also goes to a {@link ConversationLog} there, and the
+ * conversations in heap are only its hot tier: an evicted conversation, or one saved before a restart, is loaded from
+ * disk when it is resumed. Heap then grows with the active conversations, plus a position on disk per stored one.
+ * Below {@code file.base.dir} the directory is hidden from the file tools by {@code FileTreeCache}.
+ * <p>
+ * Meters: {@code chat.memory.conversations}, {@code chat.memory.bytes}, {@code chat.memory.evictions}
+ * (tag {@code unit=conversation|message}), {@code chat.memory.loads} and {@code chat.memory.disk.bytes}.
+ */
+@Slf4j
+@Component
+public class ConversationMemoryRepository implements ChatMemoryRepository {
+
+    private static final long MESSAGE_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final int maxConversations;
+    private final long conversationMaxBytes;
+    private final int maxToolResultChars;
+    private final ConversationLog store;
+    private final Counter evictedConversations;
+    private final Counter evictedMessages;
+    private final Counter loads;
+
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    @Autowired
+    public ConversationMemoryRepository(
+            @Value("${chat.memory.max-bytes:67108864}") long maxBytes,
+            @Value("${chat.memory.max-conversations:10000}") int maxConversations,
+            @Value("${chat.memory.conversation.max-bytes:262144}") long conversationMaxBytes,
+            @Value("${chat.memory.max-tool-result-chars:2048}") int maxToolResultChars,
+            @Value("${chat.memory.dir:chat-memory}") String dir,
+            @Value("${chat.memory.segment-size:67108864}") long segmentSize,
+            @Value("${chat.memory.compact-threshold:0.5}") double compactThreshold,
+            @Value("${chat.memory.compact-interval:1m}") String compactInterval,
+            MeterRegistry registry
+    ) throws IOException {
+        this(maxBytes, maxConversations, conversationMaxBytes, maxToolResultChars,
+                dir.isBlank() ? null : new ConversationLog(Path.of(dir), segmentSize, compactThreshold,
+                        DurationStyle.detectAndParse(compactInterval)),
+                registry);
+    }
+
+    /**
+     * Keeps conversations only in heap.
+     */
+    public ConversationMemoryRepository(long maxBytes, int maxConversations, long conversationMaxBytes,
+                                        int maxToolResultChars, MeterRegistry registry) {
+        this(maxBytes, maxConversations, conversationMaxBytes, maxToolResultChars, null, registry);
+    }
+
+    /**
+     * @param store where conversations are saved and loaded from when not in heap, {@code null} for none
+     */
+    public ConversationMemoryRepository(long maxBytes, int maxConversations, long conversationMaxBytes,
+                                        int maxToolResultChars, ConversationLog store, MeterRegistry registry) {
+        this.maxBytes = maxBytes;
+        this.maxConversations = maxConversations;
+        this.conversationMaxBytes = conversationMaxBytes;
+        this.maxToolResultChars = maxToolResultChars;
+        this.store = store;
+        Gauge.builder("chat.memory.conversations", this, ConversationMemoryRepository::size)
+                .description("Conversations whose history is kept")
+                .register(registry);
+        Gauge.builder("chat.memory.bytes", this, ConversationMemoryRepository::bytes)
+                .description("Estimated size of the kept chat history")
+                .baseUnit("bytes")
+                .register(registry);
+        this.evictedConversations = evictions(registry, "conversation");
+        this.evictedMessages = evictions(registry, "message");
+        this.loads = Counter.builder("chat.memory.loads")
+                .description("Conversations loaded from disk when resumed")
+                .register(registry);
+        if (store != null) {
+            Gauge.builder("chat.memory.disk.bytes", store, ConversationLog::diskBytes)
+                    .description("Size of the chat memory segments on disk")
+                    .baseUnit("bytes")
+                    .register(registry);
+        }
+        log.info("Chat memory: maxBytes={}, maxConversations={}, conversationMaxBytes={}, maxToolResultChars={}, "
+                + "persistent={}", maxBytes, maxConversations, conversationMaxBytes, maxToolResultChars, store != null);
+    }
+
+    private static Counter evictions(MeterRegistry registry, String unit) {
+        return Counter.builder("chat.memory.evictions")
+                .description("Conversations and messages dropped from the chat history to stay within its budget")
+                .tag("unit", unit)
+                .register(registry);
+    }
+
+    @Override
+    public List<String> findConversationIds() {
+        if (store != null) {
+            return store.ids();
+        }
+        synchronized (this) {
+            return List.copyOf(conversations.keySet());
+        }
+    }
+
+    @Override
+    public List<Message> findByConversationId(String conversationId) {
+        synchronized (this) {
+            Conversation conversation = conversations.get(conversationId);
+            if (conversation != null || store == null) {
+                return conversation != null ? conversation.messages() : List.of();
+            }
+        }
+        List<Message> stored;
+        try {
+            stored = store.get(conversationId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (stored == null) {
+            return List.of();
+        }
+        loads.increment();
+        synchronized (this) {
+            // Пока читали с диска, разговор мог быть сохранён заново: тогда в памяти уже новее
+            Conversation conversation = conversations.get(conversationId);
+            if (conversation == null) {
+                conversation = conversation(conversationId, stored);
+                cache(conversationId, conversation);
+            }
+            return conversation.messages();
+        }
+    }
+
+    @Override
+    public void saveAll(String conversationId, List<Message> messages) {
+        List<Message> compacted = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            Message compact = compact(message);
+            if (compact != null) {
+                compacted.add(compact);
+            }
+        }
+        int trimmed = trim(compacted);
+        Conversation conversation = conversation(conversationId, compacted);
+        synchronized (this) {
+            if (store != null) {
+                try {
+                    store.put(conversationId, conversation.messages());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            cache(conversationId, conversation);
+        }
+        if (trimmed > 0) {
+            evictedMessages.increment(trimmed);
+            log.debug("Dropped {} oldest messages of conversation {}", trimmed, conversationId);
+        }
+    }
+
+    @Override
+    public synchronized void deleteByConversationId(String conversationId) {
+        Conversation removed = conversations.remove(conversationId);
+        if (removed != null) {
+            bytes -= removed.weight();
+        }
+        if (store != null) {
+            try {
+                store.delete(conversationId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    public synchronized int size() {
+        return conversations.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Puts the conversation in heap and evicts the least recently used others until the budgets are met.
+     */
+    private void cache(String conversationId, Conversation conversation) {
+        Conversation previous = conversations.put(conversationId, conversation);
+        bytes += conversation.weight() - (previous != null ? previous.weight() : 0);
+        Iterator<Map.Entry<String, Conversation>> eldest = conversations.entrySet().iterator();
+        while ((bytes > maxBytes || conversations.size() > maxConversations) && eldest.hasNext()) {
+            Map.Entry<String, Conversation> entry = eldest.next();
+            if (entry.getKey().equals(conversationId)) {
+                break;
+            }
+            bytes -= entry.getValue().weight();
+            eldest.remove();
+            evictedConversations.increment();
+            log.debug("Chat memory of conversation {} evicted", entry.getKey());
+        }
+    }
+
+    private static Conversation conversation(String conversationId, List<Message> messages) {
+        return new Conversation(List.copyOf(messages),
+                weight(conversationId) + messages.stream().mapToLong(ConversationMemoryRepository::weight).sum());
+    }
+
+    /**
+     * The message without metadata and with long tool results cut, or {@code null} if it is not kept.
+     */
+    private Message compact(Message message) {
+        return switch (message) {
+            case UserMessage user -> new UserMessage(user.getText());
+            case SystemMessage system -> new SystemMessage(system.getText());
+            case AssistantMessage assistant -> {
+                List<AssistantMessage.ToolCall> toolCalls =
+                        maxToolResultChars > 0 ? assistant.getToolCalls() : List.of();
+                String text = assistant.getText();
+                if (toolCalls.isEmpty() && (text == null || text.isEmpty())) {
+                    yield null;
+                }
+                yield new AssistantMessage(text, Map.of(), toolCalls);
+            }
+            case ToolResponseMessage tool -> {
+                if (maxToolResultChars <= 0) {
+                    yield null;
+                }
+                yield new ToolResponseMessage(tool.getResponses().stream()
+                        .map(response -> new ToolResponseMessage.ToolResponse(response.id(), response.name(),
+                                truncate(response.responseData())))
+                        .toList());
+            }
+            default -> message;
+        };
+    }
+
+    /**
+     * Cuts {@code data} to exactly {@link #maxToolResultChars}, note included, so a cut result is not cut again.
+     */
+    private String truncate(String data) {
+        if (data == null || data.length() <= maxToolResultChars) {
+            return data;
+        }
+        String note = "\n... [" + data.length() + " chars of the tool result omitted from the chat history]";
+        int head = Math.max(0, maxToolResultChars - note.length());
+        return data.substring(0, head) + note;
+    }
+
+    /**
+     * Drops the oldest messages until the conversation fits its budget and starts with a user message; system
+     * messages stay.
+     *
+     * @return number of dropped messages
+     */
+    private int trim(List<Message> messages) {
+        long weight = messages.stream().mapToLong(ConversationMemoryRepository::weight).sum();
+        int dropped = 0;
+        Iterator<Message> iterator = messages.iterator();
+        boolean trimming = weight > conversationMaxBytes;
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.getMessageType() == MessageType.SYSTEM) {
+                continue;
+            }
+            // История начинается с вопроса пользователя: без него ответы, вызовы и результаты инструментов теряют
+            // смысл, а результат без своего вызова модель вообще не примет
+            if (!trimming && message.getMessageType() == MessageType.USER) {
+                break;
+            }
+            weight -= weight(message);
+            iterator.remove();
+            dropped++;
+            trimming = weight > conversationMaxBytes;
+        }
+        return dropped;
+    }
+
+    private static long weight(Message message) {
+        long chars = message.getText() != null ? message.getText().length() : 0;
+        if (message instanceof AssistantMessage assistant) {
+            for (AssistantMessage.ToolCall call : assistant.getToolCalls()) {
+                chars += call.id().length() + call.name().length() + call.arguments().length();
+            }
+        } else if (message instanceof ToolResponseMessage tool) {
+            for (ToolResponseMessage.ToolResponse response : tool.getResponses()) {
+                chars += response.id().length() + response.name().length()
+                        + (response.responseData() != null ? response.responseData().length() : 0);
+            }
+        }
+        return 2 * chars + MESSAGE_OVERHEAD;
+    }
+
+    private static long weight(String conversationId) {
+        return 2L * conversationId.length() + MESSAGE_OVERHEAD;
+    }
+
+    private record Conversation(List<Message> messages, long weight) {
+    }
+}
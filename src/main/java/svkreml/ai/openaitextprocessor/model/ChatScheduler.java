@@ -0,0 +1,321 @@
+package svkreml.ai.openaitextprocessor.model;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control in front of the model: at most {@code spring.ai.openai.scheduler.max-concurrent-per-backend}
+ * generations per backend run at once, the rest wait in one queue shared by all chat clients.
+ * <p>
+ * Slots are counted for the backends that currently take requests ({@link #followAvailableBackends}), so while a
+ * {@link RoutingChatModel} has ejected some of them the requests queue here instead of overloading the rest; with
+ * every backend ejected one backend's worth of slots stays open to probe them. Slots of a readmitted backend are
+ * handed to waiting requests as running ones finish.
+ * <p>
+ * The queue is ordered by {@link Priority}, then by arrival, so interactive chats overtake batch translation but
+ * requests of one priority start in the order they came. Instead of letting requests wait until the model timeouts
+ * fire, the scheduler turns them away early:
+ * <ul>
+ *   <li>{@code 429} when {@code max-queue} requests already wait;</li>
+ *   <li>{@code 503} when the expected wait (requests ahead of it, times the average generation time, divided by the
+ *   number of slots) exceeds the priority's {@code max-wait};</li>
+ *   <li>{@code 503} when a request did wait {@code max-wait} without getting a slot.</li>
+ * </ul>
+ * Meters: {@code model.scheduler.queue} and {@code model.scheduler.wait} (tag {@code priority}),
+ * {@code model.scheduler.running} and {@code model.scheduler.rejected} (tags {@code priority},
+ * {@code reason=queue-full|deadline|timeout}).
+ */
+@Slf4j
+@Component
+public class ChatScheduler {
+
+    public enum Priority {
+        INTERACTIVE,
+        BATCH
+    }
+
+    private static final double HOLD_WEIGHT = 0.2;
+
+    private final int maxConcurrentPerBackend;
+    private final int backends;
+    private final List<IntSupplier> availableBackends = new CopyOnWriteArrayList<>();
+    private final int maxQueue;
+    private final Map<Priority, Duration> maxWait = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> waits = new EnumMap<>(Priority.class);
+    private final MeterRegistry registry;
+    private final LongSupplier nanoClock;
+
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>(
+            Comparator.comparing((Ticket ticket) -> ticket.priority).thenComparingLong(ticket -> ticket.sequence));
+    private long sequence;
+    private int running;
+    private double holdNanos;
+
+    @Autowired
+    public ChatScheduler(
+            @Value("${spring.ai.openai.scheduler.max-concurrent-per-backend:4}") int maxConcurrentPerBackend,
+            @Value("${spring.ai.openai.base-url:http://localhost:1234}") List<String> baseUrls,
+            @Value("${spring.ai.openai.scheduler.max-queue:100}") int maxQueue,
+            @Value("${spring.ai.openai.scheduler.max-wait.interactive:30s}") String interactiveMaxWait,
+            @Value("${spring.ai.openai.scheduler.max-wait.batch:10m}") String batchMaxWait,
+            MeterRegistry registry
+    ) {
+        this(maxConcurrentPerBackend, baseUrls.size(), maxQueue, DurationStyle.detectAndParse(interactiveMaxWait),
+                DurationStyle.detectAndParse(batchMaxWait), registry);
+    }
+
+    public ChatScheduler(int maxConcurrentPerBackend, int backends, int maxQueue, Duration interactiveMaxWait,
+                         Duration batchMaxWait, MeterRegistry registry) {
+        this(maxConcurrentPerBackend, backends, maxQueue, interactiveMaxWait, batchMaxWait, registry, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock source of {@link System#nanoTime()}-like readings for waits and generation times
+     */
+    public ChatScheduler(int maxConcurrentPerBackend, int backends, int maxQueue, Duration interactiveMaxWait,
+                         Duration batchMaxWait, MeterRegistry registry, LongSupplier nanoClock) {
+        this.maxConcurrentPerBackend = maxConcurrentPerBackend;
+        this.backends = backends;
+        this.maxQueue = maxQueue;
+        this.registry = registry;
+        this.nanoClock = nanoClock;
+        maxWait.put(Priority.INTERACTIVE, interactiveMaxWait);
+        maxWait.put(Priority.BATCH, batchMaxWait);
+        for (Priority priority : Priority.values()) {
+            String tag = priority.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("model.scheduler.queue", this, scheduler -> scheduler.queued(priority))
+                    .description("Model requests waiting for a slot")
+                    .tag("priority", tag)
+                    .register(registry);
+            waits.put(priority, Timer.builder("model.scheduler.wait")
+                    .description("Time model requests waited for a slot")
+                    .tag("priority", tag)
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        Gauge.builder("model.scheduler.running", this, ChatScheduler::running)
+                .description("Model requests holding a slot")
+                .register(registry);
+        log.info("Chat scheduler: maxConcurrentPerBackend={}, backends={}, maxQueue={}, maxWait={}",
+                maxConcurrentPerBackend, backends, maxQueue, maxWait);
+    }
+
+    public int maxConcurrentPerBackend() {
+        return maxConcurrentPerBackend;
+    }
+
+    /**
+     * Counts slots only for the backends {@code availableBackends} reports as taking requests, e.g.
+     * {@link RoutingChatModel#availableBackends()}. With several sources the lowest count is used.
+     */
+    public void followAvailableBackends(IntSupplier availableBackends) {
+        this.availableBackends.add(availableBackends);
+    }
+
+    /**
+     * Slots of the backends that currently take requests, at least those of one backend.
+     */
+    public int capacity() {
+        int available = backends;
+        for (IntSupplier source : availableBackends) {
+            available = Math.min(available, source.getAsInt());
+        }
+        return maxConcurrentPerBackend * Math.max(1, available);
+    }
+
+    /**
+     * {@code model} whose requests take a slot of this scheduler with the given priority.
+     */
+    public ChatModel schedule(ChatModel model, Priority priority) {
+        return new Scheduled(model, priority);
+    }
+
+    public synchronized int running() {
+        return running;
+    }
+
+    public synchronized int queued(Priority priority) {
+        return (int) queue.stream().filter(ticket -> ticket.priority == priority).count();
+    }
+
+    /**
+     * A granted or queued ticket.
+     *
+     * @throws ModelOverloadedException if the request should not wait
+     */
+    private synchronized Ticket admit(Priority priority) {
+        Ticket ticket = new Ticket(priority, sequence++);
+        int capacity = capacity();
+        if (running < capacity && queue.isEmpty()) {
+            grant(ticket);
+            ticket.granted.complete(null);
+            return ticket;
+        }
+        if (queue.size() >= maxQueue) {
+            throw reject(priority, "queue-full", HttpStatus.TOO_MANY_REQUESTS,
+                    "Model queue is full", expectedWait(queue.size(), capacity));
+        }
+        long ahead = queue.stream().filter(waiting -> waiting.priority.compareTo(priority) <= 0).count();
+        Duration expected = expectedWait(ahead + 1, capacity);
+        if (expected.compareTo(maxWait.get(priority)) > 0) {
+            throw reject(priority, "deadline", HttpStatus.SERVICE_UNAVAILABLE,
+                    "Model is overloaded, expected wait " + expected.toMillis() + " ms", expected);
+        }
+        queue.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Time until the {@code position}-th waiting request gets a slot, if slots free up at the average rate.
+     */
+    private Duration expectedWait(long position, int capacity) {
+        return Duration.ofNanos((long) (holdNanos * position / capacity));
+    }
+
+    private ModelOverloadedException reject(Priority priority, String reason, HttpStatus status, String message,
+                                            Duration retryAfter) {
+        Counter.builder("model.scheduler.rejected")
+                .description("Model requests turned away by admission control")
+                .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                .tag("reason", reason)
+                .register(registry)
+                .increment();
+        log.warn("Rejected {} model request ({}): {}", priority, reason, message);
+        return new ModelOverloadedException(status, message, retryAfter);
+    }
+
+    private void grant(Ticket ticket) {
+        running++;
+        ticket.grantedAt = nanoClock.getAsLong();
+        waits.get(ticket.priority).record(ticket.grantedAt - ticket.enqueuedAt, TimeUnit.NANOSECONDS);
+    }
+
+    private void close(Ticket ticket) {
+        List<Ticket> granted = new ArrayList<>();
+        synchronized (this) {
+            if (!queue.remove(ticket)) {
+                running--;
+                long held = nanoClock.getAsLong() - ticket.grantedAt;
+                holdNanos = holdNanos == 0 ? held : holdNanos + HOLD_WEIGHT * (held - holdNanos);
+            }
+            int capacity = capacity();
+            while (running < capacity && !queue.isEmpty()) {
+                Ticket next = queue.poll();
+                grant(next);
+                granted.add(next);
+            }
+        }
+        // Вне блокировки: по сигналу сразу стартует запрос к модели
+        granted.forEach(next -> next.granted.complete(null));
+    }
+
+    private final class Ticket {
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueuedAt = nanoClock.getAsLong();
+        private final CompletableFuture<Void> granted = new CompletableFuture<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private long grantedAt;
+
+        private Ticket(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Time left until the deadline of this request.
+         */
+        private Duration remaining() {
+            return maxWait.get(priority).minusNanos(nanoClock.getAsLong() - enqueuedAt);
+        }
+
+        private ModelOverloadedException timedOut() {
+            return reject(priority, "timeout", HttpStatus.SERVICE_UNAVAILABLE,
+                    "Model is overloaded, no slot within " + maxWait.get(priority).toMillis() + " ms",
+                    expectedWait(1, capacity()));
+        }
+
+        /**
+         * Frees the slot or leaves the queue; only the first call counts.
+         */
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                ChatScheduler.this.close(this);
+            }
+        }
+    }
+
+    private final class Scheduled implements ChatModel {
+
+        private final ChatModel delegate;
+        private final Priority priority;
+
+        private Scheduled(ChatModel delegate, Priority priority) {
+            this.delegate = delegate;
+            this.priority = priority;
+        }
+
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            Ticket ticket = admit(priority);
+            try {
+                if (!ticket.granted.isDone()) {
+                    ticket.granted.get(Math.max(0, ticket.remaining().toNanos()), TimeUnit.NANOSECONDS);
+                }
+                return delegate.call(prompt);
+            } catch (TimeoutException e) {
+                throw ticket.timedOut();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the model", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                // Освобождает слот или, после таймаута, место в очереди
+                ticket.close();
+            }
+        }
+
+        @Override
+        public Flux<ChatResponse> stream(Prompt prompt) {
+            return Flux.defer(() -> {
+                Ticket ticket = admit(priority);
+                return Mono.fromFuture(ticket.granted, true)
+                        .timeout(ticket.remaining().isNegative() ? Duration.ZERO : ticket.remaining(),
+                                Mono.error(ticket::timedOut))
+                        .thenMany(Flux.defer(() -> delegate.stream(prompt)))
+                        .doFinally(signal -> ticket.close());
+            });
+        }
+
+        @Override
+        public ChatOptions getDefaultOptions() {
+            return delegate.getDefaultOptions();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package svkreml.ai.openaitextprocessor.model;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+/**
+ * A request {@link ChatScheduler} turned away instead of letting it wait: {@code 429} if the queue is full,
+ * {@code 503} if it could not start before its deadline. {@code Retry-After} tells the client when to try again.
+ */
+public class ModelOverloadedException extends ResponseStatusException {
+
+    private final Duration retryAfter;
+
+    public ModelOverloadedException(HttpStatus status, String reason, Duration retryAfter) {
+        super(status, reason);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, retryAfter.toSeconds())));
+        return headers;
+    }
+}
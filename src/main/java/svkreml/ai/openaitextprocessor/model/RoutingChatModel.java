@@ -0,0 +1,354 @@
+package svkreml.ai.openaitextprocessor.model;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.retry.TransientAiException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * {@link ChatModel} that spreads requests over several OpenAI-compatible servers running the same model.
+ * <p>
+ * A request goes to the available backend with the fewest requests in flight ({@link Policy#LEAST_OUTSTANDING}) or
+ * with the lowest observed latency weighted by its requests in flight ({@link Policy#LATENCY}). A conversation sticks
+ * to one backend, chosen by rendezvous hashing of its prefix (system messages and the first user message), so the
+ * server can reuse the KV cache of that prefix; it moves elsewhere only while its backend has more than
+ * {@code stickyMaxImbalance} requests in flight above the least loaded one, or is unavailable.
+ * <p>
+ * A backend with {@code maxOutstanding} requests in flight gets no more while another one has room;
+ * {@link ChatScheduler} keeps the total within the sum of these limits over the {@link #availableBackends()}.
+ * <p>
+ * A backend whose request fails in transport (connection or read error, {@code 5xx}), or whose health check fails,
+ * is ejected for a backoff that doubles with every consecutive failure up to {@code maxBackoff}; a passing health
+ * check or a successful request readmits it. Other errors, e.g. of the tools, leave the backend in. Failed requests
+ * are not repeated on another backend: tool calls of the request may already have run.
+ * <p>
+ * Meters per backend: {@code model.backend.outstanding}, {@code model.backend.available} and
+ * {@code model.backend.requests} (tag {@code outcome=success|error}).
+ */
+@Slf4j
+public class RoutingChatModel implements ChatModel, AutoCloseable {
+
+    public enum Policy {
+        LEAST_OUTSTANDING,
+        LATENCY
+    }
+
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final List<Backend> backends;
+    private final Policy policy;
+    private final int stickyMaxImbalance;
+    private final int maxOutstanding;
+    private final long backoffNanos;
+    private final long maxBackoffNanos;
+    private final ScheduledExecutorService healthChecks;
+
+    /**
+     * @param maxOutstanding limit of requests in flight per backend, 0 for none
+     * @param healthInterval period of the health checks; zero disables them
+     */
+    public RoutingChatModel(List<Backend> backends, Policy policy, int stickyMaxImbalance, int maxOutstanding,
+                            Duration healthInterval, Duration backoff, Duration maxBackoff, MeterRegistry registry) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No backends");
+        }
+        this.backends = List.copyOf(backends);
+        this.policy = policy;
+        this.stickyMaxImbalance = stickyMaxImbalance;
+        this.maxOutstanding = maxOutstanding;
+        this.backoffNanos = backoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        for (Backend backend : this.backends) {
+            backend.register(registry);
+        }
+        if (healthInterval.isZero()) {
+            this.healthChecks = null;
+        } else {
+            this.healthChecks = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("model-health").daemon().factory());
+            healthChecks.scheduleWithFixedDelay(this::checkHealth, 0, healthInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        log.info("Routing chat model: backends={}, policy={}, stickyMaxImbalance={}",
+                this.backends.stream().map(Backend::name).toList(), policy, stickyMaxImbalance);
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        Backend backend = acquire(prompt);
+        long start = System.nanoTime();
+        try {
+            ChatResponse response = backend.model.call(prompt);
+            succeeded(backend, System.nanoTime() - start);
+            return response;
+        } catch (RuntimeException e) {
+            failed(backend, e);
+            throw e;
+        } finally {
+            backend.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Latency of a stream is the time to its first response.
+     */
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        return Flux.defer(() -> {
+            Backend backend = acquire(prompt);
+            long start = System.nanoTime();
+            AtomicBoolean first = new AtomicBoolean(true);
+            return backend.model.stream(prompt)
+                    .doOnNext(response -> {
+                        if (first.compareAndSet(true, false)) {
+                            succeeded(backend, System.nanoTime() - start);
+                        }
+                    })
+                    .doOnError(e -> failed(backend, e))
+                    .doFinally(signal -> backend.outstanding.decrementAndGet());
+        });
+    }
+
+    @Override
+    public ChatOptions getDefaultOptions() {
+        return backends.get(0).model.getDefaultOptions();
+    }
+
+    public List<Backend> backends() {
+        return backends;
+    }
+
+    /**
+     * Backends that currently take requests, i.e. are not ejected.
+     */
+    public int availableBackends() {
+        long now = System.nanoTime();
+        return (int) backends.stream().filter(backend -> backend.isAvailable(now)).count();
+    }
+
+    @Override
+    public void close() {
+        if (healthChecks != null) {
+            healthChecks.shutdownNow();
+        }
+    }
+
+    /**
+     * Selects a backend and counts the request in its {@link Backend#outstanding()}, atomically so that concurrent
+     * requests see each other.
+     */
+    private synchronized Backend acquire(Prompt prompt) {
+        Backend backend = select(prompt);
+        backend.outstanding.incrementAndGet();
+        return backend;
+    }
+
+    private Backend select(Prompt prompt) {
+        long now = System.nanoTime();
+        List<Backend> available = backends.stream().filter(backend -> backend.isAvailable(now)).toList();
+        List<Backend> withRoom = available.stream()
+                .filter(backend -> maxOutstanding <= 0 || backend.outstanding.get() < maxOutstanding)
+                .toList();
+        if (!withRoom.isEmpty()) {
+            // Места нет нигде, только пока планировщик не заметил исключения бэкенда: перегружаем наименее загруженный
+            available = withRoom;
+        }
+        if (available.isEmpty()) {
+            // Все выброшены: пробуем тот, чей бэкофф кончается раньше, а не отказываем сразу
+            return backends.stream().min(Comparator.comparingLong(backend -> backend.ejectedUntil)).orElseThrow();
+        }
+        Backend best = available.stream().min(Comparator.comparingDouble(this::score)).orElseThrow();
+        String key = conversationKey(prompt);
+        if (key == null) {
+            return best;
+        }
+        Backend sticky = available.stream()
+                .max(Comparator.comparingLong(backend -> rendezvous(key, backend.name)))
+                .orElseThrow();
+        int leastOutstanding = available.stream().mapToInt(backend -> backend.outstanding.get()).min().orElse(0);
+        return sticky.outstanding.get() - leastOutstanding <= stickyMaxImbalance ? sticky : best;
+    }
+
+    private double score(Backend backend) {
+        int outstanding = backend.outstanding.get();
+        return switch (policy) {
+            case LEAST_OUTSTANDING -> outstanding;
+            // Ещё не измеренный бэкенд считаем самым быстрым, чтобы он получил запросы и оценку
+            case LATENCY -> backend.latencyNanos * (outstanding + 1);
+        };
+    }
+
+    /**
+     * System messages and the first user message: the part of the prompt every turn of a conversation starts with.
+     */
+    static String conversationKey(Prompt prompt) {
+        StringBuilder key = new StringBuilder();
+        for (Message message : prompt.getInstructions()) {
+            if (message.getMessageType() == MessageType.SYSTEM) {
+                key.append(message.getText()).append('\0');
+            } else if (message.getMessageType() == MessageType.USER) {
+                return key.append(message.getText()).toString();
+            }
+        }
+        return null;
+    }
+
+    private static long rendezvous(String key, String backend) {
+        // Финализатор MurmurHash3: одинаковый ключ даёт один бэкенд, разные ключи расходятся равномерно
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L + backend.hashCode();
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private void succeeded(Backend backend, long nanos) {
+        synchronized (backend) {
+            backend.latencyNanos = backend.latencyNanos == 0 ? nanos
+                    : backend.latencyNanos + LATENCY_WEIGHT * (nanos - backend.latencyNanos);
+            backend.readmit();
+        }
+        backend.successes.increment();
+    }
+
+    private void failed(Backend backend, Throwable e) {
+        backend.errors.increment();
+        if (isBackendFailure(e)) {
+            eject(backend, e.getMessage());
+        }
+    }
+
+    private void eject(Backend backend, String reason) {
+        synchronized (backend) {
+            backend.failures++;
+            long backoff = Math.min(maxBackoffNanos, backoffNanos << Math.min(backend.failures - 1, 30));
+            backend.ejectedUntil = System.nanoTime() + backoff;
+            log.warn("Backend {} ejected for {} ms after {} failures: {}",
+                    backend.name, backoff / 1_000_000, backend.failures, reason);
+        }
+    }
+
+    /**
+     * Only transport failures count: the tool-calling loop runs inside the backend's model, so an unknown tool name or
+     * a failed tool surfaces here as well, and a rejected request is the caller's fault, not the backend's.
+     */
+    private static boolean isBackendFailure(Throwable e) {
+        return switch (e) {
+            case TransientAiException transientError -> true;
+            case ResourceAccessException connectError -> true;
+            case WebClientRequestException connectError -> true;
+            case RestClientResponseException response -> response.getStatusCode().is5xxServerError();
+            case WebClientResponseException response -> response.getStatusCode().is5xxServerError();
+            default -> false;
+        };
+    }
+
+    private void checkHealth() {
+        for (Backend backend : backends) {
+            boolean healthy;
+            try {
+                healthy = backend.healthCheck.getAsBoolean();
+            } catch (RuntimeException e) {
+                healthy = false;
+            }
+            if (healthy) {
+                synchronized (backend) {
+                    if (backend.failures > 0) {
+                        log.info("Backend {} is healthy again", backend.name);
+                    }
+                    backend.readmit();
+                }
+            } else if (backend.isAvailable(System.nanoTime())) {
+                eject(backend, "health check failed");
+            }
+        }
+    }
+
+    /**
+     * One server; {@code name} is its base URL.
+     */
+    public static final class Backend {
+
+        private final String name;
+        private final ChatModel model;
+        private final BooleanSupplier healthCheck;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double latencyNanos;
+        private volatile long ejectedUntil;
+        private volatile int failures;
+        private Counter successes;
+        private Counter errors;
+
+        /**
+         * @param healthCheck returns {@code true} if the server is up; called from the health check thread
+         */
+        public Backend(String name, ChatModel model, BooleanSupplier healthCheck) {
+            this.name = name;
+            this.model = model;
+            this.healthCheck = healthCheck;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int outstanding() {
+            return outstanding.get();
+        }
+
+        public boolean isAvailable() {
+            return isAvailable(System.nanoTime());
+        }
+
+        private boolean isAvailable(long now) {
+            return failures == 0 || now - ejectedUntil >= 0;
+        }
+
+        private void readmit() {
+            failures = 0;
+            ejectedUntil = 0;
+        }
+
+        private void register(MeterRegistry registry) {
+            Gauge.builder("model.backend.outstanding", outstanding, AtomicInteger::get)
+                    .description("Requests in flight to a model backend")
+                    .tag("backend", name)
+                    .register(registry);
+            Gauge.builder("model.backend.available", this, backend -> backend.isAvailable() ? 1 : 0)
+                    .description("1 if a model backend receives requests, 0 while it is ejected")
+                    .tag("backend", name)
+                    .register(registry);
+            successes = requests(registry, "success");
+            errors = requests(registry, "error");
+        }
+
+        private Counter requests(MeterRegistry registry, String outcome) {
+            return Counter.builder("model.backend.requests")
+                    .description("Requests to a model backend")
+                    .tag("backend", name)
+                    .tag("outcome", outcome)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Three-way comparison of a source bundle, an existing translation and the result of an earlier run.
+ * <p>
+ * Every source key gets one {@link State} in a single pass over the source, using the position tables of the other
+ * two bundles; nothing is copied into intermediate maps. {@link #merged} builds the output in source order with the
+ * source comments.
+ */
+public final class BundleMerge {
+
+    public enum State {
+        /**
+         * Translated in the existing bundle, which wins over everything else.
+         */
+        EXISTING,
+        /**
+         * Translated by an earlier run.
+         */
+        KEPT,
+        /**
+         * Needs a translation.
+         */
+        PENDING
+    }
+
+    private static final State[] STATES = State.values();
+
+    private final PropertiesBundle source;
+    private final PropertiesBundle existing;
+    private final PropertiesBundle result;
+    private final byte[] states;
+    private final int[] counts = new int[STATES.length];
+
+    private BundleMerge(PropertiesBundle source, PropertiesBundle existing, PropertiesBundle result) {
+        this.source = source;
+        this.existing = existing;
+        this.result = result;
+        this.states = new byte[source.size()];
+        for (int i = 0; i < source.size(); i++) {
+            String key = source.key(i);
+            State state = existing.containsKey(key) ? State.EXISTING
+                    : result.containsKey(key) ? State.KEPT
+                    : State.PENDING;
+            states[i] = (byte) state.ordinal();
+            counts[state.ordinal()]++;
+        }
+    }
+
+    public static BundleMerge of(PropertiesBundle source, PropertiesBundle existing, PropertiesBundle result) {
+        return new BundleMerge(source, existing, result);
+    }
+
+    public State state(int index) {
+        return STATES[states[index]];
+    }
+
+    public int count(State state) {
+        return counts[state.ordinal()];
+    }
+
+    /**
+     * Calls {@code action} with the key and source text of every {@link State#PENDING} entry, in source order.
+     */
+    public void forEachPending(BiConsumer<String, String> action) {
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == State.PENDING.ordinal()) {
+                action.accept(source.key(i), source.value(i));
+            }
+        }
+    }
+
+    /**
+     * Keys of the earlier result that are no longer in the source.
+     */
+    public List<String> obsolete() {
+        List<String> obsolete = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            if (!source.containsKey(result.key(i))) {
+                obsolete.add(result.key(i));
+            }
+        }
+        return obsolete;
+    }
+
+    /**
+     * The output bundle in source order with source comments. Values come from the existing bundle, then from
+     * {@code translated}, then from the earlier result; keys with none of them are left out.
+     */
+    public PropertiesBundle merged(Function<String, String> translated) {
+        PropertiesBundle merged = new PropertiesBundle(source.size());
+        // Комментарий пропущенного ключа переносим к следующему
+        String carried = null;
+        for (int i = 0; i < states.length; i++) {
+            String key = source.key(i);
+            String value = switch (STATES[states[i]]) {
+                case EXISTING -> existing.get(key);
+                case KEPT -> {
+                    String fresh = translated.apply(key);
+                    yield fresh != null ? fresh : result.get(key);
+                }
+                case PENDING -> translated.apply(key);
+            };
+            String comment = join(carried, source.comment(i));
+            if (value != null) {
+                merged.put(key, value, comment);
+                carried = null;
+            } else {
+                carried = comment;
+            }
+        }
+        merged.trailingComment(join(carried, source.trailingComment()));
+        return merged;
+    }
+
+    private static String join(String first, String second) {
+        return first == null ? second : second == null ? first : first + second;
+    }
+}
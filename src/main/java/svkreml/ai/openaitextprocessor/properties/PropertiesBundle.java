@@ -0,0 +1,225 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Ordered properties bundle with its comments.
+ * <p>
+ * Entries live in parallel arrays in file order; lookups go through an open-addressing table of positions, so a
+ * 100k-key bundle is three arrays and an {@code int[]} instead of a map of entry objects. Comment and blank lines are
+ * kept with the entry that follows them and written back by {@link #write}. A repeated key keeps its first position
+ * and takes the last value, like {@link java.util.Properties}.
+ */
+public final class PropertiesBundle {
+
+    private String[] keys;
+    private String[] values;
+    private String[] comments;
+    private int size;
+    private int[] table;
+    private String trailingComment;
+
+    public PropertiesBundle() {
+        this(16);
+    }
+
+    public PropertiesBundle(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        keys = new String[capacity];
+        values = new String[capacity];
+        comments = new String[capacity];
+        table = new int[tableSize(capacity)];
+    }
+
+    public static PropertiesBundle load(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return read(reader);
+        }
+    }
+
+    public static PropertiesBundle read(Reader reader) throws IOException {
+        PropertiesBundle bundle = new PropertiesBundle();
+        StringBuilder comment = new StringBuilder();
+        PropertiesFormat.parse(reader, new PropertiesFormat.Handler() {
+            @Override
+            public void comment(String line) {
+                comment.append(line).append('\n');
+            }
+
+            @Override
+            public void entry(String key, String value) {
+                bundle.put(key, value, comment.isEmpty() ? null : comment.toString());
+                comment.setLength(0);
+            }
+        });
+        bundle.trailingComment = comment.isEmpty() ? null : comment.toString();
+        return bundle;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    public String value(int index) {
+        return values[index];
+    }
+
+    /**
+     * Comment and blank lines before the entry, each ending with {@code '\n'}, or {@code null}.
+     */
+    public String comment(int index) {
+        return comments[index];
+    }
+
+    /**
+     * @return position of {@code key}, or {@code -1}
+     */
+    public int indexOf(String key) {
+        int mask = table.length - 1;
+        for (int slot = spread(key.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (keys[index].equals(key)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    public boolean containsKey(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    public String get(String key) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    public void put(String key, String value) {
+        put(key, value, null);
+    }
+
+    /**
+     * Adds an entry at the end, or replaces the value of an existing key in place.
+     */
+    public void put(String key, String value, String comment) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[index] = value;
+            if (comment != null) {
+                comments[index] = comments[index] == null ? comment : comments[index] + comment;
+            }
+            return;
+        }
+        if (size == keys.length) {
+            grow();
+        }
+        keys[size] = key;
+        values[size] = value;
+        comments[size] = comment;
+        size++;
+        insert(size - 1);
+    }
+
+    public void write(Writer out) throws IOException {
+        for (int i = 0; i < size; i++) {
+            if (comments[i] != null) {
+                out.write(comments[i]);
+            }
+            PropertiesFormat.writeEntry(out, keys[i], values[i]);
+        }
+        if (trailingComment != null) {
+            out.write(trailingComment);
+        }
+    }
+
+    /**
+     * Replaces {@code path} with this bundle via a temporary file and an atomic move. The temporary file is flushed to
+     * disk before the move and the directory after it, so once this returns the new content survives a crash.
+     */
+    public void store(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+                write(out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(absolute.getParent());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Flushes the entries of {@code dir}, e.g. a rename into it, to disk where the file system allows opening a
+     * directory.
+     */
+    private static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Windows не открывает каталог как файл; там остаётся полагаться на файловую систему
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    void trailingComment(String trailingComment) {
+        this.trailingComment = trailingComment;
+    }
+
+    String trailingComment() {
+        return trailingComment;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        comments = Arrays.copyOf(comments, capacity);
+        table = new int[tableSize(capacity)];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = spread(keys[index].hashCode()) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private static int tableSize(int capacity) {
+        // Заполнение таблицы не больше половины
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
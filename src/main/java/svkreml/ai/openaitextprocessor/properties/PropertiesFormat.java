@@ -0,0 +1,171 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Streaming reader and writer of the {@code .properties} format.
+ * <p>
+ * {@link #parse} follows {@link java.util.Properties#load(Reader)} (separators, line continuations, escapes),
+ * but reads in a single pass and reports comment and blank lines verbatim, so a bundle can be written back with
+ * its layout. {@link #escape} writes like {@link java.util.Properties#store(Writer, String)}, except that non-ASCII
+ * characters are kept as is: files are UTF-8 and must be read with a UTF-8 {@link Reader}.
+ */
+public final class PropertiesFormat {
+
+    private PropertiesFormat() {
+    }
+
+    public interface Handler {
+
+        /**
+         * A comment or blank line, without the line terminator.
+         */
+        void comment(String line);
+
+        void entry(String key, String value);
+    }
+
+    public static void parse(Reader reader, Handler handler) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader buffered ? buffered : new BufferedReader(reader, 64 * 1024);
+        StringBuilder logical = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int start = skipWhitespace(line, 0);
+            if (start == line.length() || line.charAt(start) == '#' || line.charAt(start) == '!') {
+                handler.comment(line);
+                continue;
+            }
+            if (!continues(line)) {
+                parseEntry(line, start, line.length(), handler);
+                continue;
+            }
+            // Строка с продолжением: склеиваем без завершающего '\' и ведущих пробелов следующей строки
+            logical.setLength(0);
+            logical.append(line, start, line.length() - 1);
+            while ((line = in.readLine()) != null) {
+                int from = skipWhitespace(line, 0);
+                if (!continues(line)) {
+                    logical.append(line, from, line.length());
+                    break;
+                }
+                logical.append(line, from, line.length() - 1);
+            }
+            parseEntry(logical, 0, logical.length(), handler);
+        }
+    }
+
+    /**
+     * Escapes a key or a value for writing; see the class comment.
+     */
+    public static String escape(String text, boolean isKey) {
+        StringBuilder out = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '\t' -> out.append("\\t");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\f' -> out.append("\\f");
+                case '=', ':', '#', '!' -> out.append('\\').append(c);
+                case ' ' -> out.append(i == 0 || isKey ? "\\ " : " ");
+                default -> out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    public static void writeEntry(Writer out, String key, String value) throws IOException {
+        out.write(escape(key, true));
+        out.write('=');
+        out.write(escape(value, false));
+        out.write('\n');
+    }
+
+    private static void parseEntry(CharSequence line, int start, int end, Handler handler) {
+        int keyEnd = start;
+        boolean escaped = false;
+        while (keyEnd < end) {
+            char c = line.charAt(keyEnd);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '=' || c == ':' || isWhitespace(c)) {
+                break;
+            }
+            keyEnd++;
+        }
+        int valueStart = skipWhitespace(line, keyEnd);
+        if (valueStart < end && keyEnd < end && isWhitespace(line.charAt(keyEnd))
+                && (line.charAt(valueStart) == '=' || line.charAt(valueStart) == ':')) {
+            valueStart = skipWhitespace(line, valueStart + 1);
+        } else if (keyEnd < end && !isWhitespace(line.charAt(keyEnd))) {
+            valueStart = skipWhitespace(line, keyEnd + 1);
+        }
+        handler.entry(unescape(line, start, keyEnd), unescape(line, Math.min(valueStart, end), end));
+    }
+
+    private static String unescape(CharSequence text, int from, int to) {
+        StringBuilder out = null;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) != '\\') {
+                if (out != null) out.append(text.charAt(i));
+                continue;
+            }
+            if (out == null) {
+                out = new StringBuilder(to - from);
+                out.append(text, from, i);
+            }
+            if (++i == to) {
+                break;
+            }
+            char c = text.charAt(i);
+            switch (c) {
+                case 't' -> out.append('\t');
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 'f' -> out.append('\f');
+                case 'u' -> {
+                    if (i + 4 >= to) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding in: " + text);
+                    }
+                    int code = 0;
+                    for (int k = 1; k <= 4; k++) {
+                        int digit = Character.digit(text.charAt(i + k), 16);
+                        if (digit < 0) {
+                            throw new IllegalArgumentException("Malformed \\uxxxx encoding in: " + text);
+                        }
+                        code = code * 16 + digit;
+                    }
+                    out.append((char) code);
+                    i += 4;
+                }
+                default -> out.append(c);
+            }
+        }
+        return out != null ? out.toString() : text.subSequence(from, to).toString();
+    }
+
+    private static boolean continues(String line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static int skipWhitespace(CharSequence line, int from) {
+        while (from < line.length() && isWhitespace(line.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+}
@@ -0,0 +1,178 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Crash-safe incremental output of a properties file.
+ * <p>
+ * Changes are appended to {@code <target>.journal}, one record per line: a CRC32C of the entry followed by the entry in
+ * {@link PropertiesFormat}. An append costs only its own bytes, however large the target is. {@link #compact} writes the
+ * whole bundle to the target with an atomic rename and empties the journal. On open the target is loaded and the
+ * journal replayed on top of it; replay stops at the first torn or corrupt record and cuts the journal there, so a crash
+ * in the middle of an append or a compaction loses at most the record being written.
+ */
+@Slf4j
+public final class PropertiesJournal implements Closeable {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path target;
+    private final Path journal;
+    private final PropertiesBundle bundle;
+    private final FileChannel channel;
+    private int pending;
+
+    public PropertiesJournal(Path target) throws IOException {
+        this.target = target.toAbsolutePath();
+        this.journal = this.target.resolveSibling(this.target.getFileName() + ".journal");
+        this.bundle = Files.exists(this.target) ? PropertiesBundle.load(this.target) : new PropertiesBundle();
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The target with the journal applied; {@link #append} keeps it current.
+     */
+    public PropertiesBundle bundle() {
+        return bundle;
+    }
+
+    /**
+     * Records appended since the last compaction.
+     */
+    public int pending() {
+        return pending;
+    }
+
+    public synchronized void append(String key, String value) throws IOException {
+        StringWriter entry = new StringWriter();
+        PropertiesFormat.writeEntry(entry, key, value);
+        byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(9 + bytes.length);
+        record.put(HEX.toHexDigits((int) crc.getValue()).getBytes(StandardCharsets.US_ASCII)).put((byte) ' ').put(bytes).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        bundle.put(key, value);
+        pending++;
+    }
+
+    /**
+     * Replaces the target with {@link #bundle()} and empties the journal.
+     */
+    public void compact() throws IOException {
+        compact(bundle);
+    }
+
+    /**
+     * Replaces the target with {@code ordered}, e.g. {@link #bundle()} rearranged by {@link BundleMerge#merged}, and
+     * empties the journal. The journal is only cut once {@link PropertiesBundle#store} has the new target and its
+     * rename on disk, so a crash between the two steps only makes the next open replay records already in the target.
+     */
+    public synchronized void compact(PropertiesBundle ordered) throws IOException {
+        channel.force(false);
+        ordered.store(target);
+        channel.truncate(0);
+        channel.force(false);
+        log.debug("Compacted {} journal records into {}", pending, target);
+        pending = 0;
+    }
+
+    /**
+     * Flushes the journal to disk and removes it if it is empty.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try (channel) {
+            channel.force(false);
+        }
+        if (pending == 0) {
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    private void replay() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        channel.position(0);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            content.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+        }
+        byte[] bytes = content.toByteArray();
+
+        int valid = 0;
+        for (int end; (end = indexOf(bytes, (byte) '\n', valid)) >= 0; valid = end + 1) {
+            if (!replayRecord(bytes, valid, end + 1)) {
+                break;
+            }
+            pending++;
+        }
+        if (valid < bytes.length) {
+            log.warn("Dropping {} bytes of torn or corrupt records at the end of {}", bytes.length - valid, journal);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        if (pending > 0) {
+            log.info("Recovered {} records from {}", pending, journal);
+        }
+    }
+
+    private boolean replayRecord(byte[] bytes, int from, int to) {
+        if (to - from < 10 || bytes[from + 8] != ' ') {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, from + 9, to - from - 9);
+        try {
+            if (HEX.fromHexDigits(new String(bytes, from, 8, StandardCharsets.US_ASCII)) != (int) crc.getValue()) {
+                return false;
+            }
+            String entry = new String(bytes, from + 9, to - from - 9, StandardCharsets.UTF_8);
+            PropertiesFormat.parse(new StringReader(entry), new PropertiesFormat.Handler() {
+                @Override
+                public void comment(String line) {
+                }
+
+                @Override
+                public void entry(String key, String value) {
+                    bundle.put(key, value);
+                }
+            });
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            return false;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
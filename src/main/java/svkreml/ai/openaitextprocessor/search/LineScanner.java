@@ -0,0 +1,284 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming line matcher for files of any size.
+ * <p>
+ * The file is read through a fixed-size chunk buffer; line boundaries ({@code \n}, {@code \r}, {@code \r\n},
+ * same as {@link java.nio.file.Files#readAllLines}) are found on raw bytes. Lines are first checked by the
+ * {@link LiteralMatcher}; only candidates are decoded into a reused {@link CharBuffer} and matched with a single
+ * reused {@link Matcher}. Strings are created only for matched lines and their context. The last {@code contextBefore} lines are kept in a ring of reused byte slots,
+ * so heap usage depends on chunk size, context size and the longest line, not on the file size.
+ * Lines longer than {@code maxLineLength} bytes are truncated to that length.
+ */
+public final class LineScanner {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+    private final int chunkSize;
+    private final int maxLineLength;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    public LineScanner() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public LineScanner(int chunkSize, int maxLineLength) {
+        this.chunkSize = chunkSize;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Returns up to {@code limit} matching lines with their context, in file order.
+     *
+     * @throws CharacterCodingException if the file is not valid UTF-8
+     */
+    public List<Match> scan(Path file, Pattern pattern, int limit, int contextBefore, int contextAfter) throws IOException {
+        return scan(file, pattern, LiteralMatcher.forPattern(pattern), limit, contextBefore, contextAfter);
+    }
+
+    /**
+     * Same as {@link #scan(Path, Pattern, int, int, int)} with a pre-computed literal filter for {@code pattern};
+     * pass {@link LiteralMatcher#NONE} to run the regex on every line.
+     */
+    public List<Match> scan(Path file, Pattern pattern, LiteralMatcher literal,
+                            int limit, int contextBefore, int contextAfter) throws IOException {
+        List<Match> matches = new ArrayList<>();
+        List<PendingMatch> pending = new ArrayList<>();
+        ContextRing ring = new ContextRing(contextBefore);
+        Matcher matcher = pattern.matcher("");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(1, Math.min(chunkSize, channel.size())));
+            byte[] bytes = chunk.array();
+            int lineNumber = 0;
+            boolean afterCr = false;
+            boolean hasLine = false;
+
+            while (channel.read(chunk) > 0) {
+                int end = chunk.position();
+                int i = 0;
+                while (i < end) {
+                    if (afterCr) {
+                        // Вторая половина \r\n — строка уже завершена на \r
+                        afterCr = false;
+                        if (bytes[i] == '\n') {
+                            i++;
+                            continue;
+                        }
+                    }
+                    int eol = i;
+                    while (eol < end && bytes[eol] != '\n' && bytes[eol] != '\r') {
+                        eol++;
+                    }
+                    append(bytes, i, eol);
+                    hasLine |= eol > i;
+                    if (eol == end) {
+                        break;
+                    }
+                    afterCr = bytes[eol] == '\r';
+                    lineNumber++;
+                    onLine(lineNumber, matcher, literal, limit, matches, pending, ring, contextAfter);
+                    hasLine = false;
+                    if (matches.size() >= limit && pending.isEmpty()) {
+                        return matches;
+                    }
+                    i = eol + 1;
+                }
+                chunk.clear();
+            }
+            if (hasLine) {
+                onLine(lineNumber + 1, matcher, literal, limit, matches, pending, ring, contextAfter);
+            }
+        }
+        // Файл кончился раньше, чем набрался контекст после совпадения
+        for (PendingMatch match : pending) {
+            matches.set(match.slot, match.toMatch());
+        }
+        return matches;
+    }
+
+    private void onLine(int lineNumber, Matcher matcher, LiteralMatcher literal, int limit, List<Match> matches,
+                        List<PendingMatch> pending, ContextRing ring, int contextAfter) throws CharacterCodingException {
+        String text = null;
+
+        for (int i = 0; i < pending.size(); ) {
+            PendingMatch match = pending.get(i);
+            if (text == null) text = decodeLine();
+            match.context.add(text);
+            if (--match.remaining == 0) {
+                matches.set(match.slot, match.toMatch());
+                pending.remove(i);
+            } else {
+                i++;
+            }
+        }
+
+        if (matches.size() < limit && isMatch(matcher, literal)) {
+            // Для не-литеральных выражений строка уже декодирована в chars
+            if (text == null) text = literal.isExact() ? decodeLine() : chars.toString();
+            List<String> context = ring.snapshot(decoder);
+            int matchIndex = context.size();
+            context.add(text);
+            PendingMatch match = new PendingMatch(matches.size(), text, lineNumber, context, matchIndex, contextAfter);
+            matches.add(null);
+            if (contextAfter == 0) {
+                matches.set(match.slot, match.toMatch());
+            } else {
+                pending.add(match);
+            }
+        }
+
+        ring.push(line, lineLength);
+        lineLength = 0;
+    }
+
+    /**
+     * Literal pre-filter on raw bytes first; the regex runs only on lines that contain the literal.
+     */
+    private boolean isMatch(Matcher matcher, LiteralMatcher literal) throws CharacterCodingException {
+        if (literal.isActive() && !literal.test(line, 0, lineLength)) {
+            return false;
+        }
+        if (literal.isExact()) {
+            return true;
+        }
+        decodeChars();
+        return matcher.reset(chars).find();
+    }
+
+    private void append(byte[] bytes, int from, int to) {
+        int length = Math.min(to - from, maxLineLength - lineLength);
+        if (length <= 0) {
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(maxLineLength, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(bytes, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private String decodeLine() throws CharacterCodingException {
+        decodeChars();
+        return chars.toString();
+    }
+
+    private void decodeChars() throws CharacterCodingException {
+        int length = lineLength;
+        if (length == maxLineLength) {
+            // Обрезанная строка не должна заканчиваться на половине UTF-8 символа
+            while (length > 0 && (line[length - 1] & 0xC0) == 0x80) length--;
+            if (length > 0 && (line[length - 1] & 0xC0) == 0xC0) length--;
+        }
+        chars = decode(decoder, ByteBuffer.wrap(line, 0, length), chars);
+    }
+
+    private static CharBuffer decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out) throws CharacterCodingException {
+        int maxChars = in.remaining();
+        if (out.capacity() < maxChars) {
+            out = CharBuffer.allocate(Math.max(maxChars, out.capacity() * 2));
+        }
+        out.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(in, out, true);
+        if (result.isError()) {
+            result.throwException();
+        }
+        decoder.flush(out);
+        out.flip();
+        return out;
+    }
+
+    public record Match(String line, int lineNumber, List<String> context, int matchIndex) {
+    }
+
+    private static final class PendingMatch {
+        private final int slot;
+        private final String line;
+        private final int lineNumber;
+        private final List<String> context;
+        private final int matchIndex;
+        private int remaining;
+
+        private PendingMatch(int slot, String line, int lineNumber, List<String> context, int matchIndex, int remaining) {
+            this.slot = slot;
+            this.line = line;
+            this.lineNumber = lineNumber;
+            this.context = context;
+            this.matchIndex = matchIndex;
+            this.remaining = remaining;
+        }
+
+        private Match toMatch() {
+            return new Match(line, lineNumber, context, matchIndex);
+        }
+    }
+
+    /**
+     * Last N raw lines in reused byte slots; decoded to strings only when a match needs them.
+     */
+    private static final class ContextRing {
+        private final byte[][] slots;
+        private final int[] lengths;
+        private int start;
+        private int size;
+
+        private ContextRing(int capacity) {
+            this.slots = new byte[capacity][];
+            this.lengths = new int[capacity];
+        }
+
+        void push(byte[] bytes, int length) {
+            if (slots.length == 0) {
+                return;
+            }
+            int index = (start + size) % slots.length;
+            if (size == slots.length) {
+                index = start;
+                start = (start + 1) % slots.length;
+            } else {
+                size++;
+            }
+            if (slots[index] == null || slots[index].length < length) {
+                slots[index] = new byte[Math.max(length, 64)];
+            }
+            System.arraycopy(bytes, 0, slots[index], 0, length);
+            lengths[index] = length;
+        }
+
+        List<String> snapshot(CharsetDecoder decoder) throws CharacterCodingException {
+            List<String> lines = new ArrayList<>(size + 1);
+            CharBuffer buffer = CharBuffer.allocate(64);
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % slots.length;
+                buffer = decode(decoder, ByteBuffer.wrap(slots[index], 0, lengths[index]), buffer);
+                lines.add(buffer.toString());
+            }
+            return lines;
+        }
+    }
+}
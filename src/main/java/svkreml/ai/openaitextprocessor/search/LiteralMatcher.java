@@ -0,0 +1,139 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Byte-level pre-filter for {@link LineScanner}.
+ * <p>
+ * If the regex is a pure literal (possibly with escaped metacharacters) a line matches exactly when its
+ * UTF-8 bytes contain the literal bytes, so {@link java.util.regex} is not needed at all.
+ * If the regex starts with a literal prefix every match must contain that prefix, so lines without it
+ * are rejected before they are decoded. The search uses Boyer-Moore-Horspool over raw bytes; UTF-8 is
+ * self-synchronizing, so a byte match is always a character match.
+ */
+public final class LiteralMatcher {
+
+    public static final LiteralMatcher NONE = new LiteralMatcher(null, false);
+
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private final byte[] needle;
+    private final boolean exact;
+    private final int[] shift;
+
+    private LiteralMatcher(byte[] needle, boolean exact) {
+        this.needle = needle;
+        this.exact = exact;
+        this.shift = needle != null ? shiftTable(needle) : null;
+    }
+
+    public static LiteralMatcher forPattern(Pattern pattern) {
+        return pattern.flags() == 0 ? forRegex(pattern.pattern()) : NONE;
+    }
+
+    public static LiteralMatcher forRegex(String regex) {
+        if (regex == null || regex.isEmpty() || hasTopLevelAlternation(regex)) {
+            return NONE;
+        }
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        boolean exact = true;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                literal.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                exact = false;
+                // Квантификатор с нулевым минимумом делает последний символ необязательным
+                if ((c == '?' || c == '*' || c == '{') && !literal.isEmpty()) {
+                    literal.setLength(literal.length() - 1);
+                }
+                break;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.isEmpty() || (!exact && literal.length() < MIN_PREFIX_LENGTH)) {
+            return NONE;
+        }
+        return new LiteralMatcher(literal.toString().getBytes(StandardCharsets.UTF_8), exact);
+    }
+
+    /**
+     * Whether a literal is available; if not, every line has to go through the regex.
+     */
+    public boolean isActive() {
+        return needle != null;
+    }
+
+    /**
+     * Whether finding the literal is equivalent to a regex match.
+     */
+    public boolean isExact() {
+        return exact && needle != null;
+    }
+
+    public boolean test(byte[] haystack, int from, int to) {
+        return indexOf(haystack, from, to) >= 0;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search of the literal in {@code haystack[from, to)}.
+     */
+    public int indexOf(byte[] haystack, int from, int to) {
+        int n = needle.length;
+        int last = n - 1;
+        if (n == 1) {
+            byte b = needle[0];
+            for (int i = from; i < to; i++) {
+                if (haystack[i] == b) return i;
+            }
+            return -1;
+        }
+        int i = from;
+        while (i <= to - n) {
+            byte tail = haystack[i + last];
+            if (tail == needle[last] && Arrays.equals(haystack, i, i + last, needle, 0, last)) {
+                return i;
+            }
+            i += shift[tail & 0xFF];
+        }
+        return -1;
+    }
+
+    private static int[] shiftTable(byte[] needle) {
+        int[] table = new int[256];
+        Arrays.fill(table, needle.length);
+        for (int i = 0; i < needle.length - 1; i++) {
+            table[needle[i] & 0xFF] = needle.length - 1 - i;
+        }
+        return table;
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Deterministic depth-first file enumeration: directory entries are visited sorted by name,
+ * so the order is the same on every run and file system (unlike {@link Files#walk}).
+ * The same order is produced by {@link TrigramIndex#candidates}.
+ */
+@Slf4j
+public final class OrderedFileWalker {
+
+    private OrderedFileWalker() {
+    }
+
+    /**
+     * Lazy sequential walk; directories rejected by {@code skipDirectory} are not entered.
+     */
+    public static Iterator<Path> iterator(Path root, Predicate<Path> skipDirectory) {
+        return new Iterator<>() {
+            private final Deque<Path> stack = new ArrayDeque<>(List.of(root));
+            private Path next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !stack.isEmpty()) {
+                    Path path = stack.pop();
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        if (path.equals(root) || !skipDirectory.test(path)) {
+                            List<Path> children = sortedChildren(path);
+                            for (int i = children.size() - 1; i >= 0; i--) {
+                                stack.push(children.get(i));
+                            }
+                        }
+                    } else {
+                        next = path;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Path result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Parallel walk on {@code pool}: every subdirectory is listed by its own fork-join task,
+     * results are concatenated in the same order as {@link #iterator}.
+     */
+    public static List<Path> list(Path root, Predicate<Path> skipDirectory, ForkJoinPool pool) {
+        return pool.invoke(new DirectoryTask(root, skipDirectory));
+    }
+
+    private static List<Path> sortedChildren(Path dir) {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(children::add);
+        } catch (IOException e) {
+            log.warn("Access denied to: {}", dir, e);
+            return children;
+        }
+        children.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return children;
+    }
+
+    private static final class DirectoryTask extends RecursiveTask<List<Path>> {
+        private final Path dir;
+        private final Predicate<Path> skipDirectory;
+
+        private DirectoryTask(Path dir, Predicate<Path> skipDirectory) {
+            this.dir = dir;
+            this.skipDirectory = skipDirectory;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            // Для каждой записи: либо файл, либо подзадача по подкаталогу — порядок сохраняется
+            List<Object> slots = new ArrayList<>();
+            for (Path child : sortedChildren(dir)) {
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!skipDirectory.test(child)) {
+                        DirectoryTask task = new DirectoryTask(child, skipDirectory);
+                        task.fork();
+                        slots.add(task);
+                    }
+                } else {
+                    slots.add(child);
+                }
+            }
+            List<Path> files = new ArrayList<>();
+            for (Object slot : slots) {
+                if (slot instanceof DirectoryTask task) {
+                    files.addAll(task.join());
+                } else {
+                    files.add((Path) slot);
+                }
+            }
+            return files;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a {@link java.util.regex.Pattern} expression into a {@link TrigramQuery}
+ * (the codesearch approach): literal runs that every match must contain become AND-ed trigrams,
+ * alternations become OR. Anything the analyzer does not understand (inline flags, lookaround,
+ * {@code \Q..\E}) degrades to {@link TrigramQuery#ALL}, so the query never rejects a file that could match.
+ */
+public final class RegexTrigrams {
+
+    private final String regex;
+    private int pos;
+
+    private RegexTrigrams(String regex) {
+        this.regex = regex;
+    }
+
+    public static TrigramQuery toQuery(String regex) {
+        if (regex == null || regex.isEmpty()) {
+            return TrigramQuery.ALL;
+        }
+        RegexTrigrams parser = new RegexTrigrams(regex);
+        try {
+            TrigramQuery query = parser.alternation();
+            return parser.pos == regex.length() ? query : TrigramQuery.ALL;
+        } catch (Unanalyzable e) {
+            return TrigramQuery.ALL;
+        }
+    }
+
+    private TrigramQuery alternation() {
+        List<TrigramQuery> branches = new ArrayList<>();
+        branches.add(sequence());
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            branches.add(sequence());
+        }
+        return TrigramQuery.or(branches);
+    }
+
+    private TrigramQuery sequence() {
+        List<TrigramQuery> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '|' || c == ')') {
+                break;
+            }
+
+            // Разбираем один атом: литерал (code point), группа или "что угодно"
+            String atomLiteral = null;
+            TrigramQuery atomQuery = null;
+            if (c == '(') {
+                pos++;
+                skipGroupPrefix();
+                atomQuery = alternation();
+                expect(')');
+            } else if (c == '[') {
+                skipCharClass();
+            } else if (c == '.' || c == '^' || c == '$') {
+                pos++;
+            } else if (c == '\\') {
+                atomLiteral = escape();
+            } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                throw new Unanalyzable("Dangling quantifier");
+            } else {
+                int cp = regex.codePointAt(pos);
+                pos += Character.charCount(cp);
+                atomLiteral = new String(Character.toChars(cp));
+            }
+
+            Quantifier quantifier = quantifier();
+            if (quantifier == Quantifier.OPTIONAL) {
+                // Атом может отсутствовать: литерал рвётся, атом ничего не добавляет
+                flush(literal, parts);
+            } else if (atomLiteral != null) {
+                literal.append(atomLiteral);
+                if (quantifier == Quantifier.REPEATED) {
+                    flush(literal, parts);
+                }
+            } else {
+                flush(literal, parts);
+                if (atomQuery != null) {
+                    parts.add(atomQuery);
+                }
+            }
+        }
+        flush(literal, parts);
+        return TrigramQuery.and(parts);
+    }
+
+    private void flush(StringBuilder literal, List<TrigramQuery> parts) {
+        if (!literal.isEmpty()) {
+            parts.add(TrigramQuery.literal(literal.toString()));
+            literal.setLength(0);
+        }
+    }
+
+    private void skipGroupPrefix() {
+        if (pos >= regex.length() || regex.charAt(pos) != '?') {
+            return;
+        }
+        char next = at(pos + 1);
+        if (next == ':') {
+            pos += 2;
+        } else if (next == '<' && Character.isLetter(at(pos + 2))) {
+            // Именованная группа (?<name>...)
+            int end = regex.indexOf('>', pos);
+            if (end < 0) throw new Unanalyzable("Unclosed group name");
+            pos = end + 1;
+        } else {
+            // Флаги, lookahead/lookbehind, атомарные группы
+            throw new Unanalyzable("Unsupported group construct");
+        }
+    }
+
+    private void skipCharClass() {
+        pos++;
+        int depth = 1;
+        if (pos < regex.length() && regex.charAt(pos) == '^') pos++;
+        if (pos < regex.length() && regex.charAt(pos) == ']') pos++;
+        while (depth > 0) {
+            char c = at(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return literal text of the escape, or {@code null} for escapes matching a class of characters.
+     */
+    private String escape() {
+        pos++;
+        char c = at(pos++);
+        if (!Character.isLetterOrDigit(c)) {
+            return String.valueOf(c);
+        }
+        switch (c) {
+            case 'Q' -> throw new Unanalyzable("Quoted sections are not analyzed");
+            case 'p', 'P' -> {
+                if (at(pos) == '{') {
+                    pos = regex.indexOf('}', pos) + 1;
+                    if (pos == 0) throw new Unanalyzable("Unclosed property");
+                } else {
+                    pos++;
+                }
+            }
+            case 'x' -> {
+                if (at(pos) == '{') {
+                    pos = regex.indexOf('}', pos) + 1;
+                    if (pos == 0) throw new Unanalyzable("Unclosed hex escape");
+                } else {
+                    pos += 2;
+                }
+            }
+            case 'u' -> pos += 4;
+            case 'c' -> pos++;
+            case 'k' -> {
+                pos = regex.indexOf('>', pos) + 1;
+                if (pos == 0) throw new Unanalyzable("Unclosed group reference");
+            }
+            case '0' -> {
+                while (pos < regex.length() && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '7') pos++;
+            }
+            default -> {
+                // \d, \w, \s, \b, \n, \t, обратные ссылки и т.п.
+            }
+        }
+        return null;
+    }
+
+    private Quantifier quantifier() {
+        if (pos >= regex.length()) {
+            return Quantifier.NONE;
+        }
+        char c = regex.charAt(pos);
+        Quantifier result;
+        if (c == '?' || c == '*') {
+            pos++;
+            result = Quantifier.OPTIONAL;
+        } else if (c == '+') {
+            pos++;
+            result = Quantifier.REPEATED;
+        } else if (c == '{') {
+            int end = regex.indexOf('}', pos);
+            if (end < 0) throw new Unanalyzable("Unclosed quantifier");
+            String bounds = regex.substring(pos + 1, end);
+            pos = end + 1;
+            String min = (bounds.contains(",") ? bounds.substring(0, bounds.indexOf(',')) : bounds).trim();
+            if (!min.chars().allMatch(Character::isDigit)) {
+                throw new Unanalyzable("Malformed quantifier");
+            }
+            result = min.chars().allMatch(digit -> digit == '0') ? Quantifier.OPTIONAL : Quantifier.REPEATED;
+        } else {
+            return Quantifier.NONE;
+        }
+        // Ленивые и ревнивые модификаторы не меняют множество совпадений по строке
+        if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+            pos++;
+        }
+        return result;
+    }
+
+    private void expect(char c) {
+        if (pos >= regex.length() || regex.charAt(pos) != c) {
+            throw new Unanalyzable("Expected '" + c + "' at " + pos);
+        }
+        pos++;
+    }
+
+    /**
+     * {@code regex.charAt(index)}, or {@link Unanalyzable} if the expression ends before it.
+     */
+    private char at(int index) {
+        if (index >= regex.length()) {
+            throw new Unanalyzable("Unexpected end of the expression");
+        }
+        return regex.charAt(index);
+    }
+
+    /**
+     * A construct the analyzer does not understand; the whole expression then falls back to {@link TrigramQuery#ALL}.
+     */
+    private static final class Unanalyzable extends RuntimeException {
+        private Unanalyzable(String message) {
+            // Это не ошибка, а обычный исход разбора: стек не нужен
+            super(message, null, false, false);
+        }
+    }
+
+    private enum Quantifier {
+        NONE,
+        OPTIONAL,
+        REPEATED
+    }
+}
@@ -0,0 +1,422 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Persistent trigram index over {@code file.base.dir} used by {@link svkreml.ai.openaitextprocessor.functions.TextSearch}
+ * to skip files that cannot contain a match.
+ * <p>
+ * For every file the index keeps the set of byte trigrams of its content together with mtime and size.
+ * Before each query the watch events already queued are applied to the shared {@link FileTreeCache}, the tree is
+ * walked through it and only files whose mtime/size changed are re-read, so the cost of a search is one (usually
+ * cached) attribute walk plus reading the candidates. Only the candidates are checked against their attributes on
+ * disk, to drop those deleted or re-indexed since the event that has not been reported yet.
+ * Files larger than {@code file.search.index.max-file-size} are not indexed and are always candidates.
+ * <p>
+ * The index directory is {@link FileTreeCache#hide hidden} from the file tools.
+ */
+@Slf4j
+@Component
+public class TrigramIndex {
+
+    private static final int MAGIC = 0x54524731; // "TRG1"
+    private static final int NOT_INDEXED = -1;
+
+    private final Path basePath;
+    private final Path indexDir;
+    private final Path indexFile;
+    private final boolean enabled;
+    private final long maxIndexedFileSize;
+    private final FileTreeCache fileTreeCache;
+
+    private final Map<String, Integer> idsByPath = new HashMap<>();
+    private final List<FileEntry> entries = new ArrayList<>();   // id -> entry, null для удалённых
+    private final Map<Integer, PostingList> postings = new HashMap<>();
+    private final BitSet notIndexed = new BitSet();
+    private int liveCount;
+    private boolean loaded;
+    private boolean dirty;
+
+    public TrigramIndex(String baseDir, boolean enabled, String indexDir, long maxIndexedFileSize) {
+        this(baseDir, enabled, indexDir, maxIndexedFileSize, FileTreeCache.uncached(baseDir));
+    }
+
+    @Autowired
+    public TrigramIndex(
+            @Value("${file.base.dir:./}") String baseDir,
+            @Value("${file.search.index.enabled:true}") boolean enabled,
+            @Value("${file.search.index.dir:.textsearch-index}") String indexDir,
+            @Value("${file.search.index.max-file-size:1048576}") long maxIndexedFileSize,
+            FileTreeCache fileTreeCache
+    ) {
+        this.basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        this.indexDir = basePath.resolve(indexDir).normalize();
+        this.indexFile = this.indexDir.resolve("trigrams.idx");
+        this.enabled = enabled;
+        this.maxIndexedFileSize = maxIndexedFileSize;
+        this.fileTreeCache = fileTreeCache;
+        // Индекс не должен попадать ни к инструментам, ни в свой же обход, а его сохранение — сбрасывать их кэши
+        fileTreeCache.hide(this.indexDir);
+        log.info("Trigram index: enabled={}, file={}", enabled, indexFile);
+    }
+
+    /**
+     * Whether the index can answer queries for {@code directory}.
+     */
+    public boolean covers(Path directory) {
+        return enabled && directory.toAbsolutePath().normalize().startsWith(basePath);
+    }
+
+    /**
+     * Brings the index up to date and returns the files under {@code directory} that may contain a match
+     * for {@code regex}, in depth-first order with directory entries sorted by name.
+     */
+    public synchronized List<Path> candidates(Path directory, String regex) throws IOException {
+        ensureLoaded();
+        fileTreeCache.drainEvents();
+        refresh();
+
+        TrigramQuery query = RegexTrigrams.toQuery(regex);
+        BitSet matching = evaluate(query);
+        matching.or(notIndexed);
+
+        String prefix = relative(directory.toAbsolutePath().normalize());
+        List<String> result = new ArrayList<>();
+        int restated = 0;
+        int count = entries.size();
+        for (int id = matching.nextSetBit(0); id >= 0 && id < count; id = matching.nextSetBit(id + 1)) {
+            FileEntry entry = entries.get(id);
+            if (entry == null || !isUnder(entry.path(), prefix)) {
+                continue;
+            }
+            // Событие о внешней правке могло ещё не дойти: кандидата сверяем с диском, отброшенные файлы не трогаем
+            FileEntry current = restat(id, entry);
+            if (current == entry) {
+                result.add(entry.path());
+                continue;
+            }
+            restated++;
+            if (current != null && (current.trigrams() == null || matches(query, current.trigrams()))) {
+                result.add(current.path());
+            }
+        }
+        if (restated > 0) {
+            log.info("Trigram index: {} candidates changed on disk since the tree was listed", restated);
+        }
+        result.sort(TrigramIndex::compareByComponents);
+        log.info("Trigram index selected {} of {} files for regex: {}", result.size(), liveCount, regex);
+        return result.stream().map(basePath::resolve).toList();
+    }
+
+    /**
+     * The entry re-indexed if the file changed on disk, the same entry if not, {@code null} if it is gone.
+     */
+    private FileEntry restat(int id, FileEntry entry) {
+        Path file = basePath.resolve(entry.path());
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            remove(id);
+            return null;
+        } catch (IOException e) {
+            return entry;
+        }
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (!attrs.isRegularFile()) {
+            remove(id);
+            return null;
+        }
+        if (mtime == entry.mtime() && attrs.size() == entry.size()) {
+            return entry;
+        }
+        remove(id);
+        FileEntry updated = new FileEntry(entry.path(), mtime, attrs.size(), readTrigrams(file, attrs.size()));
+        add(updated);
+        return updated;
+    }
+
+    /**
+     * {@link #evaluate} for one file; {@code trigrams} are sorted.
+     */
+    private static boolean matches(TrigramQuery query, int[] trigrams) {
+        return switch (query) {
+            case TrigramQuery.All all -> true;
+            case TrigramQuery.Trigram trigram -> Arrays.binarySearch(trigrams, trigram.value()) >= 0;
+            case TrigramQuery.And and -> and.parts().stream().allMatch(part -> matches(part, trigrams));
+            case TrigramQuery.Or or -> or.parts().stream().anyMatch(part -> matches(part, trigrams));
+        };
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown index format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                long size = in.readLong();
+                int trigramCount = in.readInt();
+                int[] trigrams = null;
+                if (trigramCount != NOT_INDEXED) {
+                    trigrams = new int[trigramCount];
+                    for (int j = 0; j < trigramCount; j++) {
+                        trigrams[j] = in.readInt();
+                    }
+                }
+                add(new FileEntry(path, mtime, size, trigrams));
+            }
+            log.info("Loaded trigram index with {} files", liveCount);
+        } catch (IOException e) {
+            log.warn("Trigram index {} is unreadable, rebuilding: {}", indexFile, e.getMessage());
+            clear();
+        }
+    }
+
+    private void refresh() throws IOException {
+        if (!Files.isDirectory(basePath)) {
+            throw new NoSuchFileException(basePath.toString());
+        }
+        Set<String> seen = new HashSet<>();
+        int reindexed = 0;
+        // Атрибуты берутся из общего дерева файлов, читаются только изменившиеся файлы
+        Iterator<FileNode> files = fileTreeCache.walkFiles(basePath, dir -> false);
+        while (files.hasNext()) {
+            FileNode file = files.next();
+            if (!file.isFile()) {
+                continue;
+            }
+            String path = relative(file.path());
+            seen.add(path);
+            long mtime = file.modified().toMillis();
+            Integer id = idsByPath.get(path);
+            FileEntry existing = id != null ? entries.get(id) : null;
+            if (existing == null || existing.mtime() != mtime || existing.size() != file.size()) {
+                if (id != null) {
+                    remove(id);
+                }
+                add(new FileEntry(path, mtime, file.size(), readTrigrams(file.path(), file.size())));
+                reindexed++;
+            }
+        }
+
+        List<String> removed = idsByPath.keySet().stream().filter(path -> !seen.contains(path)).toList();
+        removed.forEach(path -> remove(idsByPath.get(path)));
+
+        if (reindexed > 0 || !removed.isEmpty()) {
+            log.info("Trigram index refreshed: {} files reindexed, {} removed", reindexed, removed.size());
+            if (entries.size() > 2 * liveCount + 1024) {
+                compact();
+            }
+            save();
+        }
+    }
+
+    private int[] readTrigrams(Path file, long size) {
+        if (size > maxIndexedFileSize) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            log.warn("Cannot index {}: {}", file, e.getMessage());
+            return null;
+        }
+        if (bytes.length < 3) {
+            return new int[0];
+        }
+        int[] trigrams = new int[bytes.length - 2];
+        int count = 0;
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            // Поиск построчный, поэтому триграммы через перевод строки не нужны
+            if (bytes[i] == '\n' || bytes[i + 1] == '\n' || bytes[i + 2] == '\n') {
+                continue;
+            }
+            trigrams[count++] = TrigramQuery.trigram(bytes[i], bytes[i + 1], bytes[i + 2]);
+        }
+        Arrays.sort(trigrams, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || trigrams[unique - 1] != trigrams[i]) {
+                trigrams[unique++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, unique);
+    }
+
+    private BitSet evaluate(TrigramQuery query) {
+        return switch (query) {
+            case TrigramQuery.All all -> allLive();
+            case TrigramQuery.Trigram trigram -> {
+                PostingList list = postings.get(trigram.value());
+                yield list != null ? list.toBitSet() : new BitSet();
+            }
+            case TrigramQuery.And and -> {
+                BitSet result = null;
+                for (TrigramQuery part : and.parts()) {
+                    BitSet bits = evaluate(part);
+                    if (result == null) {
+                        result = bits;
+                    } else {
+                        result.and(bits);
+                    }
+                    if (result.isEmpty()) break;
+                }
+                yield result != null ? result : allLive();
+            }
+            case TrigramQuery.Or or -> {
+                BitSet result = new BitSet();
+                for (TrigramQuery part : or.parts()) {
+                    result.or(evaluate(part));
+                }
+                yield result;
+            }
+        };
+    }
+
+    private BitSet allLive() {
+        BitSet bits = new BitSet(entries.size());
+        for (int id = 0; id < entries.size(); id++) {
+            if (entries.get(id) != null) bits.set(id);
+        }
+        return bits;
+    }
+
+    private void add(FileEntry entry) {
+        int id = entries.size();
+        entries.add(entry);
+        idsByPath.put(entry.path(), id);
+        liveCount++;
+        if (entry.trigrams() == null) {
+            notIndexed.set(id);
+        } else {
+            for (int trigram : entry.trigrams()) {
+                postings.computeIfAbsent(trigram, t -> new PostingList()).add(id);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Tombstones the entry; posting lists keep the stale id until the next {@link #compact()}.
+     */
+    private void remove(int id) {
+        FileEntry entry = entries.set(id, null);
+        idsByPath.remove(entry.path());
+        notIndexed.clear(id);
+        liveCount--;
+        dirty = true;
+    }
+
+    private void compact() {
+        List<FileEntry> live = entries.stream().filter(Objects::nonNull).toList();
+        clear();
+        live.forEach(this::add);
+        log.info("Trigram index compacted to {} files", liveCount);
+    }
+
+    private void clear() {
+        idsByPath.clear();
+        entries.clear();
+        postings.clear();
+        notIndexed.clear();
+        liveCount = 0;
+        dirty = true;
+    }
+
+    private void save() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            Files.createDirectories(indexDir);
+            Path tmp = indexDir.resolve(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(liveCount);
+                for (FileEntry entry : entries) {
+                    if (entry == null) continue;
+                    out.writeUTF(entry.path());
+                    out.writeLong(entry.mtime());
+                    out.writeLong(entry.size());
+                    if (entry.trigrams() == null) {
+                        out.writeInt(NOT_INDEXED);
+                    } else {
+                        out.writeInt(entry.trigrams().length);
+                        for (int trigram : entry.trigrams()) {
+                            out.writeInt(trigram);
+                        }
+                    }
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            log.warn("Cannot persist trigram index {}: {}", indexFile, e.getMessage());
+        }
+    }
+
+    private String relative(Path path) {
+        return basePath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isUnder(String path, String prefix) {
+        return prefix.isEmpty() || path.equals(prefix) || path.startsWith(prefix + "/");
+    }
+
+    /**
+     * Orders relative paths the way a depth-first walk with name-sorted directories visits them.
+     */
+    static int compareByComponents(String a, String b) {
+        String[] left = a.split("/");
+        String[] right = b.split("/");
+        for (int i = 0; i < Math.min(left.length, right.length); i++) {
+            int cmp = left[i].compareTo(right[i]);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(left.length, right.length);
+    }
+
+    private record FileEntry(String path, long mtime, long size, int[] trigrams) {
+    }
+
+    private static final class PostingList {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        BitSet toBitSet() {
+            BitSet bits = new BitSet();
+            for (int i = 0; i < size; i++) {
+                bits.set(ids[i]);
+            }
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package svkreml.ai.openaitextprocessor.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boolean query over byte trigrams. A file can only match the regex the query was
+ * built from if its trigram set satisfies the query; {@link All} means "no restriction".
+ */
+public sealed interface TrigramQuery {
+
+    All ALL = new All();
+
+    record All() implements TrigramQuery {
+    }
+
+    record Trigram(int value) implements TrigramQuery {
+    }
+
+    record And(List<TrigramQuery> parts) implements TrigramQuery {
+    }
+
+    record Or(List<TrigramQuery> parts) implements TrigramQuery {
+    }
+
+    static TrigramQuery and(List<TrigramQuery> parts) {
+        List<TrigramQuery> filtered = new ArrayList<>();
+        for (TrigramQuery part : parts) {
+            if (part instanceof And and) {
+                filtered.addAll(and.parts());
+            } else if (!(part instanceof All)) {
+                filtered.add(part);
+            }
+        }
+        if (filtered.isEmpty()) return ALL;
+        if (filtered.size() == 1) return filtered.get(0);
+        return new And(List.copyOf(filtered));
+    }
+
+    static TrigramQuery or(List<TrigramQuery> parts) {
+        List<TrigramQuery> filtered = new ArrayList<>();
+        for (TrigramQuery part : parts) {
+            // Одна неограниченная ветка делает неограниченным всё выражение
+            if (part instanceof All) return ALL;
+            if (part instanceof Or or) {
+                filtered.addAll(or.parts());
+            } else {
+                filtered.add(part);
+            }
+        }
+        if (filtered.isEmpty()) return ALL;
+        if (filtered.size() == 1) return filtered.get(0);
+        return new Or(List.copyOf(filtered));
+    }
+
+    /**
+     * AND of all trigrams of the UTF-8 encoding of {@code literal}; {@link #ALL} if it is shorter than 3 bytes.
+     */
+    static TrigramQuery literal(String literal) {
+        byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+        List<TrigramQuery> parts = new ArrayList<>();
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            parts.add(new Trigram(trigram(bytes[i], bytes[i + 1], bytes[i + 2])));
+        }
+        return and(parts);
+    }
+
+    static int trigram(byte b0, byte b1, byte b2) {
+        return (b0 & 0xFF) << 16 | (b1 & 0xFF) << 8 | (b2 & 0xFF);
+    }
+}
@@ -0,0 +1,338 @@
+package svkreml.ai.openaitextprocessor.tools;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.DefaultToolCallingManager;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.DefaultToolExecutionExceptionProcessor;
+import org.springframework.ai.tool.execution.ToolExecutionException;
+import org.springframework.ai.tool.execution.ToolExecutionExceptionProcessor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executes the tool calls of one assistant message concurrently on virtual threads.
+ * <p>
+ * Spring AI's {@link DefaultToolCallingManager} runs them one after another on the request thread; here a turn
+ * costs roughly its slowest call. A call still waits for every earlier call of the same message it conflicts
+ * with: two calls conflict if at least one of them is not a read-only tool ({@code tool.execution.read-only})
+ * and their {@code path}/{@code directory} arguments, resolved to absolute paths the way each tool resolves them,
+ * overlap, so writes to one path keep the order the model asked for and a read after a write sees the write.
+ * Each read-only call is bounded by {@code tool.execution.timeout} (per tool via {@code tool.execution.timeouts},
+ * e.g. {@code textSearch=2m,fileReader=30s}); a timed-out call is interrupted and the model gets an error result.
+ * Other calls always run to completion: an interrupted write could leave a half-written file behind, and the calls
+ * waiting for it must not start before it has really ended. At most {@code tool.execution.max-concurrency} tools
+ * run at the same time across all requests; a timed-out call that ignores the interrupt keeps its slot until it ends.
+ * <p>
+ * Every call is timed by {@code tool.calls} (tags {@code tool}, {@code outcome=success|error|timeout} and
+ * {@code cached=true} for calls {@link ToolResultCache} answered without running the tool); the time spent waiting
+ * for conflicting calls and for a permit is not included.
+ */
+@Slf4j
+@Component
+public class ParallelToolCallingManager implements ToolCallingManager {
+
+    private final ToolCallingManager delegate = DefaultToolCallingManager.builder().build();
+    private final ToolExecutionExceptionProcessor exceptionProcessor = DefaultToolExecutionExceptionProcessor.builder().build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("tool-", 0).factory());
+
+    private final Set<String> readOnlyTools;
+    private final Path basePath;
+    private final Duration defaultTimeout;
+    private final Map<String, Duration> timeouts;
+    private final Semaphore permits;
+    private final MeterRegistry registry;
+
+    public ParallelToolCallingManager(Set<String> readOnlyTools, int maxConcurrency, Duration defaultTimeout, Map<String, Duration> timeouts) {
+        this(readOnlyTools, maxConcurrency, defaultTimeout, timeouts, Paths.get("./"), new SimpleMeterRegistry());
+    }
+
+    /**
+     * @param basePath directory the file tools resolve relative paths against ({@code file.base.dir})
+     */
+    public ParallelToolCallingManager(Set<String> readOnlyTools, int maxConcurrency, Duration defaultTimeout,
+                                      Map<String, Duration> timeouts, Path basePath, MeterRegistry registry) {
+        this.registry = registry;
+        this.readOnlyTools = Set.copyOf(readOnlyTools);
+        this.basePath = basePath.toAbsolutePath().normalize();
+        this.defaultTimeout = defaultTimeout;
+        this.timeouts = Map.copyOf(timeouts);
+        this.permits = new Semaphore(maxConcurrency, true);
+        log.info("Tool execution: readOnly={}, maxConcurrency={}, timeout={}, timeouts={}",
+                readOnlyTools, maxConcurrency, defaultTimeout, timeouts);
+    }
+
+    @Autowired
+    public ParallelToolCallingManager(
+            @Value("${tool.execution.read-only:fileReader,textSearch,fileSearcher,directoryLister}") List<String> readOnlyTools,
+            @Value("${tool.execution.max-concurrency:8}") int maxConcurrency,
+            @Value("${tool.execution.timeout:60s}") String defaultTimeout,
+            @Value("${tool.execution.timeouts:}") String timeouts,
+            @Value("${file.base.dir:./}") String baseDir,
+            MeterRegistry registry
+    ) {
+        this(new HashSet<>(readOnlyTools), maxConcurrency, DurationStyle.detectAndParse(defaultTimeout), parseTimeouts(timeouts),
+                Paths.get(baseDir), registry);
+    }
+
+    @Override
+    public List<ToolDefinition> resolveToolDefinitions(ToolCallingChatOptions chatOptions) {
+        return delegate.resolveToolDefinitions(chatOptions);
+    }
+
+    @Override
+    public ToolExecutionResult executeToolCalls(Prompt prompt, ChatResponse chatResponse) {
+        AssistantMessage assistantMessage = chatResponse.getResults().stream()
+                .map(Generation::getOutput)
+                .filter(output -> !CollectionUtils.isEmpty(output.getToolCalls()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No tool call requested by the chat model"));
+        ToolContext toolContext = buildToolContext(prompt, assistantMessage);
+        List<ToolCallback> callbacks = prompt.getOptions() instanceof ToolCallingChatOptions options
+                ? options.getToolCallbacks()
+                : List.of();
+
+        List<AssistantMessage.ToolCall> toolCalls = assistantMessage.getToolCalls();
+        List<Scope> scopes = new ArrayList<>(toolCalls.size());
+        List<Future<String>> results = new ArrayList<>(toolCalls.size());
+        boolean returnDirect = true;
+        for (AssistantMessage.ToolCall toolCall : toolCalls) {
+            ToolCallback callback = callbacks.stream()
+                    .filter(candidate -> toolCall.name().equals(candidate.getToolDefinition().name()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No ToolCallback found for tool name: " + toolCall.name()));
+            returnDirect &= callback.getToolMetadata().returnDirect();
+
+            Scope scope = scopeOf(toolCall);
+            List<Future<String>> dependencies = new ArrayList<>();
+            for (int i = 0; i < scopes.size(); i++) {
+                if (scope.conflicts(scopes.get(i))) {
+                    dependencies.add(results.get(i));
+                }
+            }
+            scopes.add(scope);
+            results.add(executor.submit(() -> execute(callback, toolCall, toolContext, dependencies)));
+        }
+
+        List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(toolCalls.size());
+        try {
+            for (int i = 0; i < toolCalls.size(); i++) {
+                AssistantMessage.ToolCall toolCall = toolCalls.get(i);
+                responses.add(new ToolResponseMessage.ToolResponse(toolCall.id(), toolCall.name(), results.get(i).get()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            results.forEach(result -> result.cancel(true));
+            throw new IllegalStateException("Interrupted while waiting for tool results", e);
+        } catch (ExecutionException e) {
+            results.forEach(result -> result.cancel(true));
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException(e.getCause());
+        }
+
+        List<Message> conversationHistory = new ArrayList<>(prompt.getInstructions());
+        conversationHistory.add(assistantMessage);
+        conversationHistory.add(new ToolResponseMessage(responses, Map.of()));
+        return ToolExecutionResult.builder()
+                .conversationHistory(conversationHistory)
+                .returnDirect(returnDirect)
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private String execute(ToolCallback callback, AssistantMessage.ToolCall toolCall, ToolContext toolContext,
+                           List<Future<String>> dependencies) throws InterruptedException {
+        for (Future<String> dependency : dependencies) {
+            try {
+                dependency.get();
+            } catch (ExecutionException | CancellationException e) {
+                // Результат предыдущего вызова уйдёт модели как есть, важен только порядок
+            }
+        }
+        boolean readOnly = readOnlyTools.contains(toolCall.name());
+        Duration timeout = timeouts.getOrDefault(toolCall.name(), defaultTimeout);
+        Permit permit = new Permit();
+        long start = System.nanoTime();
+        Future<Invocation> call;
+        try {
+            call = executor.submit(() -> {
+                // Разрешение отдаёт сам вызов, когда действительно закончился: прерывание он может и не заметить
+                if (!permit.claim()) {
+                    throw new CancellationException("Abandoned before it started");
+                }
+                try {
+                    return invoke(callback, toolCall, toolContext);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permit.abandon();
+            throw e;
+        }
+        try {
+            Invocation invocation = readOnly ? call.get(timeout.toMillis(), TimeUnit.MILLISECONDS) : call.get();
+            record(toolCall.name(), invocation.failed() ? "error" : "success", invocation.cached(), start);
+            return invocation.result();
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            permit.abandon();
+            record(toolCall.name(), "timeout", false, start);
+            log.warn("Tool {} timed out after {}, arguments: {}", toolCall.name(), timeout, toolCall.arguments());
+            return timeoutError(toolCall.name(), timeout);
+        } catch (ExecutionException e) {
+            record(toolCall.name(), "error", false, start);
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            // Начатую запись не прерываем, чтобы не оставить файл записанным наполовину
+            call.cancel(readOnly);
+            permit.abandon();
+            throw e;
+        }
+    }
+
+    private String timeoutError(String tool, Duration timeout) {
+        try {
+            return objectMapper.writeValueAsString(Map.of("error", "Tool '%s' timed out after %s".formatted(tool, timeout)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Invocation invoke(ToolCallback callback, AssistantMessage.ToolCall toolCall, ToolContext toolContext) {
+        log.debug("Executing tool call: {}", toolCall.name());
+        try {
+            if (callback instanceof ToolResultCache.Memoized memoized) {
+                ToolResultCache.Answer answer = memoized.answer(toolCall.arguments(), toolContext);
+                return new Invocation(answer.result(), false, answer.cached());
+            }
+            return new Invocation(callback.call(toolCall.arguments(), toolContext), false, false);
+        } catch (ToolExecutionException e) {
+            return new Invocation(exceptionProcessor.process(e), true, false);
+        }
+    }
+
+    /**
+     * Acquires a permit on construction; exactly one of the task and the caller giving up on it before it started
+     * releases it.
+     */
+    private final class Permit {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Permit() throws InterruptedException {
+            permits.acquire();
+        }
+
+        /**
+         * Called by the task when it starts; {@code false} if the caller has already given the permit back.
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Gives the permit back if the task has not started, otherwise leaves it to the task.
+         */
+        void abandon() {
+            if (claimed.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    private void record(String tool, String outcome, boolean cached, long startNanos) {
+        Timer.builder("tool.calls")
+                .description("Execution time of tool calls requested by the model")
+                .tag("tool", tool)
+                .tag("outcome", outcome)
+                .tag("cached", Boolean.toString(cached))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Same context as {@link DefaultToolCallingManager} builds: the options' tool context plus the history.
+     */
+    private static ToolContext buildToolContext(Prompt prompt, AssistantMessage assistantMessage) {
+        Map<String, Object> context = Map.of();
+        if (prompt.getOptions() instanceof ToolCallingChatOptions options && !CollectionUtils.isEmpty(options.getToolContext())) {
+            context = new HashMap<>(options.getToolContext());
+            List<Message> history = new ArrayList<>(prompt.getInstructions());
+            history.add(assistantMessage);
+            context.put(ToolContext.TOOL_CALL_HISTORY, history);
+        }
+        return new ToolContext(context);
+    }
+
+    private Scope scopeOf(AssistantMessage.ToolCall toolCall) {
+        boolean write = !readOnlyTools.contains(toolCall.name());
+        try {
+            return new Scope(write, ToolArguments.path(toolCall.name(), objectMapper.readTree(toolCall.arguments()), basePath));
+        } catch (Exception e) {
+            // Непонятные аргументы считаем затрагивающими всё дерево
+            return new Scope(write, null);
+        }
+    }
+
+    static Map<String, Duration> parseTimeouts(String timeouts) {
+        Map<String, Duration> parsed = new HashMap<>();
+        for (String entry : timeouts.split(",")) {
+            if (entry.isBlank()) continue;
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid tool timeout, expected <tool>=<duration>: " + entry);
+            }
+            parsed.put(parts[0].trim(), DurationStyle.detectAndParse(parts[1].trim()));
+        }
+        return parsed;
+    }
+
+    private record Invocation(String result, boolean failed, boolean cached) {
+    }
+
+    /**
+     * Part of the tree a call touches as an absolute path; {@code path == null} means the whole base directory.
+     */
+    private record Scope(boolean write, Path path) {
+
+        boolean conflicts(Scope other) {
+            if (!write && !other.write) {
+                return false;
+            }
+            return path == null || other.path == null || path.startsWith(other.path) || other.path.startsWith(path);
+        }
+    }
+}
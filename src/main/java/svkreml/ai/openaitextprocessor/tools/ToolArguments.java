@@ -0,0 +1,37 @@
+package svkreml.ai.openaitextprocessor.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+
+/**
+ * Helpers for the JSON arguments of file tool calls.
+ */
+final class ToolArguments {
+
+    /**
+     * Tools that take their directory as given, relative to the working directory instead of the base directory.
+     */
+    private static final Set<String> WORKING_DIRECTORY_TOOLS = Set.of("textSearch");
+
+    private ToolArguments() {
+    }
+
+    /**
+     * The {@code path} or {@code directory} argument of a {@code tool} call as the absolute normalized path the tool
+     * resolves it to: {@code textSearch} against the working directory, the other file tools against
+     * {@code basePath}. {@code null} if there is none, i.e. the call may touch the whole tree.
+     *
+     * @throws java.nio.file.InvalidPathException if the argument is not a path
+     */
+    static Path path(String tool, JsonNode arguments, Path basePath) {
+        JsonNode path = arguments.hasNonNull("path") ? arguments.get("path") : arguments.get("directory");
+        if (path == null || !path.isTextual()) {
+            return null;
+        }
+        Path argument = Paths.get(path.asText());
+        return (WORKING_DIRECTORY_TOOLS.contains(tool) ? argument.toAbsolutePath() : basePath.resolve(argument)).normalize();
+    }
+}
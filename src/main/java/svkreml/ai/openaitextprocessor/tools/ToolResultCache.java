@@ -0,0 +1,265 @@
+package svkreml.ai.openaitextprocessor.tools;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import svkreml.ai.openaitextprocessor.fs.FileChange;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Remembers the results of read-only tool calls, so that a call the model repeats with the same arguments is answered
+ * without scanning the file system again.
+ * <p>
+ * The key is the tool name and the arguments parsed into the tool's input record and serialized back, so argument
+ * order, omitted defaults and spellings of the same path ({@code src}, {@code ./src/}) do not matter. A result is
+ * dropped when {@link FileTreeCache} reports a change at, above or below the call's {@code path}/{@code directory},
+ * resolved the way the tool resolves it (any change for calls without one), which covers both writes through
+ * {@code FileWriter} and external changes seen by the {@link java.nio.file.WatchService}. A result computed while a
+ * change was reported is not stored. Calls on a path outside {@code file.base.dir}, where no change is ever reported,
+ * and all calls without watching ({@code file.tree-cache.watch=false}) are not remembered.
+ * <p>
+ * Results take at most {@code tool.result-cache.max-bytes}, least recently used ones are evicted first. Meters:
+ * {@code tool.result.cache.lookups} (tags {@code tool}, {@code result=hit|miss}), {@code tool.result.cache.saved}
+ * (time the original calls of the hits took) and {@code tool.result.cache.hit.ratio}.
+ */
+@Slf4j
+@Component
+public class ToolResultCache implements FileTreeCache.ChangeListener {
+
+    private final FileTreeCache fileTreeCache;
+    private final boolean enabled;
+    private final Set<String> tools;
+    private final long maxBytes;
+    private final MeterRegistry registry;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private long invalidations;
+    private long hits;
+    private long misses;
+
+    @Autowired
+    public ToolResultCache(
+            FileTreeCache fileTreeCache,
+            @Value("${tool.result-cache.enabled:true}") boolean enabled,
+            @Value("${tool.result-cache.tools:fileReader,textSearch,fileSearcher,directoryLister}") List<String> tools,
+            @Value("${tool.result-cache.max-bytes:16777216}") long maxBytes,
+            MeterRegistry registry
+    ) {
+        this.fileTreeCache = fileTreeCache;
+        this.enabled = enabled;
+        this.tools = Set.copyOf(tools);
+        this.maxBytes = maxBytes;
+        this.registry = registry;
+        fileTreeCache.addListener(this);
+        Gauge.builder("tool.result.cache.hit.ratio", this, ToolResultCache::hitRatio)
+                .description("Share of memoizable tool calls answered from the cache")
+                .register(registry);
+        log.info("Tool result cache: enabled={}, tools={}, maxBytes={}", enabled, tools, maxBytes);
+    }
+
+    /**
+     * Wraps {@code callback} if its tool is one of {@code tool.result-cache.tools}, otherwise returns it as is.
+     *
+     * @param inputType the record the tool's arguments are bound to
+     */
+    public ToolCallback memoize(ToolCallback callback, Class<?> inputType) {
+        String name = callback.getToolDefinition().name();
+        if (!enabled || !tools.contains(name)) {
+            return callback;
+        }
+        return new Memoized(callback, inputType,
+                lookups(name, "hit"),
+                lookups(name, "miss"),
+                Timer.builder("tool.result.cache.saved")
+                        .description("Execution time of the original calls whose results were reused")
+                        .tag("tool", name)
+                        .register(registry));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void changed(FileChange change) {
+        invalidate(change.path());
+    }
+
+    @Override
+    public synchronized void watchLost(Path dir) {
+        invalidate(dir);
+    }
+
+    private void invalidate(Path changed) {
+        invalidations++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.scope == null || changed.startsWith(entry.scope) || entry.scope.startsWith(changed)) {
+                bytes -= entry.weight();
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized double hitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private Counter lookups(String tool, String result) {
+        return Counter.builder("tool.result.cache.lookups")
+                .description("Lookups of memoizable tool calls")
+                .tag("tool", tool)
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Key of a call, or {@code null} if the arguments do not bind to the input record.
+     */
+    private String key(String tool, Class<?> inputType, String arguments) {
+        try {
+            JsonNode canonical = objectMapper.valueToTree(objectMapper.readValue(arguments, inputType));
+            if (canonical instanceof ObjectNode object) {
+                // Разные записи одного пути дают один ключ
+                Path path = ToolArguments.path(tool, object, fileTreeCache.basePath());
+                String field = object.hasNonNull("path") ? "path" : "directory";
+                if (path != null) {
+                    object.put(field, path.toString());
+                }
+            }
+            return tool + '\0' + objectMapper.writeValueAsString(canonical);
+        } catch (Exception e) {
+            log.debug("Not memoizing {} call with arguments {}: {}", tool, arguments, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Absolute path the result of a call depends on, {@code null} for the whole tree.
+     */
+    private Path scope(String tool, String arguments) {
+        try {
+            return ToolArguments.path(tool, objectMapper.readTree(arguments), fileTreeCache.basePath());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param scope absolute path the result depends on, {@code null} for the whole tree
+     */
+    private record Entry(String key, String result, Path scope, long nanos) {
+
+        long weight() {
+            return 2L * (key.length() + result.length()) + 64;
+        }
+    }
+
+    /**
+     * Result of a memoized call and whether it came from the cache.
+     */
+    record Answer(String result, boolean cached) {
+    }
+
+    final class Memoized implements ToolCallback {
+
+        private final ToolCallback delegate;
+        private final Class<?> inputType;
+        private final Counter hitCounter;
+        private final Counter missCounter;
+        private final Timer saved;
+
+        private Memoized(ToolCallback delegate, Class<?> inputType, Counter hitCounter, Counter missCounter, Timer saved) {
+            this.delegate = delegate;
+            this.inputType = inputType;
+            this.hitCounter = hitCounter;
+            this.missCounter = missCounter;
+            this.saved = saved;
+        }
+
+        @Override
+        public ToolDefinition getToolDefinition() {
+            return delegate.getToolDefinition();
+        }
+
+        @Override
+        public ToolMetadata getToolMetadata() {
+            return delegate.getToolMetadata();
+        }
+
+        @Override
+        public String call(String toolInput) {
+            return call(toolInput, null);
+        }
+
+        @Override
+        public String call(String toolInput, ToolContext toolContext) {
+            return answer(toolInput, toolContext).result();
+        }
+
+        Answer answer(String toolInput, ToolContext toolContext) {
+            String name = delegate.getToolDefinition().name();
+            Path scope = scope(name, toolInput);
+            // Вне базового каталога изменения не отслеживаются, такой результат никогда бы не сбросился
+            boolean watched = fileTreeCache.isWatching() && (scope == null || fileTreeCache.covers(scope));
+            String key = watched ? key(name, inputType, toolInput) : null;
+            if (key == null) {
+                return new Answer(invoke(toolInput, toolContext), false);
+            }
+            long generation;
+            synchronized (ToolResultCache.this) {
+                Entry cached = entries.get(key);
+                if (cached != null) {
+                    hits++;
+                    hitCounter.increment();
+                    saved.record(Duration.ofNanos(cached.nanos()));
+                    log.debug("Tool {} answered from cache: {}", name, toolInput);
+                    return new Answer(cached.result(), true);
+                }
+                misses++;
+                missCounter.increment();
+                generation = invalidations;
+            }
+            long start = System.nanoTime();
+            String result = invoke(toolInput, toolContext);
+            Entry entry = new Entry(key, result, scope, System.nanoTime() - start);
+            synchronized (ToolResultCache.this) {
+                if (generation == invalidations && entry.weight() <= maxBytes) {
+                    Entry previous = entries.put(key, entry);
+                    bytes += entry.weight() - (previous != null ? previous.weight() : 0);
+                    Iterator<Entry> eldest = entries.values().iterator();
+                    while (bytes > maxBytes && eldest.hasNext()) {
+                        bytes -= eldest.next().weight();
+                        eldest.remove();
+                    }
+                }
+            }
+            return new Answer(result, false);
+        }
+
+        private String invoke(String toolInput, ToolContext toolContext) {
+            return toolContext != null ? delegate.call(toolInput, toolContext) : delegate.call(toolInput);
+        }
+    }
+}
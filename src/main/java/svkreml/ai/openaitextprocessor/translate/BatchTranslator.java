@@ -0,0 +1,16 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import java.util.Map;
+
+/**
+ * One round trip to the model for a batch of entries.
+ */
+@FunctionalInterface
+public interface BatchTranslator {
+
+    /**
+     * @param sources source texts by key, in bundle order
+     * @return translations by key; keys missing from the result are retried by {@link TranslationPipeline}
+     */
+    Map<String, String> translate(Map<String, String> sources) throws Exception;
+}
@@ -0,0 +1,101 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.converter.StructuredOutputConverter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Keyed JSON protocol of a translation batch: the request is a JSON object of id → source text and the model
+ * answers with an object of the same ids → translations.
+ * <p>
+ * Ids are short positional numbers rather than bundle keys, so the model does not spend tokens on long keys and
+ * cannot mangle them. Parsing is lenient: a {@code <think>} block and Markdown fences are skipped, members that are
+ * not strings are ignored, and a reply cut off in the middle keeps every member read before the break. Whatever is
+ * missing is left to {@link TranslationPipeline} to retry.
+ */
+@Slf4j
+public class KeyedTranslationConverter implements StructuredOutputConverter<Map<String, String>> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+    private static final Pattern THINK = Pattern.compile("(?s)<think>.*?</think>");
+
+    /**
+     * Builds the request for {@code sources}, numbering entries from 1 in iteration order.
+     */
+    public String toRequest(Collection<String> sources) {
+        Map<String, String> request = new LinkedHashMap<>();
+        int id = 1;
+        for (String source : sources) {
+            request.put(String.valueOf(id++), source);
+        }
+        try {
+            return MAPPER.writeValueAsString(request);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Maps a reply from {@link #convert} back to bundle keys, given the keys in the order passed to {@link #toRequest}.
+     */
+    public Map<String, String> toKeys(Map<String, String> reply, List<String> keys) {
+        Map<String, String> translations = new HashMap<>();
+        reply.forEach((id, translation) -> {
+            try {
+                int index = Integer.parseInt(id.trim()) - 1;
+                if (index >= 0 && index < keys.size()) {
+                    translations.put(keys.get(index), translation);
+                }
+            } catch (NumberFormatException e) {
+                log.debug("Unknown id in translation reply: {}", id);
+            }
+        });
+        return translations;
+    }
+
+    @Override
+    public Map<String, String> convert(String text) {
+        Map<String, String> result = new LinkedHashMap<>();
+        String content = THINK.matcher(text).replaceAll("");
+        int start = content.indexOf('{');
+        if (start < 0) {
+            return result;
+        }
+        try (JsonParser parser = FACTORY.createParser(content.substring(start))) {
+            parser.nextToken();
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String id = parser.currentName();
+                if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                    result.put(id, parser.getText().trim());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (token != JsonToken.END_OBJECT) {
+                log.warn("Unexpected {} in translation reply, kept {} entries", token, result.size());
+            }
+        } catch (IOException e) {
+            // Оборванный или испорченный ответ: оставляем то, что успели прочитать
+            log.warn("Malformed translation reply, kept {} entries: {}", result.size(), e.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public String getFormat() {
+        return """
+                Your response must be a single JSON object, without Markdown code fences and without any other text.
+                Use the same ids as in the request object; each value is the translation of the message with that id.
+                """;
+    }
+}
@@ -0,0 +1,175 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import svkreml.ai.openaitextprocessor.properties.PropertiesBundle;
+import svkreml.ai.openaitextprocessor.properties.PropertiesJournal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent translation memory shared by all bundles and runs.
+ * <p>
+ * Entries are keyed by a hash of the target locale, the model and the source text, so the same English value under
+ * another key or in another theme is translated only once. A lookup tries the exact source first and then a
+ * normalized form: lower case, collapsed whitespace and {@code ${...}}/{@code {{...}}} placeholders masked by position.
+ * A normalized hit gets the placeholders of the new source put back and its first letter cased like the source.
+ * <p>
+ * New entries go to a {@link PropertiesJournal} of the file and are compacted into it on close. Lookups are counted
+ * in {@code translation.memory.lookups} with a {@code result} tag of {@code exact}, {@code normalized} or {@code miss}.
+ */
+@Slf4j
+public class TranslationMemory implements Closeable {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{[^}]*}|\\{\\{.*?}}");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final String EXACT = "e.";
+    private static final String NORMALIZED = "n.";
+
+    private final String locale;
+    private final String model;
+    private final PropertiesJournal journal;
+    private final PropertiesBundle entries;
+    private final Counter exactHits;
+    private final Counter normalizedHits;
+    private final Counter misses;
+
+    public TranslationMemory(Path file, String locale, String model, MeterRegistry registry) throws IOException {
+        this.locale = locale;
+        this.model = model;
+        this.journal = new PropertiesJournal(file);
+        this.entries = journal.bundle();
+        this.exactHits = counter(registry, "exact");
+        this.normalizedHits = counter(registry, "normalized");
+        this.misses = counter(registry, "miss");
+        log.info("Translation memory {}: {} entries", file, entries.size());
+    }
+
+    /**
+     * @return a remembered translation of {@code source}, or empty if neither the exact nor the normalized text is known
+     */
+    public synchronized Optional<String> lookup(String source) {
+        String exact = entries.get(EXACT + hash(source));
+        if (exact != null) {
+            exactHits.increment();
+            return Optional.of(exact);
+        }
+        List<String> placeholders = new ArrayList<>();
+        String masked = entries.get(NORMALIZED + hash(normalize(source, placeholders)));
+        if (masked != null) {
+            normalizedHits.increment();
+            return Optional.of(matchCase(source, unmask(masked, placeholders)));
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    public synchronized void put(String source, String translation) throws IOException {
+        List<String> placeholders = new ArrayList<>();
+        String normalizedKey = NORMALIZED + hash(normalize(source, placeholders));
+        String masked = mask(translation, placeholders);
+        append(EXACT + hash(source), translation);
+        append(normalizedKey, masked);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try (journal) {
+            if (journal.pending() > 0) {
+                journal.compact();
+            }
+        }
+    }
+
+    /**
+     * Lower-cases, collapses whitespace and replaces placeholders with their position, collecting them in order.
+     */
+    static String normalize(String source, List<String> placeholders) {
+        Matcher matcher = PLACEHOLDER.matcher(source);
+        StringBuilder out = new StringBuilder(source.length());
+        while (matcher.find()) {
+            placeholders.add(matcher.group());
+            matcher.appendReplacement(out, Matcher.quoteReplacement(marker(placeholders.size() - 1)));
+        }
+        matcher.appendTail(out);
+        return WHITESPACE.matcher(out.toString().toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    private void append(String key, String value) throws IOException {
+        // Повторно то же самое не пишем, чтобы журнал не рос от каждого запуска
+        if (!value.equals(entries.get(key))) {
+            journal.append(key, value);
+        }
+    }
+
+    private String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(locale.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String mask(String translation, List<String> placeholders) {
+        String masked = translation;
+        for (int i = 0; i < placeholders.size(); i++) {
+            masked = masked.replace(placeholders.get(i), marker(i));
+        }
+        return masked;
+    }
+
+    private static String unmask(String masked, List<String> placeholders) {
+        String translation = masked;
+        for (int i = 0; i < placeholders.size(); i++) {
+            translation = translation.replace(marker(i), placeholders.get(i));
+        }
+        return translation;
+    }
+
+    private static String marker(int index) {
+        return "${#" + index + "}";
+    }
+
+    private static String matchCase(String source, String translation) {
+        int sourceIndex = firstLetter(source);
+        int translationIndex = firstLetter(translation);
+        if (sourceIndex < 0 || translationIndex < 0) {
+            return translation;
+        }
+        char letter = translation.charAt(translationIndex);
+        char cased = Character.isUpperCase(source.charAt(sourceIndex)) ? Character.toUpperCase(letter) : Character.toLowerCase(letter);
+        return translation.substring(0, translationIndex) + cased + translation.substring(translationIndex + 1);
+    }
+
+    private static int firstLetter(String text) {
+        // Буквы внутри плейсхолдеров не считаем
+        String masked = PLACEHOLDER.matcher(text).replaceAll(m -> "#".repeat(m.group().length()));
+        for (int i = 0; i < masked.length(); i++) {
+            if (Character.isLetter(masked.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Counter counter(MeterRegistry registry, String result) {
+        return Counter.builder("translation.memory.lookups")
+                .description("Translation memory lookups by result")
+                .tag("result", result)
+                .register(registry);
+    }
+}
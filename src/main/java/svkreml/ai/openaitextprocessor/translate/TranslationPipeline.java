@@ -0,0 +1,148 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Translates a bundle with several batches in flight at once.
+ * <p>
+ * Batches are cut by an estimated token count rather than a fixed number of entries. The budget follows AIMD:
+ * it grows by 1/8 of {@code maxBatchTokens} after a clean batch and is halved after a failed round trip or a batch
+ * where most entries were rejected, so a struggling model gets smaller requests. Only the entries that are missing
+ * from a reply or fail validation are queued again, each at most {@code maxAttempts} times. Accepted entries are
+ * handed to the callback on the calling thread as soon as their batch completes, in completion order.
+ */
+@Slf4j
+public class TranslationPipeline {
+
+    private final BatchTranslator translator;
+    private final Validator validator;
+    private final int concurrency;
+    private final int maxBatchTokens;
+    private final int maxBatchEntries;
+    private final int maxAttempts;
+
+    public TranslationPipeline(BatchTranslator translator, Validator validator,
+                               int concurrency, int maxBatchTokens, int maxBatchEntries, int maxAttempts) {
+        this.translator = translator;
+        this.validator = validator;
+        this.concurrency = concurrency;
+        this.maxBatchTokens = maxBatchTokens;
+        this.maxBatchEntries = maxBatchEntries;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Result run(Map<String, String> sources, BiConsumer<String, String> onTranslated) throws InterruptedException {
+        Deque<Item> pending = new ArrayDeque<>(sources.size());
+        sources.forEach((key, source) -> pending.addLast(new Item(key, source, 0)));
+        List<String> failed = new ArrayList<>();
+        int translated = 0;
+        int batchTokens = maxBatchTokens;
+        int batches = 0;
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletionService<Outcome> completion = new ExecutorCompletionService<>(executor);
+            int inFlight = 0;
+            while (!pending.isEmpty() || inFlight > 0) {
+                while (inFlight < concurrency && !pending.isEmpty()) {
+                    List<Item> batch = nextBatch(pending, batchTokens);
+                    completion.submit(() -> translateBatch(batch));
+                    inFlight++;
+                    batches++;
+                }
+                Outcome outcome = awaitNext(completion);
+                inFlight--;
+
+                int rejected = 0;
+                for (Item item : outcome.batch()) {
+                    String translation = outcome.translations().get(item.key());
+                    if (translation != null && validator.isValid(item.source(), translation)) {
+                        onTranslated.accept(item.key(), translation);
+                        translated++;
+                        continue;
+                    }
+                    rejected++;
+                    if (outcome.error() == null) {
+                        log.warn("ERROR \t\t\t{}={} (attempt {})", item.key(), translation, item.attempts() + 1);
+                    }
+                    if (item.attempts() + 1 < maxAttempts) {
+                        pending.addLast(new Item(item.key(), item.source(), item.attempts() + 1));
+                    } else {
+                        log.error("Giving up on {} after {} attempts", item.key(), maxAttempts);
+                        failed.add(item.key());
+                    }
+                }
+                // Ошибка или массовый брак — уменьшаем пачки, иначе осторожно увеличиваем
+                if (outcome.error() != null || rejected * 2 > outcome.batch().size()) {
+                    batchTokens = Math.max(1, batchTokens / 2);
+                } else {
+                    batchTokens = Math.min(maxBatchTokens, batchTokens + Math.max(1, maxBatchTokens / 8));
+                }
+            }
+        }
+        log.info("Translated {} entries in {} batches, failed: {}", translated, batches, failed.size());
+        return new Result(translated, failed);
+    }
+
+    /**
+     * Rough token count of a source text; good enough to keep batches of very different entries comparable.
+     */
+    public static int estimateTokens(String text) {
+        return text.length() / 4 + 1;
+    }
+
+    private List<Item> nextBatch(Deque<Item> pending, int batchTokens) {
+        List<Item> batch = new ArrayList<>();
+        int tokens = 0;
+        while (!pending.isEmpty() && batch.size() < maxBatchEntries) {
+            int itemTokens = estimateTokens(pending.peekFirst().source());
+            if (!batch.isEmpty() && tokens + itemTokens > batchTokens) {
+                break;
+            }
+            batch.add(pending.pollFirst());
+            tokens += itemTokens;
+        }
+        return batch;
+    }
+
+    private Outcome translateBatch(List<Item> batch) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        batch.forEach(item -> sources.put(item.key(), item.source()));
+        try {
+            Map<String, String> translations = translator.translate(sources);
+            return new Outcome(batch, translations != null ? translations : Map.of(), null);
+        } catch (Exception e) {
+            log.warn("Batch of {} entries failed: {}", batch.size(), e.getMessage());
+            return new Outcome(batch, Map.of(), e);
+        }
+    }
+
+    private static Outcome awaitNext(CompletionService<Outcome> completion) throws InterruptedException {
+        try {
+            return completion.take().get();
+        } catch (ExecutionException e) {
+            // translateBatch сам перехватывает исключения переводчика
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Whether a translation of {@code source} can be written to the bundle.
+     */
+    @FunctionalInterface
+    public interface Validator {
+        boolean isValid(String source, String translation);
+    }
+
+    public record Result(int translated, List<String> failed) {
+    }
+
+    private record Item(String key, String source, int attempts) {
+    }
+
+    private record Outcome(List<Item> batch, Map<String, String> translations, Exception error) {
+    }
+}
@@ -0,0 +1,203 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.function.IntPredicate;
+
+/**
+ * Checks machine translations before they are written to a bundle.
+ * <p>
+ * Rules are assembled once with {@link #builder()}. Code point rules (forbidden scripts, line breaks) and the blank
+ * check share a single pass over the translation. Placeholder sets are compared with {@code indexOf} scans instead of
+ * regular expressions. Anything else can be plugged in with {@link Builder#rule}. One instance is immutable and can be
+ * shared between threads; {@link #validateAll} checks a whole bundle.
+ */
+public final class TranslationValidator implements TranslationPipeline.Validator {
+
+    public static final String BLANK = "blank";
+    public static final String PLACEHOLDERS = "placeholders";
+    public static final String NEWLINE = "newline";
+    public static final String SCRIPT = "script";
+
+    private static final TranslationValidator STANDARD = builder()
+            .rejectBlank()
+            .rejectLiteral("null")
+            .requireSamePlaceholders("${", "}")
+            .rejectNewlines()
+            .forbidScripts(Character.UnicodeScript.HAN, Character.UnicodeScript.HANGUL,
+                    Character.UnicodeScript.HIRAGANA, Character.UnicodeScript.KATAKANA)
+            .build();
+
+    private final boolean rejectBlank;
+    private final String[] codePointRuleNames;
+    private final IntPredicate[] codePointRules;
+    private final List<Delimiters> placeholders;
+    private final List<NamedRule> rules;
+
+    private TranslationValidator(Builder builder) {
+        this.rejectBlank = builder.rejectBlank;
+        this.codePointRuleNames = builder.codePointRuleNames.toArray(String[]::new);
+        this.codePointRules = builder.codePointRules.toArray(IntPredicate[]::new);
+        this.placeholders = List.copyOf(builder.placeholders);
+        this.rules = List.copyOf(builder.rules);
+    }
+
+    /**
+     * Rules used for Keycloak bundles: not blank, not {@code "null"}, the same {@code ${...}} placeholders as the source,
+     * no line breaks and no Chinese, Japanese or Korean characters.
+     */
+    public static TranslationValidator standard() {
+        return STANDARD;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public boolean isValid(String source, String translation) {
+        return violation(source, translation) == null;
+    }
+
+    /**
+     * @return the name of the first rule {@code translation} breaks, or {@code null} if it passes
+     */
+    public String violation(String source, String translation) {
+        if (translation == null) {
+            return BLANK;
+        }
+        boolean blank = true;
+        for (int i = 0; i < translation.length(); ) {
+            int codePoint = translation.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (blank && !Character.isWhitespace(codePoint)) {
+                blank = false;
+            }
+            for (int r = 0; r < codePointRules.length; r++) {
+                if (codePointRules[r].test(codePoint)) {
+                    return codePointRuleNames[r];
+                }
+            }
+        }
+        if (blank && rejectBlank) {
+            return BLANK;
+        }
+        for (Delimiters delimiters : placeholders) {
+            if (!delimiters.extract(source).equals(delimiters.extract(translation))) {
+                return PLACEHOLDERS;
+            }
+        }
+        for (NamedRule rule : rules) {
+            if (!rule.valid().test(source, translation)) {
+                return rule.name();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Validates a bundle.
+     *
+     * @return rule names of rejected translations by key; keys without a source are skipped
+     */
+    public Map<String, String> validateAll(Map<String, String> sources, Map<String, String> translations) {
+        Map<String, String> rejected = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : translations.entrySet()) {
+            String source = sources.get(entry.getKey());
+            if (source == null) {
+                continue;
+            }
+            String violation = violation(source, entry.getValue());
+            if (violation != null) {
+                rejected.put(entry.getKey(), violation);
+            }
+        }
+        return rejected;
+    }
+
+    public static final class Builder {
+
+        private boolean rejectBlank;
+        private final List<String> codePointRuleNames = new ArrayList<>();
+        private final List<IntPredicate> codePointRules = new ArrayList<>();
+        private final List<Delimiters> placeholders = new ArrayList<>();
+        private final List<NamedRule> rules = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder rejectBlank() {
+            this.rejectBlank = true;
+            return this;
+        }
+
+        /**
+         * Rejects a translation equal to {@code literal}, e.g. {@code "null"} that some models answer with.
+         */
+        public Builder rejectLiteral(String literal) {
+            return rule("literal:" + literal, (source, translation) -> !translation.equals(literal));
+        }
+
+        /**
+         * Requires the translation to contain the same set of {@code open...close} placeholders as the source.
+         */
+        public Builder requireSamePlaceholders(String open, String close) {
+            placeholders.add(new Delimiters(open, close));
+            return this;
+        }
+
+        public Builder rejectNewlines() {
+            return rejectCodePoints(NEWLINE, c -> c == '\n' || c == '\r');
+        }
+
+        public Builder forbidScripts(Character.UnicodeScript... scripts) {
+            EnumSet<Character.UnicodeScript> forbidden = EnumSet.copyOf(Arrays.asList(scripts));
+            // Латиница, кириллица и знаки препинания встречаются чаще всего, для них скрипт не ищем
+            return rejectCodePoints(SCRIPT, c -> c >= 0x2E80 && forbidden.contains(Character.UnicodeScript.of(c)));
+        }
+
+        /**
+         * Adds a rule checked for every code point of the translation in the shared pass.
+         */
+        public Builder rejectCodePoints(String name, IntPredicate rejects) {
+            codePointRuleNames.add(name);
+            codePointRules.add(rejects);
+            return this;
+        }
+
+        /**
+         * Adds a rule over the whole source and translation, checked after the built-in ones.
+         */
+        public Builder rule(String name, BiPredicate<String, String> valid) {
+            rules.add(new NamedRule(name, valid));
+            return this;
+        }
+
+        public TranslationValidator build() {
+            return new TranslationValidator(this);
+        }
+    }
+
+    private record Delimiters(String open, String close) {
+
+        Set<String> extract(String text) {
+            int start = text.indexOf(open);
+            if (start < 0) {
+                return Set.of();
+            }
+            Set<String> values = new HashSet<>();
+            while (start >= 0) {
+                int end = text.indexOf(close, start + open.length());
+                if (end < 0) {
+                    break;
+                }
+                values.add(text.substring(start + open.length(), end));
+                start = text.indexOf(open, end + close.length());
+            }
+            return values;
+        }
+    }
+
+    private record NamedRule(String name, BiPredicate<String, String> valid) {
+    }
+}
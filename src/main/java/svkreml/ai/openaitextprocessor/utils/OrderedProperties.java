@@ -1,5 +1,7 @@
 package svkreml.ai.openaitextprocessor.utils;
 
+import svkreml.ai.openaitextprocessor.properties.PropertiesFormat;
+
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -111,7 +113,7 @@ public class OrderedProperties extends Properties {
     public void store(OutputStream out, String comments) throws IOException {
         try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
             for (Map.Entry<Object, Object> entry : linkedMap.entrySet()) {
-                writer.write(entry.getKey().toString().replace(" ", "\\ ") + "=" + entry.getValue().toString().replace("\n", "\\\n") + "\n");
+                PropertiesFormat.writeEntry(writer, entry.getKey().toString(), entry.getValue().toString());
             }
         }
     }
@@ -0,0 +1,68 @@
+package svkreml.ai.openaitextprocessor.config;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModelTransportTest {
+
+    private final Map<Integer, Set<String>> clientsByConnection = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ModelTransport transport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            clientsByConnection.computeIfAbsent(exchange.getRemoteAddress().getPort(), port -> ConcurrentHashMap.newKeySet())
+                    .add(exchange.getRequestHeaders().getFirst("X-Client"));
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        transport = new ModelTransport(4, "5s", "60s", "10m", "5s", "5s", List.of());
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    void testBlockingAndStreamingClientsShareConnections() {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+        RestClient restClient = transport.restClientBuilder().defaultHeader("X-Client", "rest").build();
+        WebClient webClient = transport.webClientBuilder().defaultHeader("X-Client", "web").build();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("ok", restClient.post().uri(url).body("{}").retrieve().body(String.class));
+            assertEquals("ok", webClient.post().uri(url).bodyValue("{}").retrieve().bodyToMono(String.class).block());
+        }
+
+        // Соединения общие: по одному и тому же ходят оба клиента. Второе может открыться, пока первое
+        // ещё возвращается в пул после ответа, но не по соединению на запрос
+        assertTrue(clientsByConnection.size() <= 2, "connections: " + clientsByConnection);
+        assertTrue(clientsByConnection.values().stream().anyMatch(clients -> clients.size() == 2),
+                "connections: " + clientsByConnection);
+    }
+}
@@ -0,0 +1,87 @@
+package svkreml.ai.openaitextprocessor.config.functions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import svkreml.ai.openaitextprocessor.fs.ContentHash;
+import svkreml.ai.openaitextprocessor.fs.FileContentCache;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPagesThroughFileByBytesAndLines() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= 300; i++) {
+            lines.add("строка " + i);
+        }
+        Files.write(tempDir.resolve("big.txt"), lines);
+        String expected = String.join("\n", lines) + "\n";
+        // Файл целиком в памяти и файл больше порога, читаемый с диска по индексу строк, дают одно и то же
+        for (FileContentCache cache : List.of(new FileContentCache(1 << 20, 1 << 20), new FileContentCache(1 << 20, 100))) {
+            FileReader reader = new FileReader(tempDir.toString(), 1000, FileTreeCache.uncached(tempDir.toString()), cache);
+
+            StringBuilder text = new StringBuilder();
+            Long offset = null;
+            int pages = 0;
+            do {
+                FileReader.Content page = reader.apply(new FileReader.InputPath("big.txt", offset, null, null, null, null));
+                assertNull(page.error());
+                assertTrue(page.text().endsWith("\n"), "pages end at line boundaries");
+                text.append(page.text());
+                offset = page.nextOffset();
+                pages++;
+            } while (offset != null);
+            assertEquals(expected, text.toString());
+            assertTrue(pages > 4);
+
+            FileReader.Content range = reader.apply(new FileReader.InputPath("big.txt", null, null, 100, 102, null));
+            assertEquals("строка 100\nстрока 101\nстрока 102\n", range.text());
+            assertEquals(103, range.nextLine());
+            assertNull(range.sha256());
+
+            // Бюджет вызова обрезает диапазон строк, nextLine продолжает его
+            FileReader.Content budgeted = reader.apply(new FileReader.InputPath("big.txt", null, null, 290, null, 40));
+            assertEquals("строка 290\nстрока 291\n", budgeted.text());
+            assertEquals(292, budgeted.nextLine());
+
+            // Смещение посреди символа сдвигается к началу следующего, длина обрезается по целому символу
+            FileReader.Content bytes = reader.apply(new FileReader.InputPath("big.txt", 1L, 6, null, null, null));
+            assertEquals("тр", bytes.text());
+            assertEquals(6, bytes.nextOffset());
+        }
+    }
+
+    @Test
+    void testRepeatedReadsAreServedFromCacheUntilFileChanges() throws IOException {
+        Path file = tempDir.resolve("hot.txt");
+        Files.writeString(file, "v1\n");
+        FileContentCache cache = new FileContentCache(1 << 20, 1 << 20);
+        FileReader reader = new FileReader(tempDir.toString(), 1000, FileTreeCache.uncached(tempDir.toString()), cache);
+
+        FileReader.Content first = reader.apply(new FileReader.InputPath("hot.txt"));
+        FileReader.Content second = reader.apply(new FileReader.InputPath("hot.txt"));
+        assertEquals("v1\n", first.text());
+        assertSame(first.text(), second.text());
+        assertEquals(ContentHash.of("v1\n".getBytes()), second.sha256());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+
+        Files.writeString(file, "v2\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        assertEquals("v2\n", reader.apply(new FileReader.InputPath("hot.txt")).text());
+        assertEquals(2, cache.misses());
+    }
+}
@@ -3,7 +3,11 @@ package svkreml.ai.openaitextprocessor.config.functions;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import svkreml.ai.openaitextprocessor.fs.FileNode;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
 import svkreml.ai.openaitextprocessor.functions.TextSearch;
+import svkreml.ai.openaitextprocessor.search.TrigramIndex;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -12,7 +16,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -335,4 +342,138 @@ class TextSearchTest {
         TextSearch.SearchResponse response3 = textSearch.apply(request3);
         assertEquals(1, response3.results().get(0).contextLines().size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testTrigramIndexSearch() throws IOException {
+        Path src = Files.createDirectories(testDir.resolve("src"));
+        Files.write(src.resolve("a.txt"), List.of("nothing here"));
+        Files.write(src.resolve("b.txt"), List.of("first", "call fooBar(1)"));
+        Files.write(testDir.resolve("c.txt"), List.of("fooBaz"));
+
+        FileTreeCache tree = FileTreeCache.uncached(testDir.toString());
+        TextSearch indexedSearch = new TextSearch(new TrigramIndex(testDir.toString(), true, ".idx", 1024 * 1024, tree), null, 1, 0);
+
+        TextSearch.SearchResponse response = indexedSearch.apply(new TextSearch.SearchRequest(
+                testDir.toString(), "foo(Bar|Baz)", 10, 0, 0, "*"));
+        assertTrue(response.success());
+        assertEquals(List.of(testDir.resolve("c.txt").toString(), src.resolve("b.txt").toString()),
+                response.results().stream().map(TextSearch.SearchResult::filePath).toList());
+        assertTrue(Files.exists(testDir.resolve(".idx/trigrams.idx")));
+        // Файлы индекса инструментам не видны
+        assertEquals(List.of("c.txt", "src"), tree.list(testDir).stream().map(FileNode::name).toList());
+        assertNull(new FileReader(testDir.toString(), tree)
+                .apply(new FileReader.InputPath(".idx/trigrams.idx", null, null, null, null, null)).text());
+
+        // Изменённый файл переиндексируется по mtime
+        Files.write(src.resolve("a.txt"), List.of("now fooBar is here too"));
+        Files.setLastModifiedTime(src.resolve("a.txt"),
+                java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        TextSearch.SearchResponse updated = indexedSearch.apply(new TextSearch.SearchRequest(
+                src.toString(), "fooBar", 10, 0, 0, "*"));
+        assertEquals(List.of(src.resolve("a.txt").toString(), src.resolve("b.txt").toString()),
+                updated.results().stream().map(TextSearch.SearchResult::filePath).toList());
+    }
+
+    @Test
+    void testTrigramIndexRechecksCandidatesTheTreeHasNotSeenChange() throws IOException {
+        Path src = Files.createDirectories(testDir.resolve("src"));
+        Files.write(src.resolve("a.txt"), List.of("call fooBar(0)"));
+        Files.write(src.resolve("b.txt"), List.of("call fooBar(1)"));
+        // Дерево, до которого событие WatchService ещё не дошло: отдаёт атрибуты первого обхода
+        FileTreeCache staleTree = new FileTreeCache(testDir.toString(), false, 0, false) {
+            private List<FileNode> snapshot;
+
+            @Override
+            public Iterator<FileNode> walkFiles(Path root, Predicate<Path> skipDirectory) {
+                if (snapshot == null) {
+                    snapshot = new ArrayList<>();
+                    super.walkFiles(root, skipDirectory).forEachRemaining(snapshot::add);
+                }
+                return snapshot.iterator();
+            }
+        };
+        TextSearch indexedSearch = new TextSearch(
+                new TrigramIndex(testDir.toString(), true, ".idx", 1024 * 1024, staleTree), null, 1, 0);
+        TextSearch.SearchRequest request = new TextSearch.SearchRequest(src.toString(), "fooBar", 10, 0, 0, "*");
+        assertEquals(List.of(src.resolve("a.txt").toString(), src.resolve("b.txt").toString()),
+                indexedSearch.apply(request).results().stream().map(TextSearch.SearchResult::filePath).toList());
+
+        // Кандидаты сверяются с диском: изменённый переиндексируется, удалённый выпадает без ошибки
+        Files.write(src.resolve("a.txt"), List.of("nothing here now"));
+        Files.setLastModifiedTime(src.resolve("a.txt"),
+                java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        Files.delete(src.resolve("b.txt"));
+        TextSearch.SearchResponse response = indexedSearch.apply(request);
+        assertTrue(response.success());
+        assertEquals(List.of(), response.results());
+    }
+
+    @Test
+    void testParallelSearchKeepsSequentialOrder() throws IOException {
+        for (int d = 0; d < 5; d++) {
+            Path dir = Files.createDirectories(testDir.resolve("dir" + d).resolve("nested"));
+            for (int f = 0; f < 10; f++) {
+                Files.write(dir.resolve("file" + f + ".txt"), List.of("skip", "pattern " + d + "/" + f, "pattern again"));
+                Files.write(dir.getParent().resolve("top" + f + ".txt"), List.of("pattern top " + d + "/" + f));
+            }
+        }
+
+        TextSearch.SearchRequest request = new TextSearch.SearchRequest(testDir.toString(), "pattern", 37, 1, 0, "*.txt");
+        TextSearch.SearchResponse sequential = textSearch.apply(request);
+        TextSearch.SearchResponse parallel = new TextSearch(null, null, 4, 0).apply(request);
+
+        assertTrue(parallel.success());
+        assertEquals(37, parallel.results().size());
+        assertEquals(sequential.results(), parallel.results());
+        assertEquals(testDir.resolve("dir0/nested/file0.txt").toString(), parallel.results().get(0).filePath());
+    }
+
+    @Test
+    void testLargeFileStreamed() throws IOException {
+        Path largeFile = testDir.resolve("huge.log");
+        try (var writer = Files.newBufferedWriter(largeFile, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= 200_000; i++) {
+                writer.write(i == 199_999 ? "Ошибка: pattern\r\n" : "line " + i + "\n");
+            }
+        }
+
+        TextSearch.SearchRequest request = new TextSearch.SearchRequest(testDir.toString(), "pattern", 10, 2, 3, "*");
+        TextSearch.SearchResponse response = textSearch.apply(request);
+
+        assertTrue(response.success());
+        assertEquals(1, response.results().size());
+        TextSearch.SearchResult result = response.results().get(0);
+        assertEquals(199_999, result.lineNumber());
+        assertEquals("Ошибка: pattern", result.matchedLine());
+        assertEquals(List.of("line 199997", "line 199998", "Ошибка: pattern", "line 200000"), result.contextLines());
+        assertEquals(2, result.matchIndexInContext());
+
+        // Ограничение размера по-прежнему можно включить
+        TextSearch limited = new TextSearch(null, null, 1, 50 * 1024);
+        assertTrue(limited.apply(request).results().isEmpty());
+    }
+
+    @Test
+    void testLiteralAndPrefixFastPath() throws IOException {
+        Path file = testDir.resolve("Service.java");
+        Files.write(file, List.of(
+                "log.info(\"start\");",
+                "logXinfo(\"not a literal match\");",
+                "getUserById(1);",
+                "getuserById(2);",
+                "getOrder(3);"
+        ));
+
+        TextSearch.SearchResponse literal = textSearch.apply(new TextSearch.SearchRequest(
+                testDir.toString(), "log\\.info", 10, 0, 0, "*"));
+        assertEquals(List.of(1), literal.results().stream().map(TextSearch.SearchResult::lineNumber).toList());
+
+        TextSearch.SearchResponse prefix = textSearch.apply(new TextSearch.SearchRequest(
+                testDir.toString(), "get[A-Z]\\w+Id", 10, 0, 0, "*"));
+        assertEquals(List.of(3), prefix.results().stream().map(TextSearch.SearchResult::lineNumber).toList());
+
+        TextSearch.SearchResponse optionalTail = textSearch.apply(new TextSearch.SearchRequest(
+                testDir.toString(), "getOrders?", 10, 0, 0, "*"));
+        assertEquals(List.of(5), optionalTail.results().stream().map(TextSearch.SearchResult::lineNumber).toList());
+    }
+}
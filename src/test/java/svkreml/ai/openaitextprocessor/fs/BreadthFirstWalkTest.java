@@ -0,0 +1,121 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+import svkreml.ai.openaitextprocessor.functions.DirectoryLister;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BreadthFirstWalkTest {
+    private Path testDir;
+    private FileTreeCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testDir = Files.createTempDirectory("bfs-walk-tests");
+        for (String file : List.of("a/x/deep.txt", "a/y.txt", "b/z.txt", "c.txt", "d/e/f/g.txt")) {
+            Path path = testDir.resolve(file);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, file);
+        }
+        Files.createDirectories(testDir.resolve("empty"));
+        cache = new FileTreeCache(testDir.toString(), true, 1000, true);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        cache.close();
+        FileSystemUtils.deleteRecursively(testDir);
+    }
+
+    private static final List<String> BREADTH_FIRST = List.of(
+            "a", "b", "c.txt", "d", "empty",
+            "a/x", "a/y.txt", "b/z.txt", "d/e",
+            "a/x/deep.txt", "d/e/f",
+            "d/e/f/g.txt"
+    );
+
+    @Test
+    void testWalkIsBreadthFirstAndResumable() throws IOException {
+        assertEquals(BREADTH_FIRST, walk(null, 10, Integer.MAX_VALUE));
+
+        // Продолжение с любой позиции даёт ровно оставшийся хвост
+        for (int i = 0; i < BREADTH_FIRST.size(); i++) {
+            assertEquals(BREADTH_FIRST.subList(i + 1, BREADTH_FIRST.size()), walk(BREADTH_FIRST.get(i), 10, Integer.MAX_VALUE));
+        }
+        assertEquals(BREADTH_FIRST.subList(0, 9), walk(null, 1, Integer.MAX_VALUE));
+        // Курсор на удалённую запись тоже работает
+        assertEquals(List.of("b/z.txt", "d/e"), walk("a/zzz", 1, Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> walk("../etc", 10, 1));
+    }
+
+    @Test
+    void testEveryDirectoryIsListedOnce() throws IOException {
+        List<Path> listed = new ArrayList<>();
+        FileTreeCache counting = new FileTreeCache(testDir.toString(), false, 0, false) {
+            @Override
+            public List<FileNode> list(Path dir) throws IOException {
+                listed.add(testDir.relativize(dir));
+                return super.list(dir);
+            }
+        };
+        BreadthFirstWalk walk = new BreadthFirstWalk(counting, testDir, 10, null);
+        walk.forEachRemaining(entry -> {
+        });
+        // Каждый каталог читается ровно один раз, уровень за уровнем
+        assertEquals(List.of("", "a", "b", "d", "empty", "a/x", "d/e", "d/e/f"),
+                listed.stream().map(path -> path.toString().replace('\\', '/')).toList());
+    }
+
+    @Test
+    void testDirectoryListerPagesWithinNodeBudget() {
+        DirectoryLister lister = new DirectoryLister(testDir.toString(), 10, 5, cache, new ChangeJournal(cache, 100));
+
+        DirectoryLister.DirectoryListing first = lister.apply(new DirectoryLister.InputParams("", true));
+        assertEquals(List.of("a", "b", "c.txt", "d", "empty"), first.contents().stream().map(DirectoryLister.FileSystemNode::name).toList());
+        assertEquals("empty", first.nextCursor());
+        assertNotNull(first.token());
+
+        List<String> paged = new ArrayList<>();
+        String cursor = first.nextCursor();
+        while (cursor != null) {
+            DirectoryLister.DirectoryListing page = lister.apply(new DirectoryLister.InputParams("", true, null, cursor, 3));
+            assertTrue(page.contents().size() <= 3);
+            assertNull(page.token());
+            page.contents().forEach(node -> collect("", node, paged));
+            cursor = page.nextCursor();
+        }
+        assertEquals(BREADTH_FIRST.subList(5, BREADTH_FIRST.size()), paged.stream().sorted(this::breadthFirstOrder).toList());
+
+        DirectoryLister.DirectoryListing nested = lister.apply(new DirectoryLister.InputParams("d", true));
+        assertNull(nested.nextCursor());
+        assertEquals("g.txt", nested.contents().get(0).children().get(0).children().get(0).name());
+    }
+
+    private List<String> walk(String cursor, int maxDepth, int limit) throws IOException {
+        BreadthFirstWalk walk = new BreadthFirstWalk(cache, testDir, maxDepth, cursor);
+        List<String> paths = new ArrayList<>();
+        while (walk.hasNext() && paths.size() < limit) {
+            paths.add(walk.next().cursor());
+        }
+        return paths;
+    }
+
+    private static void collect(String prefix, DirectoryLister.FileSystemNode node, List<String> paths) {
+        String path = prefix + node.name();
+        paths.add(path);
+        node.children().forEach(child -> collect(path + "/", child, paths));
+    }
+
+    private int breadthFirstOrder(String left, String right) {
+        return Integer.compare(BREADTH_FIRST.indexOf(left), BREADTH_FIRST.indexOf(right));
+    }
+}
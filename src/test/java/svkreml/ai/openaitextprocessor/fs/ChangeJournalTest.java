@@ -0,0 +1,138 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+import svkreml.ai.openaitextprocessor.functions.DirectoryLister;
+import svkreml.ai.openaitextprocessor.functions.FileSearcher;
+import svkreml.ai.openaitextprocessor.functions.FileWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeJournalTest {
+    private Path testDir;
+    private FileTreeCache cache;
+    private ChangeJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testDir = Files.createTempDirectory("change-journal-tests");
+        Files.createDirectories(testDir.resolve("src"));
+        Files.writeString(testDir.resolve("src/A.java"), "class A {}");
+        Files.writeString(testDir.resolve("readme.txt"), "readme");
+        cache = new FileTreeCache(testDir.toString(), true, 1000, true);
+        journal = new ChangeJournal(cache, 1000);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        cache.close();
+        FileSystemUtils.deleteRecursively(testDir);
+    }
+
+    @Test
+    void testDirectoryListerReturnsOnlyChangesSinceToken() {
+        DirectoryLister lister = new DirectoryLister(testDir.toString(), 10, cache, journal);
+        FileWriter fileWriter = new FileWriter(testDir.toString(), cache);
+
+        DirectoryLister.DirectoryListing full = lister.apply(new DirectoryLister.InputParams("", true));
+        assertNotNull(full.token());
+        assertEquals(2, full.contents().size());
+
+        fileWriter.apply(new FileWriter.FileWriteRequest("src/B.java", "class B {}", FileWriter.WriteOperation.OVERWRITE, null));
+        fileWriter.apply(new FileWriter.FileWriteRequest("docs/guide.md", "# guide", FileWriter.WriteOperation.OVERWRITE, null));
+
+        DirectoryLister.DirectoryListing delta = lister.apply(new DirectoryLister.InputParams("", true, full.token()));
+        assertNull(delta.error());
+        assertNull(delta.contents());
+        DirectoryLister.FileSystemChange added = findChange(delta.changes(), "src/B.java");
+        assertEquals("ADDED", added.change());
+        assertEquals(10, added.node().size());
+        // Новый каталог приходит вместе с содержимым
+        DirectoryLister.FileSystemChange docs = findChange(delta.changes(), "docs");
+        assertEquals("ADDED", docs.change());
+        assertEquals("guide.md", docs.node().children().get(0).name());
+
+        // Токен можно использовать повторно
+        DirectoryLister.DirectoryListing again = lister.apply(new DirectoryLister.InputParams("", true, full.token()));
+        assertEquals("ADDED", findChange(again.changes(), "src/B.java").change());
+
+        // События WatchService о записях, уже попавших в журнал, приходят позже и повторно не сообщаются
+        journal.changed(new FileChange(testDir.resolve("src/B.java"), FileChange.Kind.MODIFIED, null));
+        DirectoryLister.DirectoryListing unchanged = lister.apply(new DirectoryLister.InputParams("", true, delta.token()));
+        assertNotNull(unchanged.changes());
+        assertTrue(unchanged.changes().stream().noneMatch(change -> change.path().endsWith(".java")));
+    }
+
+    @Test
+    void testExternalEditAfterWriteIsReported() throws IOException {
+        FileWriter fileWriter = new FileWriter(testDir.toString(), cache);
+        Path file = testDir.resolve("src/B.java");
+        fileWriter.apply(new FileWriter.FileWriteRequest("src/B.java", "class B {}", FileWriter.WriteOperation.OVERWRITE, null));
+        String token = journal.token("scope");
+
+        Files.writeString(file, "class B { int edited; }");
+        journal.changed(new FileChange(file, FileChange.Kind.MODIFIED, null));
+        assertEquals(List.of(new FileChange(file, FileChange.Kind.MODIFIED, null)),
+                journal.changesSince(token, "scope", testDir).orElseThrow());
+    }
+
+    @Test
+    void testFileSearcherSeesExternalChanges() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FileSearcher searcher = new FileSearcher(testDir.toString(), cache, journal, registry);
+
+        FileSearcher.SearchResult full = searcher.apply(new FileSearcher.SearchPattern("**.java"));
+        assertEquals(List.of(Path.of("src", "A.java").toString()), full.paths());
+
+        Files.delete(testDir.resolve("src/A.java"));
+        Files.writeString(testDir.resolve("src/C.java"), "class C {}");
+        Files.writeString(testDir.resolve("notes.txt"), "not a java file");
+
+        List<FileSearcher.PathChange> changes = List.of();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (changes.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            changes = searcher.apply(new FileSearcher.SearchPattern("**.java", full.token())).changes();
+        }
+        assertEquals(List.of(
+                new FileSearcher.PathChange(Path.of("src", "A.java").toString(), "REMOVED"),
+                new FileSearcher.PathChange(Path.of("src", "C.java").toString(), "ADDED")
+        ), changes);
+        // Удалённый файл в дельте есть, но найденным совпадением не считается
+        double before = registry.get("tool.matches").counter().count();
+        searcher.apply(new FileSearcher.SearchPattern("**.java", full.token()));
+        assertEquals(1.0, registry.get("tool.matches").counter().count() - before);
+    }
+
+    @Test
+    void testForeignOrExpiredTokenFallsBackToFullResult() {
+        DirectoryLister lister = new DirectoryLister(testDir.toString(), 10, cache, journal);
+        String recursiveToken = lister.apply(new DirectoryLister.InputParams("", true)).token();
+
+        DirectoryLister.DirectoryListing flat = lister.apply(new DirectoryLister.InputParams("", false, recursiveToken));
+        assertNull(flat.changes());
+        assertEquals(2, flat.contents().size());
+
+        DirectoryLister.DirectoryListing garbage = lister.apply(new DirectoryLister.InputParams("", true, "not-a-token"));
+        assertNull(garbage.changes());
+        assertEquals(2, garbage.contents().size());
+
+        journal.watchLost(testDir);
+        assertNull(lister.apply(new DirectoryLister.InputParams("", true, recursiveToken)).changes());
+    }
+
+    private static DirectoryLister.FileSystemChange findChange(List<DirectoryLister.FileSystemChange> changes, String path) {
+        return changes.stream()
+                .filter(change -> change.path().equals(Path.of(path).toString()))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No change for " + path + " in " + changes));
+    }
+}
@@ -0,0 +1,142 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
+import svkreml.ai.openaitextprocessor.functions.FileWriter;
+import svkreml.ai.openaitextprocessor.functions.TextSearch;
+import svkreml.ai.openaitextprocessor.search.TrigramIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTreeCacheTest {
+    private Path testDir;
+    private FileTreeCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testDir = Files.createTempDirectory("tree-cache-tests");
+        cache = new FileTreeCache(testDir.toString(), true, 1000, true);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        cache.close();
+        FileSystemUtils.deleteRecursively(testDir);
+    }
+
+    @Test
+    void testListingIsCachedAndSorted() throws IOException {
+        Files.writeString(testDir.resolve("b.txt"), "b");
+        Files.createDirectories(testDir.resolve("a"));
+
+        List<FileNode> first = cache.list(testDir);
+        assertEquals(List.of("a", "b.txt"), first.stream().map(FileNode::name).toList());
+        assertTrue(first.get(0).isDirectory());
+        assertSame(first, cache.list(testDir));
+        assertEquals(1, cache.stat(testDir.resolve("b.txt")).orElseThrow().size());
+        assertTrue(cache.stat(testDir.resolve("missing.txt")).isEmpty());
+    }
+
+    @Test
+    void testFileWriterWritesThrough() throws IOException {
+        cache.list(testDir);
+        FileWriter fileWriter = new FileWriter(testDir.toString(), cache);
+
+        fileWriter.apply(new FileWriter.FileWriteRequest("new/dir/file.txt", "12345", FileWriter.WriteOperation.OVERWRITE, null));
+
+        // Новый каталог появился в закэшированном листинге корня без события WatchService
+        assertEquals(List.of("new"), cache.list(testDir).stream().map(FileNode::name).toList());
+        assertEquals(5, cache.stat(testDir.resolve("new/dir/file.txt")).orElseThrow().size());
+    }
+
+    @Test
+    void testExternalChangeInvalidatesListing() throws Exception {
+        cache.list(testDir);
+        Files.writeString(testDir.resolve("external.txt"), "x");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (cache.stat(testDir.resolve("external.txt")).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(cache.stat(testDir.resolve("external.txt")).isPresent());
+    }
+
+    @Test
+    void testNodeBudgetEvictsLeastRecentlyUsedListings() throws IOException {
+        FileTreeCache small = new FileTreeCache(testDir.toString(), true, 10, true);
+        try {
+            List<Path> dirs = new ArrayList<>();
+            for (int d = 0; d < 3; d++) {
+                Path dir = Files.createDirectories(testDir.resolve("dir" + d));
+                for (int f = 0; f < 6; f++) {
+                    Files.writeString(dir.resolve("f" + f), "x");
+                }
+                dirs.add(dir);
+            }
+            for (Path dir : dirs) {
+                assertEquals(6, small.list(dir).size());
+                assertTrue(small.cachedNodes() <= 10);
+            }
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    void testHiddenDirectoryIsInvisibleToTools() throws Exception {
+        Path memory = Files.createDirectories(testDir.resolve("chat-memory"));
+        Files.writeString(memory.resolve("segment-0.log"), "secret conversation");
+        Files.writeString(testDir.resolve("notes.txt"), "public notes");
+        cache.hide(memory);
+        List<FileChange> changes = new CopyOnWriteArrayList<>();
+        cache.addListener(new FileTreeCache.ChangeListener() {
+            @Override
+            public void changed(FileChange change) {
+                changes.add(change);
+            }
+
+            @Override
+            public void watchLost(Path dir) {
+            }
+        });
+
+        List<FileNode> listing = cache.list(testDir);
+        assertEquals(List.of("notes.txt"), listing.stream().map(FileNode::name).toList());
+        assertTrue(cache.stat(memory).isEmpty());
+        assertThrows(NoSuchFileException.class, () -> cache.list(memory));
+
+        FileReader reader = new FileReader(testDir.toString(), cache);
+        assertNull(reader.apply(new FileReader.InputPath("chat-memory/segment-0.log", null, null, null, null, null)).text());
+
+        TextSearch search = new TextSearch(new TrigramIndex(testDir.toString(), true, ".idx", 1024 * 1024, cache), cache, 1, 0);
+        try {
+            TextSearch.SearchResponse found = search.apply(new TextSearch.SearchRequest(testDir.toString(), "conversation|notes", 10, 0, 0, null));
+            assertEquals(List.of("notes.txt"), found.results().stream()
+                    .map(result -> Path.of(result.filePath()).getFileName().toString()).toList());
+        } finally {
+            search.shutdown();
+        }
+
+        // Запись журнала разговоров не сбрасывает листинг корня и не доходит до слушателей
+        Files.writeString(memory.resolve("segment-1.log"), "more");
+        Files.delete(memory.resolve("segment-0.log"));
+        Files.writeString(testDir.resolve("visible.txt"), "x");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (changes.stream().noneMatch(change -> change.path().endsWith("visible.txt")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(changes.stream().anyMatch(change -> change.path().endsWith("visible.txt")));
+        assertTrue(changes.stream().noneMatch(change -> change.path().startsWith(memory)), changes::toString);
+    }
+}
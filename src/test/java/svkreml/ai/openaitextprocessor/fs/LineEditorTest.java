@@ -0,0 +1,165 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineEditorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final LineEditor editor = new LineEditor();
+
+    @Test
+    void testSingleEdits() throws IOException {
+        Path file = tempDir.resolve("a.txt");
+        Files.writeString(file, "one\r\ntwo\r\nthree");
+
+        assertEquals(List.of(2), editor.apply(file, List.of(LineEditor.Edit.insert(2, List.of("new")))));
+        assertEquals("one\r\nnew\r\ntwo\r\nthree", Files.readString(file));
+
+        editor.apply(file, List.of(LineEditor.Edit.replace(4, List.of("3", "3.5"))));
+        assertEquals("one\r\nnew\r\ntwo\r\n3\r\n3.5", Files.readString(file));
+
+        // Вставка за концом файла закрывает последнюю строку
+        assertEquals(List.of(6), editor.apply(file, List.of(LineEditor.Edit.insert(100, List.of("end")))));
+        assertEquals("one\r\nnew\r\ntwo\r\n3\r\n3.5\r\nend\r\n", Files.readString(file));
+
+        editor.apply(file, List.of(LineEditor.Edit.delete(1)));
+        assertEquals("new\r\ntwo\r\n3\r\n3.5\r\nend\r\n", Files.readString(file));
+    }
+
+    @Test
+    void testBatchUsesOriginalLineNumbers() throws IOException {
+        Path file = tempDir.resolve("b.txt");
+        Files.writeString(file, "1\n2\n3\n4\n5\n");
+
+        List<Integer> applied = editor.apply(file, List.of(
+                LineEditor.Edit.replace(4, List.of("four")),
+                LineEditor.Edit.insert(2, List.of("1.5a", "1.5b")),
+                LineEditor.Edit.delete(2),
+                LineEditor.Edit.insert(9, List.of("tail")),
+                LineEditor.Edit.insert(9, List.of("tail2"))));
+
+        assertEquals(List.of(4, 2, 2, 6, 6), applied);
+        assertEquals("1\n1.5a\n1.5b\n3\nfour\n5\ntail\ntail2\n", Files.readString(file));
+    }
+
+    @Test
+    void testFailedEditLeavesFileUntouched() throws IOException {
+        Path file = tempDir.resolve("c.txt");
+        Files.writeString(file, "1\n2\n");
+
+        IndexOutOfBoundsException e = assertThrows(IndexOutOfBoundsException.class, () -> editor.apply(file, List.of(
+                LineEditor.Edit.insert(1, List.of("0")), LineEditor.Edit.replace(3, List.of("x")))));
+        assertEquals("Line number 3 exceeds file length (2 lines)", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> editor.apply(file, List.of(
+                LineEditor.Edit.replace(1, List.of("x")), LineEditor.Edit.delete(1))));
+        assertThrows(NoSuchFileException.class, () -> editor.apply(tempDir.resolve("missing.txt"),
+                List.of(LineEditor.Edit.replace(1, List.of("x")))));
+
+        assertEquals("1\n2\n", Files.readString(file));
+        try (var files = Files.list(tempDir)) {
+            assertEquals(List.of(file), files.toList());
+        }
+    }
+
+    @Test
+    void testPatchChecksHashAndMatchedLines() throws IOException {
+        Path file = tempDir.resolve("d.txt");
+        Files.writeString(file, "a\nb\nc\n");
+        String hash = ContentHash.of(Files.readAllBytes(file));
+
+        IllegalStateException stale = assertThrows(IllegalStateException.class, () -> editor.patch(file,
+                List.of(LineEditor.Edit.delete(1)), ContentHash.of("other".getBytes())));
+        assertTrue(stale.getMessage().contains(hash), stale.getMessage());
+        IllegalStateException mismatch = assertThrows(IllegalStateException.class, () -> editor.patch(file,
+                List.of(LineEditor.Edit.match(2, "x"), LineEditor.Edit.replace(2, List.of("y"))), null));
+        assertEquals("Line 2 does not match: expected 'x', found 'b'", mismatch.getMessage());
+        assertEquals("a\nb\nc\n", Files.readString(file));
+
+        LineEditor.Patched patched = editor.patch(file, List.of(
+                LineEditor.Edit.replace(2, List.of("B")),
+                LineEditor.Edit.match(2, "b"),
+                LineEditor.Edit.match(3, "c"),
+                LineEditor.Edit.insert(3, List.of("b2"))), hash);
+        assertEquals(List.of(2, 2, 3, 3), patched.lines());
+        assertEquals("a\nB\nb2\nc\n", Files.readString(file));
+        assertEquals(ContentHash.of(Files.readAllBytes(file)), patched.sha256());
+
+        // Одни проверки файл не переписывают
+        Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        String current = ContentHash.of(Files.readAllBytes(file));
+        LineEditor.Patched checked = editor.patch(file, List.of(LineEditor.Edit.match(3, "b2")), current);
+        assertEquals(List.of(3), checked.lines());
+        assertEquals(current, checked.sha256());
+        assertEquals(fileKey, Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+        assertThrows(IllegalStateException.class, () -> editor.patch(file, List.of(LineEditor.Edit.match(3, "c")), null));
+    }
+
+    @Test
+    void testConcurrentEditsOfOneFileAreNotLost() throws Exception {
+        Path file = tempDir.resolve("shared.txt");
+        Files.writeString(file, "");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            String line = "line " + i;
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    editor.apply(file, List.of(LineEditor.Edit.insert(Integer.MAX_VALUE, List.of(line))));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(16, Files.readAllLines(file).stream().distinct().count());
+    }
+
+    @Test
+    void testCreatesMissingFileAndKeepsPermissions() throws IOException {
+        Path created = tempDir.resolve("new.txt");
+        assertEquals(List.of(1), editor.apply(created, List.of(LineEditor.Edit.insert(5, List.of("first")))));
+        assertEquals("first" + System.lineSeparator(), Files.readString(created));
+
+        Path script = tempDir.resolve("run.sh");
+        Files.writeString(script, "#!/bin/sh\necho\n");
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-x---"));
+        editor.apply(script, List.of(LineEditor.Edit.replace(2, List.of("echo hi"))));
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(script)));
+    }
+
+    @Test
+    void testRepeatedEditsOnLargeFileUseUpdatedIndex() throws IOException {
+        Path file = tempDir.resolve("large.txt");
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 5000; i++) {
+            expected.add("line " + i);
+        }
+        Files.write(file, expected);
+
+        // Правки идут снизу вверх и сверху вниз, индекс переиспользуется после каждой
+        int[] lines = {4500, 3000, 2049, 2048, 1025, 1024, 17, 1, 4999, 2500};
+        for (int line : lines) {
+            editor.apply(file, List.of(LineEditor.Edit.replace(line, List.of("edited " + line))));
+            expected.set(line - 1, "edited " + line);
+            editor.apply(file, List.of(LineEditor.Edit.insert(line + 1, List.of("after " + line))));
+            expected.add(line, "after " + line);
+            assertEquals(expected, Files.readAllLines(file), "after editing line " + line);
+        }
+    }
+}
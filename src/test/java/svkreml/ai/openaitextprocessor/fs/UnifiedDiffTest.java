@@ -0,0 +1,74 @@
+package svkreml.ai.openaitextprocessor.fs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
+import svkreml.ai.openaitextprocessor.functions.FileWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnifiedDiffTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testParsesHunksIntoEditsOfOriginalFile() {
+        List<LineEditor.Edit> edits = UnifiedDiff.parse("""
+                diff --git a/a.txt b/a.txt
+                --- a/a.txt
+                +++ b/a.txt
+                @@ -2,3 +2,3 @@ header
+                 two
+                -three
+                +3
+                 four
+                @@ -9,0 +10,1 @@
+                +after nine
+                --- a/next.txt
+                +++ b/next.txt
+                """);
+
+        assertEquals(List.of(
+                LineEditor.Edit.match(2, "two"),
+                LineEditor.Edit.match(3, "three"),
+                LineEditor.Edit.delete(3),
+                LineEditor.Edit.insert(4, List.of("3")),
+                LineEditor.Edit.match(4, "four"),
+                LineEditor.Edit.insert(10, List.of("after nine"))), edits);
+        assertThrows(IllegalArgumentException.class, () -> UnifiedDiff.parse("@@ -1,2 +1,2 @@\n-a\n*b\n"));
+        assertThrows(IllegalArgumentException.class, () -> UnifiedDiff.parse("no hunks"));
+    }
+
+    @Test
+    void testFileWriterPatchesWithHashFromFileReader() throws IOException {
+        Files.writeString(tempDir.resolve("app.py"), "x = 1\ny = 2\nz = 3\n");
+        FileReader fileReader = new FileReader(tempDir.toString());
+        FileWriter fileWriter = new FileWriter(tempDir.toString());
+        String hash = fileReader.apply(new FileReader.InputPath("app.py")).sha256();
+
+        FileWriter.WriteResult result = fileWriter.apply(new FileWriter.FileWriteRequest("app.py", null,
+                FileWriter.WriteOperation.PATCH, null, List.of(
+                new FileWriter.Hunk(3, FileWriter.HunkOperation.DELETE, null),
+                new FileWriter.Hunk(1, FileWriter.HunkOperation.REPLACE, "x = 10"),
+                new FileWriter.Hunk(3, FileWriter.HunkOperation.INSERT, "w = 0")), hash));
+        assertTrue(result.success(), result.message());
+        assertEquals("x = 10\ny = 2\nw = 0\n", Files.readString(tempDir.resolve("app.py")));
+        assertEquals(fileReader.apply(new FileReader.InputPath("app.py")).sha256(), result.sha256());
+
+        // Старый хеш: файл уже изменён, патч не применяется
+        FileWriter.WriteResult stale = fileWriter.apply(new FileWriter.FileWriteRequest("app.py",
+                "@@ -2 +2 @@\n-y = 2\n+y = 20\n", FileWriter.WriteOperation.PATCH, null, null, hash));
+        assertFalse(stale.success());
+        assertTrue(stale.message().contains("hash mismatch"), stale.message());
+
+        assertTrue(fileWriter.apply(new FileWriter.FileWriteRequest("app.py",
+                "@@ -2 +2 @@\n-y = 2\n+y = 20\n", FileWriter.WriteOperation.PATCH, null)).success());
+        assertEquals("x = 10\ny = 20\nw = 0\n", Files.readString(tempDir.resolve("app.py")));
+    }
+}
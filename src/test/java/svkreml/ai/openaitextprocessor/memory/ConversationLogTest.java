@@ -0,0 +1,123 @@
+package svkreml.ai.openaitextprocessor.memory;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationLogTest {
+
+    @TempDir
+    Path dir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private ConversationLog open(long segmentSize) throws IOException {
+        return new ConversationLog(dir, segmentSize, 0.5, Duration.ZERO);
+    }
+
+    private static List<Message> conversation(String question, String answer) {
+        return List.of(new UserMessage(question), new AssistantMessage(answer));
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getText).toList();
+    }
+
+    @Test
+    void testConversationsSurviveRestartAndAreLoadedWhenResumed() throws IOException {
+        List<Message> withTools = List.of(
+                new UserMessage("read a.txt"),
+                new AssistantMessage("", Map.of(), List.of(
+                        new AssistantMessage.ToolCall("call-1", "function", "fileReader", "{\"path\":\"a.txt\"}"))),
+                new ToolResponseMessage(List.of(new ToolResponseMessage.ToolResponse("call-1", "fileReader", "text"))),
+                new AssistantMessage("a.txt says: text"));
+        try (ConversationLog store = open(1 << 20)) {
+            // В памяти помещаются два разговора, третий вытесняет первый на диск
+            ConversationMemoryRepository repository = new ConversationMemoryRepository(1 << 20, 2, 1 << 20, 2048,
+                    store, registry);
+            repository.saveAll("a", withTools);
+            repository.saveAll("b", conversation("question b", "answer b"));
+            repository.saveAll("c", conversation("question c", "answer c"));
+            assertEquals(2, repository.size());
+            assertEquals(Set.of("a", "b", "c"), Set.copyOf(repository.findConversationIds()));
+
+            assertEquals(withTools, repository.findByConversationId("a"));
+            assertEquals(1.0, registry.get("chat.memory.loads").counter().count());
+            repository.deleteByConversationId("b");
+        }
+
+        try (ConversationLog store = open(1 << 20)) {
+            ConversationMemoryRepository repository = new ConversationMemoryRepository(1 << 20, 2, 1 << 20, 2048,
+                    store, registry);
+            assertEquals(0, repository.size());
+            assertEquals(Set.of("a", "c"), Set.copyOf(repository.findConversationIds()));
+            assertEquals(withTools, repository.findByConversationId("a"));
+            assertEquals(List.of("question c", "answer c"), texts(repository.findByConversationId("c")));
+            assertTrue(repository.findByConversationId("b").isEmpty());
+        }
+    }
+
+    @Test
+    void testCompactionDropsOverwrittenRecordsAndKeepsDeletesDeleted() throws IOException {
+        try (ConversationLog store = open(1024)) {
+            store.put("deleted", conversation("question", "x".repeat(300)));
+            store.put("kept", conversation("question", "kept"));
+            for (int turn = 0; turn < 20; turn++) {
+                store.put("busy", conversation("question " + turn, "y".repeat(300)));
+            }
+            // Старые записи «busy» — мусор; надгробие «deleted» лежит в сегменте новее первой его записи
+            store.delete("deleted");
+            store.put("busy", conversation("question 20", "y".repeat(300)));
+            int segments = store.segments();
+            long before = store.diskBytes();
+
+            store.compact();
+            assertTrue(store.segments() < segments, store.segments() + " of " + segments);
+            assertTrue(store.diskBytes() < before);
+            assertEquals(List.of("question", "kept"), texts(store.get("kept")));
+            assertEquals("question 20", store.get("busy").get(0).getText());
+        }
+        try (ConversationLog store = open(1024)) {
+            assertEquals(Set.of("busy", "kept"), Set.copyOf(store.ids()));
+            assertNull(store.get("deleted"));
+            assertEquals(List.of("question", "kept"), texts(store.get("kept")));
+        }
+    }
+
+    @Test
+    void testTornTailIsCutOnOpen() throws IOException {
+        try (ConversationLog store = open(1 << 20)) {
+            store.put("a", conversation("question a", "answer a"));
+            store.put("b", conversation("question b", "answer b"));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        long size = Files.size(segment);
+        // Запись, оборванная на середине
+        Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (ConversationLog store = open(1 << 20)) {
+            assertEquals(size, Files.size(segment));
+            assertEquals(List.of("question b", "answer b"), texts(store.get("b")));
+            store.put("c", conversation("question c", "answer c"));
+        }
+        try (ConversationLog store = open(1 << 20)) {
+            assertEquals(Set.of("a", "b", "c"), Set.copyOf(store.ids()));
+        }
+    }
+}
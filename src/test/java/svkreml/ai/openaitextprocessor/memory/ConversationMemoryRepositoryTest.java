@@ -0,0 +1,96 @@
+package svkreml.ai.openaitextprocessor.memory;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.messages.*;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationMemoryRepositoryTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private static List<Message> turn(int turn, int answerChars) {
+        return List.of(new UserMessage("question " + turn), new AssistantMessage("a".repeat(answerChars)));
+    }
+
+    @Test
+    void testConversationsAreSeparateAndLeastRecentlyUsedAreEvicted() {
+        ConversationMemoryRepository repository = new ConversationMemoryRepository(4096, 3, 1 << 20, 2048, registry);
+        ChatMemory memory = MessageWindowChatMemory.builder().chatMemoryRepository(repository).build();
+
+        for (String id : List.of("a", "b", "c")) {
+            memory.add(id, turn(0, 10));
+        }
+        assertEquals(List.of("question 0", "a".repeat(10)), memory.get("a").stream().map(Message::getText).toList());
+        // «a» только что читали, поэтому четвёртый разговор вытесняет «b»
+        memory.add("d", new UserMessage("question"));
+        assertEquals(3, repository.size());
+        assertTrue(memory.get("b").isEmpty());
+        assertFalse(memory.get("a").isEmpty());
+        assertEquals(1.0, registry.get("chat.memory.evictions").tag("unit", "conversation").counter().count());
+
+        // Общий бюджет байт: большие разговоры вытесняют старые, но не сохраняемый
+        long before = repository.bytes();
+        memory.add("e", turn(0, 1900));
+        assertEquals(List.of("e"), repository.findConversationIds());
+        assertTrue(repository.bytes() > before);
+        memory.clear("e");
+        assertEquals(0, repository.bytes());
+    }
+
+    @Test
+    void testOldMessagesAreDroppedToFitConversationBudget() {
+        ConversationMemoryRepository repository = new ConversationMemoryRepository(1 << 20, 10, 4096, 2048, registry);
+
+        repository.saveAll("c", List.of(
+                new UserMessage("question 0"),
+                new AssistantMessage("", Map.of(), List.of(
+                        new AssistantMessage.ToolCall("call-1", "function", "fileReader", "{\"path\":\"a\"}"))),
+                new ToolResponseMessage(List.of(new ToolResponseMessage.ToolResponse("call-1", "fileReader", "x"))),
+                new AssistantMessage("b".repeat(2000)),
+                new UserMessage("question 1"),
+                new AssistantMessage("answer 1")));
+        List<Message> kept = repository.findByConversationId("c");
+        // Первый ход целиком не влезает: он уходит весь, а не оставляет результат инструмента без вызова
+        assertEquals(List.of("question 1", "answer 1"), kept.stream().map(Message::getText).toList());
+        assertEquals(4.0, registry.get("chat.memory.evictions").tag("unit", "message").counter().count());
+
+        // История, начинающаяся не с вопроса пользователя, выравнивается и без превышения бюджета
+        repository.saveAll("c", List.of(new AssistantMessage("answer 0"), new UserMessage("question 1")));
+        assertEquals(List.of("question 1"), repository.findByConversationId("c").stream().map(Message::getText).toList());
+    }
+
+    @Test
+    void testLongToolResultsAreStoredCut() {
+        ConversationMemoryRepository repository = new ConversationMemoryRepository(1 << 20, 10, 1 << 20, 200, registry);
+        AssistantMessage call = new AssistantMessage("", Map.of("id", "chatcmpl-1"), List.of(
+                new AssistantMessage.ToolCall("call-1", "function", "fileReader", "{\"path\":\"big.txt\"}")));
+        ToolResponseMessage result = new ToolResponseMessage(List.of(
+                new ToolResponseMessage.ToolResponse("call-1", "fileReader", "y".repeat(10_000))));
+
+        repository.saveAll("c", List.of(new UserMessage("read big.txt"), call, result, new AssistantMessage("done")));
+        List<Message> kept = repository.findByConversationId("c");
+        assertEquals(4, kept.size());
+        assertNull(kept.get(1).getMetadata().get("id"));
+        String cut = ((ToolResponseMessage) kept.get(2)).getResponses().get(0).responseData();
+        assertEquals(200, cut.length());
+        assertTrue(cut.startsWith("yyy") && cut.contains("10000 chars"), cut);
+
+        // Память сохраняет историю заново с каждым ходом: обрезанное не обрезается повторно
+        repository.saveAll("c", kept);
+        assertEquals(cut, ((ToolResponseMessage) repository.findByConversationId("c").get(2))
+                .getResponses().get(0).responseData());
+
+        // Без результатов инструментов остаются только вопросы и ответы
+        ConversationMemoryRepository withoutTools = new ConversationMemoryRepository(1 << 20, 10, 1 << 20, 0, registry);
+        withoutTools.saveAll("c", List.of(new UserMessage("read big.txt"), call, result, new AssistantMessage("done")));
+        assertEquals(List.of(MessageType.USER, MessageType.ASSISTANT),
+                withoutTools.findByConversationId("c").stream().map(Message::getMessageType).toList());
+    }
+}
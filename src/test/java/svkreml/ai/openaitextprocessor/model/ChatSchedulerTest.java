@@ -0,0 +1,168 @@
+package svkreml.ai.openaitextprocessor.model;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatSchedulerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final List<String> started = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+
+    /**
+     * Records the prompt it was called with and waits for {@link #gate}.
+     */
+    private final ChatModel model = new ChatModel() {
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            started.add(prompt.getContents());
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ChatResponse(List.of(new Generation(new AssistantMessage("ok"))));
+        }
+
+        @Override
+        public Flux<ChatResponse> stream(Prompt prompt) {
+            return Flux.just(call(prompt));
+        }
+    };
+
+    @AfterEach
+    void tearDown() {
+        gate.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testInteractiveRequestsOvertakeBatchOnes() throws Exception {
+        ChatScheduler scheduler = new ChatScheduler(1, 1, 10, Duration.ofSeconds(10), Duration.ofSeconds(10), registry);
+        ChatModel interactive = scheduler.schedule(model, ChatScheduler.Priority.INTERACTIVE);
+        ChatModel batch = scheduler.schedule(model, ChatScheduler.Priority.BATCH);
+
+        gate = new CountDownLatch(1);
+        Future<?> running = executor.submit(() -> batch.call(new Prompt("batch 1")));
+        awaitStarted(1);
+        Future<?> batch2 = executor.submit(() -> batch.call(new Prompt("batch 2")));
+        awaitQueued(scheduler, ChatScheduler.Priority.BATCH, 1);
+        Future<?> batch3 = executor.submit(() -> batch.call(new Prompt("batch 3")));
+        awaitQueued(scheduler, ChatScheduler.Priority.BATCH, 2);
+        List<Future<?>> waiting = List.of(batch2, batch3);
+        Future<?> chat = executor.submit(() -> interactive.call(new Prompt("chat")));
+        awaitQueued(scheduler, ChatScheduler.Priority.INTERACTIVE, 1);
+        assertEquals(1, scheduler.running());
+
+        gate.countDown();
+        running.get();
+        chat.get();
+        for (Future<?> future : waiting) {
+            future.get();
+        }
+        // Один слот: запросы идут по одному, интерактивный раньше ждавших пакетных, пакетные в порядке прихода
+        assertEquals(List.of("batch 1", "chat", "batch 2", "batch 3"), started);
+        assertEquals(4, registry.get("model.scheduler.wait").timers().stream().mapToLong(t -> t.count()).sum());
+    }
+
+    @Test
+    void testOverloadIsShedQuickly() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        ChatScheduler scheduler = new ChatScheduler(1, 1, 2, Duration.ofMillis(1500), Duration.ofSeconds(10), registry,
+                clock::get);
+        ChatModel interactive = scheduler.schedule(model, ChatScheduler.Priority.INTERACTIVE);
+        ChatModel batch = scheduler.schedule(model, ChatScheduler.Priority.BATCH);
+
+        // Средняя генерация 1 с по часам планировщика
+        gate = new CountDownLatch(1);
+        Future<?> first = executor.submit(() -> interactive.call(new Prompt("first")));
+        awaitStarted(1);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        gate.countDown();
+        first.get();
+
+        gate = new CountDownLatch(1);
+        executor.submit(() -> batch.call(new Prompt("running")));
+        awaitStarted(2);
+        Future<?> queued = executor.submit(() -> interactive.call(new Prompt("queued")));
+        awaitQueued(scheduler, ChatScheduler.Priority.INTERACTIVE, 1);
+
+        // Второму в очереди ждать ~2 с при сроке 1,5 с: отказ сразу, а не по истечении срока
+        ModelOverloadedException deadline = assertThrows(ModelOverloadedException.class,
+                () -> interactive.call(new Prompt("too late")));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, deadline.getStatusCode());
+        assertEquals(1.0, registry.get("model.scheduler.rejected").tag("reason", "deadline").counter().count());
+        assertNotNull(deadline.getHeaders().getFirst("Retry-After"));
+
+        // Пакетному запросу срок позволяет ждать, но очередь заполнена
+        executor.submit(() -> batch.call(new Prompt("batch")));
+        awaitQueued(scheduler, ChatScheduler.Priority.BATCH, 1);
+        ModelOverloadedException full = assertThrows(ModelOverloadedException.class,
+                () -> batch.stream(new Prompt("streamed")).blockLast());
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, full.getStatusCode());
+
+        // Не дождавшийся слота запрос получает 503 по своему сроку и уходит из очереди
+        ExecutionException timeout = assertThrows(ExecutionException.class, queued::get);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ModelOverloadedException) timeout.getCause()).getStatusCode());
+        assertEquals(0, scheduler.queued(ChatScheduler.Priority.INTERACTIVE));
+        assertEquals(1.0, registry.get("model.scheduler.rejected").tag("reason", "timeout").counter().count());
+        assertFalse(started.contains("too late"));
+    }
+
+    @Test
+    void testSlotsFollowAvailableBackends() throws Exception {
+        ChatScheduler scheduler = new ChatScheduler(1, 2, 10, Duration.ofSeconds(10), Duration.ofSeconds(10), registry);
+        AtomicInteger available = new AtomicInteger(2);
+        scheduler.followAvailableBackends(available::get);
+        ChatModel batch = scheduler.schedule(model, ChatScheduler.Priority.BATCH);
+        assertEquals(2, scheduler.capacity());
+
+        // Один бэкенд исключён: второй запрос ждёт, а не перегружает оставшийся
+        available.set(1);
+        gate = new CountDownLatch(1);
+        Future<?> first = executor.submit(() -> batch.call(new Prompt("first")));
+        awaitStarted(1);
+        Future<?> second = executor.submit(() -> batch.call(new Prompt("second")));
+        awaitQueued(scheduler, ChatScheduler.Priority.BATCH, 1);
+        assertEquals(1, scheduler.running());
+
+        // Исключены все: слоты одного бэкенда остаются, чтобы проверять их запросами
+        available.set(0);
+        assertEquals(1, scheduler.capacity());
+
+        gate.countDown();
+        first.get();
+        second.get();
+        assertEquals(List.of("first", "second"), started);
+    }
+
+    private void awaitStarted(int count) throws InterruptedException {
+        while (started.size() < count) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitQueued(ChatScheduler scheduler, ChatScheduler.Priority priority, int count)
+            throws InterruptedException {
+        while (scheduler.queued(priority) < count) {
+            Thread.sleep(5);
+        }
+    }
+}
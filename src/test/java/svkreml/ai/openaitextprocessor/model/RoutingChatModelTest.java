@@ -0,0 +1,169 @@
+package svkreml.ai.openaitextprocessor.model;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.retry.TransientAiException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingChatModelTest {
+
+    /**
+     * Answers with its name; {@code down} makes it fail to connect, {@code error} is thrown as is,
+     * {@code gate} holds calls until released.
+     */
+    private static final class FakeModel implements ChatModel {
+        private final String name;
+        private volatile boolean down;
+        private volatile RuntimeException error;
+        private volatile CountDownLatch gate;
+
+        FakeModel(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            if (down) {
+                throw new ResourceAccessException(name + " is down");
+            }
+            if (error != null) {
+                throw error;
+            }
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new ChatResponse(List.of(new Generation(new AssistantMessage(name))));
+        }
+    }
+
+    private final Map<String, FakeModel> models = new LinkedHashMap<>();
+
+    private RoutingChatModel routing(Duration backoff, String... names) {
+        List<RoutingChatModel.Backend> backends = new ArrayList<>();
+        for (String name : names) {
+            FakeModel model = new FakeModel(name);
+            models.put(name, model);
+            backends.add(new RoutingChatModel.Backend(name, model, () -> !model.down));
+        }
+        return new RoutingChatModel(backends, RoutingChatModel.Policy.LEAST_OUTSTANDING, 2, 0, Duration.ZERO,
+                backoff, backoff.multipliedBy(8), new SimpleMeterRegistry());
+    }
+
+    private static Prompt conversation(int id, int turns) {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new SystemMessage("system"));
+        for (int turn = 0; turn < turns; turn++) {
+            messages.add(new UserMessage("conversation " + id + ", turn " + turn));
+            messages.add(new AssistantMessage("answer " + turn));
+        }
+        messages.add(new UserMessage("conversation " + id + ", turn " + turns));
+        return new Prompt(messages);
+    }
+
+    private static String answer(ChatResponse response) {
+        return response.getResult().getOutput().getText();
+    }
+
+    @Test
+    void testConversationsStickToBackendAndSpreadOverAll() throws Exception {
+        try (RoutingChatModel model = routing(Duration.ofSeconds(1), "a", "b", "c", "d")) {
+            Map<String, Integer> perBackend = new HashMap<>();
+            for (int id = 0; id < 200; id++) {
+                String backend = answer(model.call(conversation(id, 0)));
+                // Следующие ходы разговора начинаются с того же префикса и попадают туда же
+                assertEquals(backend, answer(model.call(conversation(id, 3))));
+                perBackend.merge(backend, 1, Integer::sum);
+            }
+            assertEquals(Set.of("a", "b", "c", "d"), perBackend.keySet());
+            perBackend.values().forEach(count -> assertTrue(count > 25, "distribution: " + perBackend));
+
+            // Разговор остаётся на своём бэкенде, пока у того не больше двух лишних запросов в работе
+            Prompt prompt = conversation(0, 0);
+            String sticky = answer(model.call(prompt));
+            FakeModel busy = models.get(sticky);
+            busy.gate = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(3);
+            try {
+                RoutingChatModel.Backend backend = model.backends().stream()
+                        .filter(b -> b.name().equals(sticky)).findFirst().orElseThrow();
+                List<Future<ChatResponse>> routed = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    routed.add(executor.submit(() -> model.call(prompt)));
+                    while (backend.outstanding() < i + 1) {
+                        Thread.onSpinWait();
+                    }
+                }
+                assertNotEquals(sticky, answer(model.call(prompt)));
+                busy.gate.countDown();
+                for (Future<ChatResponse> future : routed) {
+                    assertEquals(sticky, answer(future.get()));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void testFailingBackendIsEjectedWithBackoffAndReadmitted() throws Exception {
+        try (RoutingChatModel model = routing(Duration.ofMillis(200), "a", "b")) {
+            Prompt prompt = conversation(1, 0);
+            String sticky = answer(model.call(prompt));
+            String other = sticky.equals("a") ? "b" : "a";
+            models.get(sticky).down = true;
+
+            // Упавший запрос не повторяется на другом бэкенде, но следующие туда уже не идут
+            assertThrows(ResourceAccessException.class, () -> model.call(prompt));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(other, answer(model.call(prompt)));
+            }
+
+            // После бэкоффа бэкенд снова получает свои разговоры
+            models.get(sticky).down = false;
+            Thread.sleep(250);
+            assertEquals(sticky, answer(model.call(prompt)));
+        }
+    }
+
+    @Test
+    void testOnlyTransportFailuresEject() {
+        try (RoutingChatModel model = routing(Duration.ofSeconds(10), "a", "b")) {
+            Prompt prompt = conversation(2, 0);
+            String sticky = answer(model.call(prompt));
+            FakeModel backend = models.get(sticky);
+
+            // Ошибка цикла вызова инструментов идёт изнутри модели бэкенда, но сам бэкенд исправен
+            backend.error = new IllegalStateException("No ToolCallback found for tool name: guess");
+            assertThrows(IllegalStateException.class, () -> model.call(prompt));
+            backend.error = null;
+            assertEquals(2, model.availableBackends());
+            assertEquals(sticky, answer(model.call(prompt)));
+
+            backend.error = new TransientAiException("502 Bad Gateway");
+            assertThrows(TransientAiException.class, () -> model.call(prompt));
+            assertEquals(1, model.availableBackends());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PropertiesBundleTest {
+
+    private static final String TRICKY = """
+            # header
+            ! bang comment
+
+            plain=value
+            spaced key : spaced value\\u0021
+               indented\\ key\\=x =  = leading equals
+            colon:value:with:colons
+            whitespace   only separator
+            keyOnly
+            empty=
+            tabs\\tand\\nnewlines=a\\tb\\nc\\\\
+            multi=first \\
+                  second \\
+              third
+            even\\\\
+            plain=overridden
+            \\#notComment=yes
+            юникод=значение ${x}
+            # trailing
+            """;
+
+    @Test
+    void testParsesLikeJavaUtilProperties() throws IOException {
+        Properties expected = new Properties();
+        expected.load(new StringReader(TRICKY));
+
+        PropertiesBundle bundle = PropertiesBundle.read(new StringReader(TRICKY));
+
+        Map<String, String> actual = new HashMap<>();
+        for (int i = 0; i < bundle.size(); i++) {
+            actual.put(bundle.key(i), bundle.value(i));
+        }
+        Map<String, String> expectedMap = new HashMap<>();
+        expected.forEach((key, value) -> expectedMap.put(key.toString(), value.toString()));
+        assertEquals(expectedMap, actual);
+        assertEquals("plain", bundle.key(0));
+        assertEquals("overridden", bundle.get("plain"));
+        assertEquals("# header\n! bang comment\n\n", bundle.comment(0));
+        assertEquals(-1, bundle.indexOf("missing"));
+    }
+
+    @Test
+    void testWriteKeepsOrderAndCommentsAndReadsBack() throws IOException {
+        PropertiesBundle bundle = PropertiesBundle.read(new StringReader(TRICKY));
+        StringWriter out = new StringWriter();
+        bundle.write(out);
+
+        assertTrue(out.toString().startsWith("# header\n! bang comment\n\nplain=overridden\n"), out.toString());
+        assertTrue(out.toString().endsWith("юникод=значение ${x}\n# trailing\n"), out.toString());
+        PropertiesBundle reread = PropertiesBundle.read(new StringReader(out.toString()));
+        assertEquals(bundle.size(), reread.size());
+        for (int i = 0; i < bundle.size(); i++) {
+            assertEquals(bundle.key(i), reread.key(i));
+            assertEquals(bundle.value(i), reread.value(i));
+        }
+    }
+
+    @Test
+    void testLargeBundleLookups() {
+        PropertiesBundle bundle = new PropertiesBundle();
+        for (int i = 0; i < 100_000; i++) {
+            bundle.put("key." + i, "value " + i);
+        }
+        bundle.put("key.5", "replaced");
+
+        assertEquals(100_000, bundle.size());
+        assertEquals(99_999, bundle.indexOf("key.99999"));
+        assertEquals("replaced", bundle.get("key.5"));
+        assertEquals("key.5", bundle.key(5));
+    }
+
+    @Test
+    void testThreeWayMerge() throws IOException {
+        PropertiesBundle source = PropertiesBundle.read(new StringReader("""
+                # first
+                a=A
+                b=B
+                # about c
+                c=C
+                d=D
+                # end
+                """));
+        PropertiesBundle existing = PropertiesBundle.read(new StringReader("b=Б\nunrelated=x\n"));
+        PropertiesBundle result = PropertiesBundle.read(new StringReader("a=А\nb=старое\nold=устарело\n"));
+
+        BundleMerge merge = BundleMerge.of(source, existing, result);
+        List<String> pending = new ArrayList<>();
+        merge.forEachPending((key, text) -> pending.add(key + "=" + text));
+
+        assertEquals(List.of(BundleMerge.State.KEPT, BundleMerge.State.EXISTING, BundleMerge.State.PENDING, BundleMerge.State.PENDING),
+                List.of(merge.state(0), merge.state(1), merge.state(2), merge.state(3)));
+        assertEquals(List.of("c=C", "d=D"), pending);
+        assertEquals(2, merge.count(BundleMerge.State.PENDING));
+        assertEquals(List.of("old"), merge.obsolete());
+
+        // c не переведён: его комментарий переходит к d
+        StringWriter out = new StringWriter();
+        merge.merged(Map.of("d", "Д")::get).write(out);
+        assertEquals("# first\na=А\nb=Б\n# about c\nd=Д\n# end\n", out.toString());
+    }
+}
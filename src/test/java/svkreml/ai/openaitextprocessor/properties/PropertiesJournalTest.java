@@ -0,0 +1,96 @@
+package svkreml.ai.openaitextprocessor.properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PropertiesJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRecoversAppendedEntriesAfterCrash() throws IOException {
+        Path target = tempDir.resolve("result.properties");
+        Files.writeString(target, "a=1\n");
+        Path journalFile = tempDir.resolve("result.properties.journal");
+
+        PropertiesJournal journal = new PropertiesJournal(target);
+        journal.append("b key", "значение = ${x}\nвторая строка");
+        journal.append("a", " ведущий пробел #1");
+        // Процесс упал: close() не вызван, запись оборвалась посреди строки
+        Files.write(journalFile, "0badc0de c=обор".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        long tornSize = Files.size(journalFile);
+
+        try (PropertiesJournal recovered = new PropertiesJournal(target)) {
+            assertEquals(2, recovered.pending());
+            assertEquals(" ведущий пробел #1", recovered.bundle().get("a"));
+            assertEquals("значение = ${x}\nвторая строка", recovered.bundle().get("b key"));
+            assertFalse(recovered.bundle().containsKey("c"));
+            assertTrue(Files.size(journalFile) < tornSize);
+        }
+        assertEquals("a=1\n", Files.readString(target));
+    }
+
+    @Test
+    void testCorruptRecordStopsReplay() throws IOException {
+        Path target = tempDir.resolve("result.properties");
+        Path journalFile = tempDir.resolve("result.properties.journal");
+        try (PropertiesJournal journal = new PropertiesJournal(target)) {
+            journal.append("a", "1");
+            journal.append("b", "2");
+            journal.append("c", "3");
+        }
+        List<String> records = Files.readAllLines(journalFile);
+        Files.write(journalFile, List.of(records.get(0), records.get(1).replace("b=2", "b=9"), records.get(2)));
+
+        try (PropertiesJournal recovered = new PropertiesJournal(target)) {
+            assertEquals("1", recovered.bundle().get("a"));
+            assertNull(recovered.bundle().get("b"));
+            assertNull(recovered.bundle().get("c"));
+            assertEquals(1, Files.readAllLines(journalFile).size());
+        }
+    }
+
+    @Test
+    void testCompactionRewritesTargetInGivenOrderAndEmptiesJournal() throws IOException {
+        Path target = tempDir.resolve("result.properties");
+        try (PropertiesJournal journal = new PropertiesJournal(target)) {
+            journal.append("b key", "2");
+            journal.append("a", "значение\n#1");
+
+            PropertiesBundle ordered = new PropertiesBundle();
+            ordered.put("a", journal.bundle().get("a"), "# comment\n");
+            ordered.put("b key", journal.bundle().get("b key"));
+            journal.compact(ordered);
+
+            assertEquals(0, journal.pending());
+            assertEquals(0, Files.size(tempDir.resolve("result.properties.journal")));
+        }
+        assertFalse(Files.exists(tempDir.resolve("result.properties.journal")));
+        assertEquals(List.of("# comment", "a=значение\\n\\#1", "b\\ key=2"), Files.readAllLines(target));
+        assertEquals(Map.of("a", "значение\n#1", "b key", "2"), load(target));
+    }
+
+    private static Map<String, String> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, String> result = new HashMap<>();
+        properties.forEach((key, value) -> result.put(key.toString(), value.toString()));
+        return result;
+    }
+}
@@ -0,0 +1,217 @@
+package svkreml.ai.openaitextprocessor.tools;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.function.FunctionToolCallback;
+import org.springframework.util.FileSystemUtils;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelToolCallingManagerTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private static final Path BASE = Path.of("base").toAbsolutePath();
+
+    private final ParallelToolCallingManager manager = new ParallelToolCallingManager(
+            Set.of("reader", "slow", "textSearch"), 8, Duration.ofSeconds(5),
+            Map.of("slow", Duration.ofMillis(200), "writer", Duration.ofMillis(100)), BASE, registry);
+
+    @AfterEach
+    void tearDown() {
+        manager.shutdown();
+    }
+
+    record PathRequest(String path) {
+    }
+
+    record DirectoryRequest(String directory) {
+    }
+
+    @Test
+    void testReadOnlyCallsRunConcurrently() {
+        long start = System.nanoTime();
+        List<String> results = execute(
+                call("1", "reader", "a.txt"),
+                call("2", "reader", "b.txt"),
+                call("3", "reader", "c.txt"),
+                call("4", "reader", "d.txt"));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(List.of("reader:a.txt", "reader:b.txt", "reader:c.txt", "reader:d.txt"), results);
+        // Четыре вызова по 300 мс последовательно заняли бы 1200 мс
+        assertTrue(elapsedMillis < 1000, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void testWritesToSamePathKeepOrder() {
+        List<String> results = execute(
+                call("1", "writer", "dir/a.txt"),
+                call("2", "reader", "dir"),
+                call("3", "writer", "./dir/a.txt"),
+                call("4", "writer", "other.txt"));
+
+        assertEquals(List.of("writer:dir/a.txt", "reader:dir", "writer:./dir/a.txt", "writer:other.txt"), results);
+        List<String> samePath = events.stream().filter(event -> event.contains("dir")).toList();
+        assertEquals(List.of(
+                "start writer:dir/a.txt", "end writer:dir/a.txt",
+                "start reader:dir", "end reader:dir",
+                "start writer:./dir/a.txt", "end writer:./dir/a.txt"
+        ), samePath);
+        // Запись в другой путь ни от чего не зависит и начинается сразу
+        assertTrue(events.indexOf("start writer:other.txt") < events.indexOf("end writer:dir/a.txt"));
+        // Записи дольше своего таймаута не прерываются: следующая по тому же пути ждёт настоящего окончания
+        assertEquals(3, registry.get("tool.calls").tags("tool", "writer", "outcome", "success").timer().count());
+    }
+
+    @Test
+    void testScopesAreComparedAsToolsResolveThem() {
+        // textSearch берёт каталог как есть, остальные инструменты - относительно базового каталога
+        List<String> results = execute(
+                call("1", "writer", "dir/a.txt"),
+                new AssistantMessage.ToolCall("2", "function", "textSearch", "{\"directory\":\"" + BASE.resolve("dir") + "\"}"),
+                new AssistantMessage.ToolCall("3", "function", "textSearch", "{\"directory\":\"dir\"}"));
+
+        assertEquals("writer:dir/a.txt", results.get(0));
+        assertTrue(events.indexOf("end writer:dir/a.txt") < events.indexOf("start textSearch:" + BASE.resolve("dir")));
+        assertTrue(events.indexOf("start textSearch:dir") < events.indexOf("end writer:dir/a.txt"));
+    }
+
+    @Test
+    void testTimedOutCallReturnsError() {
+        List<String> results = execute(call("1", "slow", "a.txt"), call("2", "reader", "b.txt"));
+
+        assertTrue(results.get(0).contains("timed out"), results.get(0));
+        assertEquals("reader:b.txt", results.get(1));
+        assertEquals(1, registry.get("tool.calls").tags("tool", "slow", "outcome", "timeout").timer().count());
+        assertEquals(1, registry.get("tool.calls").tags("tool", "reader", "outcome", "success").timer().count());
+    }
+
+    @Test
+    void testTimedOutCallKeepsItsSlotUntilItEnds() throws Exception {
+        ParallelToolCallingManager single = new ParallelToolCallingManager(
+                Set.of("stubborn", "reader"), 1, Duration.ofSeconds(5), Map.of("stubborn", Duration.ofMillis(100)),
+                BASE, registry);
+        AtomicBoolean running = new AtomicBoolean();
+        long end = System.nanoTime() + 500_000_000L;
+        // Прерывание игнорирует, как поиск по тяжёлому регулярному выражению
+        Function<PathRequest, String> stubborn = request -> {
+            running.set(true);
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // Не останавливаемся
+                }
+            }
+            running.set(false);
+            return "done";
+        };
+        Function<PathRequest, String> reader = request -> running.get() ? "overlapped" : "alone";
+        List<ToolCallback> callbacks = List.of(
+                FunctionToolCallback.builder("stubborn", stubborn).description("stubborn").inputType(PathRequest.class).build(),
+                FunctionToolCallback.builder("reader", reader).description("reader").inputType(PathRequest.class).build());
+        try {
+            assertTrue(execute(single, callbacks, call("1", "stubborn", "a.txt")).get(0).contains("timed out"));
+            assertTrue(running.get());
+            // Единственный слот занят прерванным, но ещё работающим вызовом: следующий ждёт его окончания
+            assertEquals(List.of("alone"), execute(single, callbacks, call("2", "reader", "b.txt")));
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    void testCallsAnsweredFromResultCacheAreTagged() throws IOException {
+        Path dir = Files.createTempDirectory("parallel-tool-tests");
+        FileTreeCache fileTreeCache = new FileTreeCache(dir.toString(), true, 100, true);
+        try {
+            ToolResultCache cache = new ToolResultCache(fileTreeCache, true, List.of("reader"), 1 << 20, registry);
+            List<ToolCallback> callbacks = List.of(cache.memoize(tool("reader", 0), PathRequest.class));
+
+            assertEquals(List.of("reader:a.txt"), execute(callbacks, call("1", "reader", "a.txt")));
+            assertEquals(List.of("reader:a.txt"), execute(callbacks, call("2", "reader", "a.txt")));
+            assertEquals(List.of("start reader:a.txt", "end reader:a.txt"), events);
+            assertEquals(1, registry.get("tool.calls").tags("tool", "reader", "cached", "false").timer().count());
+            assertEquals(1, registry.get("tool.calls").tags("tool", "reader", "cached", "true").timer().count());
+        } finally {
+            fileTreeCache.close();
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    private List<String> execute(AssistantMessage.ToolCall... toolCalls) {
+        return execute(List.of(tool("reader", 300), tool("writer", 300), tool("slow", 5000), textSearch()), toolCalls);
+    }
+
+    private List<String> execute(List<ToolCallback> callbacks, AssistantMessage.ToolCall... toolCalls) {
+        return execute(manager, callbacks, toolCalls);
+    }
+
+    private static List<String> execute(ParallelToolCallingManager manager, List<ToolCallback> callbacks,
+                                        AssistantMessage.ToolCall... toolCalls) {
+        Prompt prompt = new Prompt(List.of(new UserMessage("test")),
+                ToolCallingChatOptions.builder().toolCallbacks(callbacks).build());
+        ChatResponse response = new ChatResponse(List.of(new Generation(
+                new AssistantMessage("", Map.of(), List.of(toolCalls)))));
+
+        ToolExecutionResult result = manager.executeToolCalls(prompt, response);
+
+        ToolResponseMessage message = (ToolResponseMessage) result.conversationHistory().get(result.conversationHistory().size() - 1);
+        assertEquals(Arrays.stream(toolCalls).map(AssistantMessage.ToolCall::id).toList(),
+                message.getResponses().stream().map(ToolResponseMessage.ToolResponse::id).toList());
+        return message.getResponses().stream()
+                .map(ToolResponseMessage.ToolResponse::responseData)
+                .map(data -> data.replace("\"", ""))
+                .toList();
+    }
+
+    private ToolCallback tool(String name, long millis) {
+        Function<PathRequest, String> function = request -> {
+            String label = name + ":" + request.path();
+            events.add("start " + label);
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add("end " + label);
+            return label;
+        };
+        return FunctionToolCallback.builder(name, function).description(name).inputType(PathRequest.class).build();
+    }
+
+    private ToolCallback textSearch() {
+        Function<DirectoryRequest, String> function = request -> {
+            String label = "textSearch:" + request.directory();
+            events.add("start " + label);
+            events.add("end " + label);
+            return label;
+        };
+        return FunctionToolCallback.builder("textSearch", function).description("textSearch").inputType(DirectoryRequest.class).build();
+    }
+
+    private static AssistantMessage.ToolCall call(String id, String name, String path) {
+        return new AssistantMessage.ToolCall(id, "function", name, "{\"path\":\"" + path + "\"}");
+    }
+}
@@ -0,0 +1,108 @@
+package svkreml.ai.openaitextprocessor.tools;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.function.FunctionToolCallback;
+import org.springframework.util.FileSystemUtils;
+import svkreml.ai.openaitextprocessor.fs.FileTreeCache;
+import svkreml.ai.openaitextprocessor.functions.FileReader;
+import svkreml.ai.openaitextprocessor.functions.FileWriter;
+import svkreml.ai.openaitextprocessor.functions.TextSearch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ToolResultCacheTest {
+    private Path testDir;
+    private FileTreeCache fileTreeCache;
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ToolResultCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        testDir = Files.createTempDirectory("tool-result-cache-tests");
+        fileTreeCache = new FileTreeCache(testDir.toString(), true, 1000, true);
+        cache = new ToolResultCache(fileTreeCache, true, List.of("fileReader"), 1 << 20, registry);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileTreeCache.close();
+        FileSystemUtils.deleteRecursively(testDir);
+    }
+
+    @Test
+    void testRepeatedCallIsAnsweredUntilFileWriterChangesPath() throws IOException {
+        Files.createDirectories(testDir.resolve("src"));
+        Files.writeString(testDir.resolve("src/a.txt"), "one");
+        Files.writeString(testDir.resolve("b.txt"), "b");
+        AtomicInteger reads = new AtomicInteger();
+        FileReader fileReader = new FileReader(testDir.toString(), fileTreeCache);
+        ToolCallback reader = cache.memoize(FunctionToolCallback.builder("fileReader", (FileReader.InputPath input) -> {
+            reads.incrementAndGet();
+            return fileReader.apply(input);
+        }).inputType(FileReader.InputPath.class).build(), FileReader.InputPath.class);
+        FileWriter fileWriter = new FileWriter(testDir.toString(), fileTreeCache);
+
+        String first = reader.call("{\"path\":\"src/a.txt\"}");
+        // Другой порядок и запись пути, явные значения по умолчанию - тот же вызов
+        assertEquals(first, reader.call("{\"maxBytes\":null,\"path\":\"./src//a.txt\"}"));
+        reader.call("{\"path\":\"b.txt\"}");
+        assertEquals(2, reads.get());
+        assertTrue(first.contains("one"));
+
+        fileWriter.apply(new FileWriter.FileWriteRequest("src/a.txt", "two", FileWriter.WriteOperation.OVERWRITE, null));
+        assertTrue(reader.call("{\"path\":\"src/a.txt\"}").contains("two"));
+        // Запись в src/a.txt не трогает результат для b.txt
+        reader.call("{\"path\":\"b.txt\"}");
+        assertEquals(3, reads.get());
+
+        assertEquals(2, registry.get("tool.result.cache.lookups").tags("tool", "fileReader", "result", "hit").counter().count());
+        assertEquals(3, registry.get("tool.result.cache.lookups").tags("tool", "fileReader", "result", "miss").counter().count());
+        assertEquals(2, registry.get("tool.result.cache.saved").tags("tool", "fileReader").timer().count());
+        assertEquals(0.4, registry.get("tool.result.cache.hit.ratio").gauge().value(), 1e-9);
+
+        // Инструменты не из списка не оборачиваются
+        ToolCallback writer = FunctionToolCallback.builder("fileWriter", fileWriter).inputType(FileWriter.FileWriteRequest.class).build();
+        assertSame(writer, cache.memoize(writer, FileWriter.FileWriteRequest.class));
+    }
+
+    @Test
+    void testAbsoluteDirectoryIsScopedAsTheToolResolvesIt() throws IOException {
+        Files.createDirectories(testDir.resolve("docs"));
+        Files.writeString(testDir.resolve("docs/a.txt"), "nothing");
+        ToolResultCache searches = new ToolResultCache(fileTreeCache, true, List.of("textSearch"), 1 << 20, registry);
+        AtomicInteger scans = new AtomicInteger();
+        TextSearch textSearch = new TextSearch(null, fileTreeCache, 1, 0);
+        ToolCallback search = searches.memoize(FunctionToolCallback.builder("textSearch", (TextSearch.SearchRequest request) -> {
+            scans.incrementAndGet();
+            return textSearch.apply(request);
+        }).inputType(TextSearch.SearchRequest.class).build(), TextSearch.SearchRequest.class);
+        FileWriter fileWriter = new FileWriter(testDir.toString(), fileTreeCache);
+        String request = "{\"directory\":\"" + testDir.resolve("docs") + "\",\"regex\":\"needle\"}";
+
+        assertFalse(search.call(request).contains("a.txt"));
+        fileWriter.apply(new FileWriter.FileWriteRequest("docs/a.txt", "a needle", FileWriter.WriteOperation.OVERWRITE, null));
+        assertTrue(search.call(request).contains("a.txt"));
+        assertEquals(2, scans.get());
+
+        // Вне базового каталога изменения не отслеживаются, поэтому такой поиск не запоминается
+        Path outside = Files.createTempDirectory("tool-result-cache-outside");
+        try {
+            String outsideRequest = "{\"directory\":\"" + outside + "\",\"regex\":\"needle\"}";
+            search.call(outsideRequest);
+            search.call(outsideRequest);
+            assertEquals(4, scans.get());
+        } finally {
+            FileSystemUtils.deleteRecursively(outside);
+        }
+    }
+}
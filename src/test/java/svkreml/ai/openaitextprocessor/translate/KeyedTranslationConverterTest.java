@@ -0,0 +1,37 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KeyedTranslationConverterTest {
+
+    private final KeyedTranslationConverter converter = new KeyedTranslationConverter();
+
+    @Test
+    void testRequestAndReplyRoundTrip() {
+        List<String> keys = List.of("realm.delete", "client.save");
+
+        String request = converter.toRequest(List.of("Delete ${name}?", "Say \"Save\"%%%"));
+        Map<String, String> reply = converter.convert("""
+                <think>{"1": "wrong"}</think>
+                ```json
+                {"2": "Скажите \\"Сохранить\\"%%%", "1": "Удалить ${name}?", "7": "лишний"}
+                ```""");
+
+        assertEquals("{\"1\":\"Delete ${name}?\",\"2\":\"Say \\\"Save\\\"%%%\"}", request);
+        assertEquals(Map.of("realm.delete", "Удалить ${name}?", "client.save", "Скажите \"Сохранить\"%%%"),
+                converter.toKeys(reply, keys));
+    }
+
+    @Test
+    void testPartialAndMalformedRepliesKeepWhatWasRead() {
+        assertEquals(Map.of("1", "Один", "3", "Три"),
+                converter.convert("{\"1\": \"Один\", \"2\": {\"nested\": true}, \"3\": \"Три\", \"4\": \"Четы"));
+        assertEquals(Map.of("1", "Один"), converter.convert("{\"1\": \"Один\" \"2\": \"Два\"}"));
+        assertEquals(Map.of(), converter.convert("Извините, не могу перевести"));
+    }
+}
@@ -0,0 +1,53 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TranslationMemoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testExactAndNormalizedLookups() throws IOException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        try (TranslationMemory memory = new TranslationMemory(tempDir.resolve("memory.properties"), "ru", "model-a", registry)) {
+            memory.put("Delete ${name} from {{realm}}?", "Удалить ${name} из {{realm}}?");
+
+            assertEquals(Optional.of("Удалить ${name} из {{realm}}?"), memory.lookup("Delete ${name} from {{realm}}?"));
+            // Другой регистр, пробелы и имена плейсхолдеров
+            assertEquals(Optional.of("удалить ${client} из {{group}}?"), memory.lookup("delete  ${client} from {{group}}? "));
+            assertEquals(Optional.empty(), memory.lookup("Delete ${name}?"));
+        }
+
+        assertEquals(1, registry.counter("translation.memory.lookups", "result", "exact").count());
+        assertEquals(1, registry.counter("translation.memory.lookups", "result", "normalized").count());
+        assertEquals(1, registry.counter("translation.memory.lookups", "result", "miss").count());
+    }
+
+    @Test
+    void testEntriesSurviveReopenAndAreScopedByModel() throws IOException {
+        Path file = tempDir.resolve("memory.properties");
+        try (TranslationMemory memory = new TranslationMemory(file, "ru", "model-a", new SimpleMeterRegistry())) {
+            memory.put("Save", "Сохранить");
+            memory.put("Save", "Сохранить");
+        }
+        // Повторная запись того же перевода файл не увеличивает
+        assertEquals(2, Files.readAllLines(file).size());
+
+        try (TranslationMemory memory = new TranslationMemory(file, "ru", "model-a", new SimpleMeterRegistry())) {
+            assertEquals(Optional.of("Сохранить"), memory.lookup("Save"));
+        }
+        try (TranslationMemory memory = new TranslationMemory(file, "ru", "model-b", new SimpleMeterRegistry())) {
+            assertEquals(Optional.empty(), memory.lookup("Save"));
+        }
+    }
+}
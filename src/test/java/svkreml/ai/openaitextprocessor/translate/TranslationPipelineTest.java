@@ -0,0 +1,97 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TranslationPipelineTest {
+
+    private static final TranslationPipeline.Validator NOT_BAD = (source, translation) -> !translation.equals("bad");
+
+    @Test
+    void testBatchesRunConcurrently() throws InterruptedException {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        BatchTranslator translator = sources -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(100);
+            inFlight.decrementAndGet();
+            return upperCase(sources);
+        };
+        Map<String, String> translated = new LinkedHashMap<>();
+
+        long start = System.nanoTime();
+        TranslationPipeline.Result result = new TranslationPipeline(translator, NOT_BAD, 4, 1000, 5, 3)
+                .run(entries(40), translated::put);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(40, result.translated());
+        assertTrue(result.failed().isEmpty());
+        assertEquals("VALUE 17", translated.get("key17"));
+        assertEquals(4, maxInFlight.get());
+        // 8 пачек по 100 мс последовательно заняли бы 800 мс
+        assertTrue(elapsedMillis < 700, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void testOnlyRejectedAndMissingEntriesAreRetried() throws InterruptedException {
+        List<Set<String>> requests = new CopyOnWriteArrayList<>();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        BatchTranslator translator = sources -> {
+            requests.add(sources.keySet());
+            Map<String, String> result = upperCase(sources);
+            if (seen.add("key3")) result.put("key3", "bad");
+            if (seen.add("key5")) result.remove("key5");
+            return result;
+        };
+        Map<String, String> translated = new HashMap<>();
+
+        TranslationPipeline.Result result = new TranslationPipeline(translator, NOT_BAD, 1, 1000, 10, 3)
+                .run(entries(8), translated::put);
+
+        assertEquals(8, result.translated());
+        assertEquals(List.of(Set.of("key0", "key1", "key2", "key3", "key4", "key5", "key6", "key7"), Set.of("key3", "key5")), requests);
+        assertEquals("VALUE 3", translated.get("key3"));
+    }
+
+    @Test
+    void testFailuresShrinkBatchesAndGiveUpAfterMaxAttempts() throws InterruptedException {
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        BatchTranslator translator = sources -> {
+            batchSizes.add(sources.size());
+            if (batchSizes.size() == 1) throw new IllegalStateException("model unavailable");
+            Map<String, String> result = upperCase(sources);
+            result.computeIfPresent("key0", (key, value) -> "bad");
+            return result;
+        };
+
+        // 8 записей по 2 токена: бюджет 16 токенов — одна пачка, после ошибки 8 токенов — 4 записи
+        TranslationPipeline.Result result = new TranslationPipeline(translator, NOT_BAD, 1, 16, 100, 2)
+                .run(entries(8), (key, value) -> {
+                });
+
+        assertEquals(8, batchSizes.get(0));
+        assertEquals(4, batchSizes.get(1));
+        assertEquals(List.of("key0"), result.failed());
+        assertEquals(7, result.translated());
+    }
+
+    private static Map<String, String> entries(int count) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value " + i);
+        }
+        return entries;
+    }
+
+    private static Map<String, String> upperCase(Map<String, String> sources) {
+        Map<String, String> result = new HashMap<>();
+        sources.forEach((key, value) -> result.put(key, value.toUpperCase(Locale.ROOT)));
+        return result;
+    }
+}
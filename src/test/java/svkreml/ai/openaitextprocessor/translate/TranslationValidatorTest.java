@@ -0,0 +1,53 @@
+package svkreml.ai.openaitextprocessor.translate;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TranslationValidatorTest {
+
+    private final TranslationValidator validator = TranslationValidator.standard();
+
+    @Test
+    void testStandardRules() {
+        String source = "Delete ${name} from ${realm}?";
+
+        assertNull(validator.violation(source, "Удалить ${name} из ${realm}?"));
+        assertNull(validator.violation(source, "Удалить из ${realm} ${name} ${name}?"));
+        assertEquals(TranslationValidator.PLACEHOLDERS, validator.violation(source, "Удалить ${имя} из ${realm}?"));
+        assertEquals(TranslationValidator.PLACEHOLDERS, validator.violation(source, "Удалить из ${realm}?"));
+        assertEquals(TranslationValidator.BLANK, validator.violation(source, " \t"));
+        assertEquals(TranslationValidator.BLANK, validator.violation(source, null));
+        assertEquals("literal:null", validator.violation("Nothing", "null"));
+        assertEquals(TranslationValidator.NEWLINE, validator.violation("Line", "Строка\r\n"));
+        assertEquals(TranslationValidator.SCRIPT, validator.violation("Delete", "删除"));
+        assertEquals(TranslationValidator.SCRIPT, validator.violation("Delete", "삭제"));
+        assertEquals(TranslationValidator.SCRIPT, validator.violation("Delete", "さくじょ"));
+        // Иероглиф вне основной плоскости (суррогатная пара)
+        assertEquals(TranslationValidator.SCRIPT, validator.violation("Delete", "Удалить 𠀀"));
+        assertNull(validator.violation("Copyright", "© Авторские права — «Keycloak» №1 ✓"));
+    }
+
+    @Test
+    void testPluggableRulesAndBulkValidation() {
+        TranslationValidator custom = TranslationValidator.builder()
+                .requireSamePlaceholders("{{", "}}")
+                .rejectCodePoints("digit", Character::isDigit)
+                .rule("length", (source, translation) -> translation.length() <= source.length() * 2)
+                .build();
+        Map<String, String> sources = Map.of("a", "Hi {{user}}", "b", "Hi", "c", "Hi", "d", "Hi {{user}}");
+        Map<String, String> translations = new LinkedHashMap<>();
+        translations.put("a", "Привет {{user}}");
+        translations.put("b", "Хай 2");
+        translations.put("c", "Приветствую");
+        translations.put("d", "Привет");
+        translations.put("unknown", "x");
+
+        assertEquals(Map.of("b", "digit", "c", "length", "d", TranslationValidator.PLACEHOLDERS), custom.validateAll(sources, translations));
+        assertTrue(custom.isValid("Hi {{user}}", "Йо {{user}}"));
+        assertFalse(custom.isValid("Hi {{user}}", "Йо"));
+    }
+}